@@ -0,0 +1,132 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Single row writes running while a bulk insert holds its transaction, which share the compiled
+ * statements of {@link PetStatements}.
+ */
+public class PetProviderConcurrencyTest extends ProviderTestCase2<PetProvider> {
+
+    private static final int BULK_ROWS = 2000;
+    private static final int SINGLE_WRITES = 200;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public PetProviderConcurrencyTest() {
+        super(PetProvider.class, PetContract.CONTENT_AUTHORITY);
+    }
+
+    public void testBulkInsertAndSingleWritesDoNotDeadlock() throws Exception {
+        final ContentValues[] rows = new ContentValues[BULK_ROWS];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = pet("Bulk " + i);
+        }
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread bulk = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    started.countDown();
+                    assertEquals(BULK_ROWS, getMockContentResolver().bulkInsert(
+                            PetContract.PetEntry.CONTENT_URI, rows));
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        });
+        Thread single = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    started.await();
+                    for (int i = 0; i < SINGLE_WRITES; i++) {
+                        Uri uri = getMockContentResolver().insert(
+                                PetContract.PetEntry.CONTENT_URI, pet("Single " + i));
+                        assertNotNull(uri);
+                        ContentValues values = new ContentValues();
+                        values.put(PetContract.PetEntry.COLUMN_WEIGHT, i + 1);
+                        assertEquals(1, getMockContentResolver().update(uri, values, null, null));
+                        if (i % 2 == 0) {
+                            assertEquals(1, getMockContentResolver().delete(uri, null, null));
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        });
+        bulk.start();
+        single.start();
+        bulk.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        single.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        assertFalse("Bulk insert did not finish", bulk.isAlive());
+        assertFalse("Single writes did not finish", single.isAlive());
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(BULK_ROWS + SINGLE_WRITES / 2, count());
+    }
+
+    public void testSingleWritesFromManyThreads() throws Exception {
+        final int threads = 4;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < SINGLE_WRITES; i++) {
+                            Uri uri = getMockContentResolver().insert(
+                                    PetContract.PetEntry.CONTENT_URI, pet(thread + "/" + i));
+                            assertTrue(ContentUris.parseId(uri) > 0);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            assertFalse(writer.isAlive());
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(threads * SINGLE_WRITES, count());
+    }
+
+    private int count() {
+        Cursor cursor = getMockContentResolver().query(
+                PetContract.PetEntry.CONTENT_URI, new String[] { PetContract.PetEntry._ID },
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues pet(String name) {
+        ContentValues values = new ContentValues();
+        values.put(PetContract.PetEntry.COLUMN_NAME, name);
+        values.put(PetContract.PetEntry.COLUMN_BREED, "Terrier");
+        values.put(PetContract.PetEntry.COLUMN_GENDER, PetContract.PetEntry.GENDER_MALE);
+        values.put(PetContract.PetEntry.COLUMN_WEIGHT, 7);
+        return values;
+    }
+}
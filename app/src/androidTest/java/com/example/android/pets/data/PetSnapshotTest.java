@@ -0,0 +1,122 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+
+import java.io.File;
+
+/**
+ * {@link PetDbHelper#snapshot} holding the same database whichever way the copy is made: the
+ * pets that are not deleted, and a change log of one insert per pet.
+ */
+public class PetSnapshotTest extends ProviderTestCase2<PetProvider> {
+
+    /** Prefix of the files of the isolated context of {@link ProviderTestCase2} */
+    private static final String TEST_PREFIX = "test.";
+
+    private File mSnapshot;
+
+    public PetSnapshotTest() {
+        super(PetProvider.class, PetContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        // The isolated context keeps its databases from one test to the next
+        getContext().deleteDatabase(TEST_PREFIX + "shelter.db");
+        super.setUp();
+        mSnapshot = new File(getContext().getCacheDir(), "snapshot_test.db");
+        mSnapshot.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSnapshot.delete();
+        super.tearDown();
+    }
+
+    public void testDeletedPetsAreLeftOut() {
+        long tom = insert("Tom");
+        long rex = insert("Rex");
+        long bella = insert("Bella");
+        assertEquals(1, getMockContentResolver().delete(
+                ContentUris.withAppendedId(PetContract.PetEntry.CONTENT_URI, rex), null, null));
+
+        SQLiteDatabase copy = snapshot();
+        try {
+            assertEquals("1:" + tom + ",2:" + bella, changes(copy));
+            assertEquals(2, DatabaseUtils.queryNumEntries(copy, PetContract.PetEntry.TABLE_NAME));
+            assertEquals(0, DatabaseUtils.longForQuery(copy, "SELECT "
+                    + PetDbHelper.CHANGES_COLUMN_HORIZON + " FROM "
+                    + PetDbHelper.CHANGES_HORIZON_TABLE_NAME, null));
+        } finally {
+            copy.close();
+        }
+    }
+
+    public void testPetsDeletedAllAtOnceAreLeftOut() {
+        insert("Tom");
+        insert("Rex");
+        assertEquals(2, getMockContentResolver().delete(PetContract.PetEntry.CONTENT_URI,
+                null, null));
+        long bella = insert("Bella");
+
+        SQLiteDatabase copy = snapshot();
+        try {
+            assertEquals("1:" + bella, changes(copy));
+            assertEquals(1, DatabaseUtils.queryNumEntries(copy, PetContract.PetEntry.TABLE_NAME));
+            assertEquals(0, DatabaseUtils.longForQuery(copy, "SELECT "
+                    + PetDbHelper.DELETIONS_COLUMN_THROUGH + " FROM "
+                    + PetDbHelper.DELETIONS_TABLE_NAME, null));
+        } finally {
+            copy.close();
+        }
+    }
+
+    private SQLiteDatabase snapshot() {
+        PetDbHelper helper = new PetDbHelper(getMockContext());
+        try {
+            helper.snapshot(mSnapshot, 1);
+        } finally {
+            helper.close();
+        }
+        return SQLiteDatabase.openDatabase(mSnapshot.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+    }
+
+    /**
+     * Returns the change log as "seq:pet_id" pairs, checking that every entry is an insert.
+     */
+    private static String changes(SQLiteDatabase copy) {
+        Cursor cursor = copy.rawQuery("SELECT " + PetContract.ChangesEntry.COLUMN_SEQUENCE + ", "
+                + PetContract.ChangesEntry.COLUMN_PET_ID + ", "
+                + PetContract.ChangesEntry.COLUMN_OPERATION + " FROM "
+                + PetDbHelper.CHANGES_TABLE_NAME + " ORDER BY "
+                + PetContract.ChangesEntry.COLUMN_SEQUENCE, null);
+        StringBuilder changes = new StringBuilder();
+        try {
+            while (cursor.moveToNext()) {
+                assertEquals(PetContract.ChangesEntry.OPERATION_INSERT, cursor.getInt(2));
+                changes.append(changes.length() == 0 ? "" : ",")
+                        .append(cursor.getLong(0)).append(':').append(cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return changes.toString();
+    }
+
+    private long insert(String name) {
+        ContentValues values = new ContentValues();
+        values.put(PetContract.PetEntry.COLUMN_NAME, name);
+        values.put(PetContract.PetEntry.COLUMN_BREED, "Terrier");
+        values.put(PetContract.PetEntry.COLUMN_GENDER, PetContract.PetEntry.GENDER_MALE);
+        values.put(PetContract.PetEntry.COLUMN_WEIGHT, 7);
+        return ContentUris.parseId(getMockContentResolver().insert(
+                PetContract.PetEntry.CONTENT_URI, values));
+    }
+}
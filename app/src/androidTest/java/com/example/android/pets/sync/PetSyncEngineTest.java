@@ -0,0 +1,346 @@
+package com.example.android.pets.sync;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetProvider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * {@link PetSyncEngine} syncing the pets of an isolated {@link PetProvider} with a
+ * {@link FakeSyncServer}, other devices being simulated by writing to the server directly.
+ */
+public class PetSyncEngineTest extends ProviderTestCase2<PetProvider> {
+
+    /** Prefix of the files of the isolated context of {@link ProviderTestCase2} */
+    private static final String TEST_PREFIX = "test.";
+
+    private FakeSyncServer mServer;
+    private final List<PetSyncState> mStates = new ArrayList<>();
+    private PetSyncEngine mEngine;
+
+    public PetSyncEngineTest() {
+        super(PetProvider.class, PetContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        // The isolated context keeps its databases from one test to the next
+        getContext().deleteDatabase(TEST_PREFIX + "shelter.db");
+        getContext().deleteDatabase(TEST_PREFIX + "pet_sync.db");
+        super.setUp();
+        mServer = new FakeSyncServer();
+        mEngine = newEngine(mServer);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (PetSyncState state : mStates) {
+            state.close();
+        }
+        super.tearDown();
+    }
+
+    public void testPushSendsNewPetsUnderGlobalIds() throws Exception {
+        insert("Tom");
+        insert("Rex");
+
+        PetSyncEngine.Result result = mEngine.sync();
+        assertEquals(2, result.getPushed());
+        assertEquals(0, result.getPulled());
+        Map<String, SyncRecord> server = serverByName();
+        assertEquals(2, server.size());
+        assertFalse(server.get("Tom").globalId.equals(server.get("Rex").globalId));
+
+        result = mEngine.sync();
+        assertEquals(0, result.getPushed());
+        assertEquals(0, result.getPulled());
+    }
+
+    public void testPushSendsOnlyChangedPets() throws Exception {
+        long[] ids = new long[10];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = insert("Pet " + i);
+        }
+        mEngine.sync();
+
+        rename(ids[3], "Bella");
+        PetSyncEngine.Result result = mEngine.sync();
+        assertEquals(1, result.getPushed());
+        assertEquals(10, mServer.size());
+        assertTrue(serverByName().containsKey("Bella"));
+    }
+
+    public void testSameLocalIdOnAnotherDeviceIsAnotherPet() throws Exception {
+        long tom = insert("Tom");
+        mEngine.sync();
+
+        // Another device pushes the first pet it created, which has the same local id there
+        mServer.put(pet(UUID.randomUUID().toString(), "Rex"));
+        PetSyncEngine.Result result = mEngine.sync();
+        assertEquals(1, result.getPulled());
+        assertEquals(0, result.getConflicts());
+
+        assertEquals("Tom", nameOf(tom));
+        assertEquals(list("Rex", "Tom"), localNames());
+        assertEquals(2, mServer.size());
+        // Pulled pets are not pushed back
+        assertFalse(mEngine.hasLocalChanges());
+    }
+
+    public void testRemoteChangeWinsConflict() throws Exception {
+        long tom = insert("Tom");
+        mEngine.sync();
+        String globalId = serverByName().get("Tom").globalId;
+
+        mServer.put(pet(globalId, "Thomas"));
+        rename(tom, "Tommy");
+        PetSyncEngine.Result result = mEngine.sync();
+        assertEquals(1, result.getConflicts());
+        assertEquals("Thomas", nameOf(tom));
+        assertEquals("Thomas", mServer.get(globalId).name);
+        assertEquals(list("Thomas"), localNames());
+    }
+
+    public void testLocalChangeWinsConflict() throws Exception {
+        mEngine.setConflictResolver(PetSyncEngine.LOCAL_WINS);
+        long tom = insert("Tom");
+        mEngine.sync();
+        String globalId = serverByName().get("Tom").globalId;
+
+        mServer.put(pet(globalId, "Thomas"));
+        rename(tom, "Tommy");
+        PetSyncEngine.Result result = mEngine.sync();
+        assertEquals(1, result.getConflicts());
+        assertEquals("Tommy", nameOf(tom));
+        assertEquals("Tommy", mServer.get(globalId).name);
+        assertEquals(1, mServer.size());
+    }
+
+    public void testLocalDeletionIsPushedAsTombstone() throws Exception {
+        long tom = insert("Tom");
+        mEngine.sync();
+        String globalId = serverByName().get("Tom").globalId;
+
+        delete(tom);
+        assertEquals(1, mEngine.sync().getPushed());
+        assertTrue(mServer.get(globalId).deleted);
+        assertEquals(0, mServer.size());
+    }
+
+    public void testRemoteDeletionDeletesLocalPet() throws Exception {
+        insert("Tom");
+        insert("Rex");
+        mEngine.sync();
+
+        mServer.put(SyncRecord.tombstone(serverByName().get("Tom").globalId, 0));
+        assertEquals(1, mEngine.sync().getPulled());
+        assertEquals(list("Rex"), localNames());
+        assertFalse(mEngine.hasLocalChanges());
+    }
+
+    public void testDeleteAllIsPushedBeforeThePetsArePurged() throws Exception {
+        insert("Tom");
+        insert("Rex");
+        mEngine.sync();
+
+        assertEquals(2, getMockContentResolver().delete(PetContract.PetEntry.CONTENT_URI,
+                null, null));
+        assertTrue(mEngine.hasLocalChanges());
+        assertEquals(2, mEngine.sync().getPushed());
+        assertEquals(0, mServer.size());
+        assertFalse(mEngine.hasLocalChanges());
+    }
+
+    public void testResetPushesEveryPet() throws Exception {
+        insert("Tom");
+        long rex = insert("Rex");
+        mEngine.sync();
+        String rexId = serverByName().get("Rex").globalId;
+
+        delete(rex);
+        insert("Bella");
+        compactChangeLog();
+
+        PetSyncEngine.Result result = mEngine.sync();
+        // Tom again, Bella, and a tombstone for Rex found missing locally
+        assertEquals(3, result.getPushed());
+        assertEquals(2, mServer.size());
+        assertTrue(mServer.get(rexId).deleted);
+        assertEquals(list("Bella", "Tom"), liveServerNames());
+        assertFalse(mEngine.hasLocalChanges());
+    }
+
+    public void testFailedRequestIsRetriedBySync() throws Exception {
+        insert("Tom");
+        mServer.failNext(1);
+        try {
+            mEngine.sync();
+            fail("Sync should have failed");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, mServer.size());
+        assertTrue(mEngine.hasLocalChanges());
+
+        assertEquals(1, mEngine.sync().getPushed());
+        assertEquals(1, mServer.size());
+        assertFalse(mEngine.hasLocalChanges());
+    }
+
+    public void testFailedSyncContinuesAfterLastCompletePage() throws Exception {
+        // Fails the second push, after the first page was accepted
+        SyncTransport transport = new SyncTransport() {
+            private int mPushes;
+
+            @Override
+            public byte[] push(byte[] changes) throws IOException {
+                if (++mPushes == 2) {
+                    throw new IOException("Simulated network failure");
+                }
+                return mServer.push(changes);
+            }
+
+            @Override
+            public byte[] pull(String token, int limit) throws IOException {
+                return mServer.pull(token, limit);
+            }
+        };
+        PetSyncEngine engine = newEngine(transport).setPageSize(2);
+        for (int i = 0; i < 5; i++) {
+            insert("Pet " + i);
+        }
+        try {
+            engine.sync();
+            fail("Sync should have failed");
+        } catch (IOException expected) {
+        }
+        assertEquals(2, mServer.size());
+
+        assertEquals(3, engine.sync().getPushed());
+        assertEquals(5, mServer.size());
+    }
+
+    public void testBackoffDoublesUpToAnHourWithJitter() {
+        PetSyncScheduler scheduler = new PetSyncScheduler(getMockContentResolver(), mEngine);
+        long minimum = 30 * 1000;
+        long maximum = 60 * 60 * 1000;
+        for (int failures = 1; failures <= 40; failures++) {
+            long full = failures > 20 ? maximum
+                    : Math.min(maximum, minimum << (failures - 1));
+            long delay = scheduler.backoff(failures);
+            assertTrue("Delay " + delay + " after " + failures + " failures",
+                    delay <= full && delay >= full - full / 5);
+        }
+    }
+
+    private PetSyncEngine newEngine(SyncTransport transport) {
+        PetSyncState state = new PetSyncState(getMockContext());
+        mStates.add(state);
+        return new PetSyncEngine(getMockContentResolver(), transport, state);
+    }
+
+    /**
+     * Move the horizon of the change log past every change, as a compaction dropping them would.
+     */
+    private void compactChangeLog() {
+        SQLiteDatabase database = getMockContext().openOrCreateDatabase("shelter.db",
+                Context.MODE_PRIVATE, null);
+        try {
+            database.execSQL("UPDATE pet_changes_horizon SET horizon ="
+                    + " (SELECT max(seq) FROM pet_changes)");
+        } finally {
+            database.close();
+        }
+    }
+
+    private long insert(String name) {
+        ContentValues values = new ContentValues();
+        values.put(PetContract.PetEntry.COLUMN_NAME, name);
+        values.put(PetContract.PetEntry.COLUMN_BREED, "Terrier");
+        values.put(PetContract.PetEntry.COLUMN_GENDER, PetContract.PetEntry.GENDER_MALE);
+        values.put(PetContract.PetEntry.COLUMN_WEIGHT, 7);
+        return ContentUris.parseId(getMockContentResolver().insert(
+                PetContract.PetEntry.CONTENT_URI, values));
+    }
+
+    private void rename(long id, String name) {
+        ContentValues values = new ContentValues();
+        values.put(PetContract.PetEntry.COLUMN_NAME, name);
+        assertEquals(1, getMockContentResolver().update(petUri(id), values, null, null));
+    }
+
+    private void delete(long id) {
+        assertEquals(1, getMockContentResolver().delete(petUri(id), null, null));
+    }
+
+    private String nameOf(long id) {
+        Cursor cursor = getMockContentResolver().query(petUri(id),
+                new String[] { PetContract.PetEntry.COLUMN_NAME }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<String> localNames() {
+        Cursor cursor = getMockContentResolver().query(PetContract.PetEntry.CONTENT_URI,
+                new String[] { PetContract.PetEntry.COLUMN_NAME }, null, null, null);
+        List<String> names = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Returns the live pets on the server by name, read as a first pull would.
+     */
+    private Map<String, SyncRecord> serverByName() throws IOException {
+        Map<String, SyncRecord> byName = new HashMap<>();
+        for (SyncRecord record : SyncCodec.decodePullPage(mServer.pull(null, 1000)).records) {
+            if (!record.deleted) {
+                byName.put(record.name, record);
+            }
+        }
+        return byName;
+    }
+
+    private List<String> liveServerNames() throws IOException {
+        List<String> names = new ArrayList<>(serverByName().keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    private static SyncRecord pet(String globalId, String name) {
+        return new SyncRecord(globalId, 0, name, "Terrier", PetContract.PetEntry.GENDER_MALE, 7);
+    }
+
+    private static Uri petUri(long id) {
+        return ContentUris.withAppendedId(PetContract.PetEntry.CONTENT_URI, id);
+    }
+
+    private static List<String> list(String... names) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, names);
+        return list;
+    }
+}
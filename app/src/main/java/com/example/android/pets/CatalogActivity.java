@@ -18,27 +18,25 @@ package com.example.android.pets;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.design.widget.FloatingActionButton;
-import android.support.v4.app.LoaderManager;
-
-import android.support.v4.content.CursorLoader;
-import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract;
-import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetReader;
+import com.example.android.pets.data.PetWriter;
 
 import java.net.URI;
 import java.util.Arrays;
@@ -46,28 +44,59 @@ import java.util.Arrays;
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class CatalogActivity extends AppCompatActivity {
     private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
-    private static final int LOADER_ID = 0;
-    PetDbHelper mDbHelper;
-    SQLiteDatabase db;
+
+    /** Columns shown in the list */
+    private static final String[] PROJECTION = {
+            PetContract.PetEntry._ID,
+            PetContract.PetEntry.COLUMN_BREED,
+            PetContract.PetEntry.COLUMN_NAME
+    };
+
+    /** Number of pets loaded per page as the list scrolls */
+    private static final int PAGE_SIZE = 50;
+
+    /** Id of the last pet loaded, after which the next page starts, or 0 before any */
+    private long mLastId;
+
+    /** Whether pets may follow the last one loaded */
+    private boolean mHasMore = true;
 
     PetCursorAdapter mPetCursorAdapter;
-    ListView mPetListView;
-
-    private String[] projection =  {
-        PetContract.PetEntry._ID,
-        PetContract.PetEntry.COLUMN_NAME,
-        PetContract.PetEntry.COLUMN_BREED,
-        PetContract.PetEntry.COLUMN_GENDER,
-        PetContract.PetEntry.COLUMN_WEIGHT
+    RecyclerView mPetListView;
+    LinearLayoutManager mLayoutManager;
+    View mEmptyView;
+
+    /** The query of the list being run, cancelled when a newer one replaces it */
+    private PetReader.Request mQuery;
+
+    /** Reloads the list whenever pets change while it is visible */
+    private final ContentObserver mObserver = new ContentObserver(
+            new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(boolean selfChange) {
+            reload();
+        }
     };
 
     @Override
     protected void onStart() {
         super.onStart();
-        //displayDatabaseInfo();
-        //getSupportLoaderManager().restartLoader(LOADER_ID, null, this);
+        getContentResolver().registerContentObserver(PetContract.PetEntry.CONTENT_URI, true,
+                mObserver);
+        // Pets may have changed while the list was not visible
+        reload();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        getContentResolver().unregisterContentObserver(mObserver);
+        if (mQuery != null) {
+            mQuery.cancel();
+            mQuery = null;
+        }
     }
 
     @Override
@@ -76,9 +105,8 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         setContentView(R.layout.activity_catalog);
         Log.i(LOG_TAG, "önCreate()");
 
-        mPetListView = (ListView) findViewById(R.id.listview);
-        View emptyView = findViewById(R.id.empty_view);
-        mPetListView.setEmptyView(emptyView);
+        mPetListView = (RecyclerView) findViewById(R.id.recycler_view);
+        mEmptyView = findViewById(R.id.empty_view);
 
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
@@ -90,22 +118,132 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        //displayDatabaseInfo();
-        mPetCursorAdapter = new PetCursorAdapter(this, null);
-        mPetListView.setAdapter(mPetCursorAdapter);
-
-        mDbHelper = new PetDbHelper(getApplicationContext());
-        db = mDbHelper.getReadableDatabase();
-        mPetListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        mPetCursorAdapter = new PetCursorAdapter(this, new PetCursorAdapter.OnPetClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onPetClick(long id) {
                 Log.i(LOG_TAG, String.valueOf(id));
                 Intent intent = new Intent(getApplication(), EditorActivity.class);
                 intent.setData(ContentUris.withAppendedId(PetContract.PetEntry.CONTENT_URI, id));
                 startActivity(intent);
             }
         });
-        getSupportLoaderManager().initLoader(LOADER_ID, null, this);
+        mPetCursorAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+        });
+        mLayoutManager = new LinearLayoutManager(this);
+        mPetListView.setLayoutManager(mLayoutManager);
+        mPetListView.setHasFixedSize(true);
+        mPetListView.setAdapter(mPetCursorAdapter);
+        mPetListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                loadMoreIfNeeded(mLayoutManager.findLastVisibleItemPosition() + 1,
+                        mPetCursorAdapter.getItemCount());
+            }
+        });
+        updateEmptyView();
+    }
+
+    private void updateEmptyView() {
+        mEmptyView.setVisibility(mPetCursorAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    /**
+     * Request the next page once the list is scrolled to within half a page of the loaded rows,
+     * unless a query is running. Only a full last page means there may be more rows to load.
+     */
+    private void loadMoreIfNeeded(int lastVisibleItem, int totalItemCount) {
+        if (mQuery == null && mHasMore && lastVisibleItem >= totalItemCount - PAGE_SIZE / 2) {
+            loadPage();
+        }
+    }
+
+    /**
+     * Query the page following the last pet loaded in the background, and append it to the list.
+     */
+    private void loadPage() {
+        replaceQuery(PetContract.PetEntry.buildPageAfterIdUri(PAGE_SIZE, mLastId), null, null,
+                new PetWriter.Callback<PetCursorAdapter.Rows>() {
+                    @Override
+                    public void onComplete(PetCursorAdapter.Rows page) {
+                        mQuery = null;
+                        if (page.size() > 0) {
+                            mLastId = page.lastId();
+                        }
+                        mHasMore = page.size() == PAGE_SIZE;
+                        mPetCursorAdapter.appendRows(page);
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        mQuery = null;
+                        Log.e(LOG_TAG, "Failed to load pets", e);
+                    }
+                });
+    }
+
+    /**
+     * Query again the pets loaded so far in the background, up to the last one, replacing the
+     * query still running, so a change costs as much as the rows on screen whatever the size of
+     * the table. Pets added after the last one are left to the next page.
+     */
+    private void reload() {
+        if (mLastId == 0) {
+            loadPage();
+            return;
+        }
+        // Room for pets inserted with ids among the loaded ones
+        final int limit = mPetCursorAdapter.getItemCount() + PAGE_SIZE;
+        replaceQuery(PetContract.PetEntry.buildPageAfterIdUri(limit, 0),
+                PetContract.PetEntry._ID + "<=?", new String[] { String.valueOf(mLastId) },
+                new PetWriter.Callback<PetCursorAdapter.Rows>() {
+                    @Override
+                    public void onComplete(PetCursorAdapter.Rows rows) {
+                        mQuery = null;
+                        if (rows.size() == limit) {
+                            mLastId = rows.lastId();
+                        }
+                        // Pets may have been added after the last one
+                        mHasMore = true;
+                        mPetCursorAdapter.swapRows(rows);
+                        loadMoreIfNeeded(mLayoutManager.findLastVisibleItemPosition() + 1,
+                                rows.size());
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        mQuery = null;
+                        Log.e(LOG_TAG, "Failed to load pets", e);
+                    }
+                });
+    }
+
+    /**
+     * Run the given query of the list in place of the one still running. The new query is
+     * requested before the old one is cancelled, so that an identical query that has not started
+     * yet is shared, as it will see the change.
+     */
+    private void replaceQuery(Uri uri, String selection, String[] selectionArgs,
+                              PetWriter.Callback<PetCursorAdapter.Rows> callback) {
+        PetReader.Request previous = mQuery;
+        mQuery = PetReader.getInstance(this).query(uri, PROJECTION, selection, selectionArgs,
+                null, PetCursorAdapter.Rows.READER, callback);
+        if (previous != null) {
+            previous.cancel();
+        }
     }
 
     @Override
@@ -124,16 +262,26 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         values.put(PetContract.PetEntry.COLUMN_GENDER, PetContract.PetEntry.GENDER_MALE);
         values.put(PetContract.PetEntry.COLUMN_WEIGHT, 7);
 
-        Uri uriReturned = getContentResolver().insert(PetContract.PetEntry.CONTENT_URI, values);
-        if (uriReturned == null) {
-            // If the new content URI is null, then there was an error with insertion.
-            Toast.makeText(this, getString(R.string.editor_insert_pet_failed),
-                    Toast.LENGTH_SHORT).show();
-        } else {
-            // Otherwise, the insertion was successful and we can display a toast.
-            Toast.makeText(this, getString(R.string.editor_insert_pet_successful),
-                    Toast.LENGTH_SHORT).show();
-        }
+        PetWriter.getInstance(this).insert(PetContract.PetEntry.CONTENT_URI, values,
+                new PetWriter.Callback<Uri>() {
+                    @Override
+                    public void onComplete(Uri uriReturned) {
+                        if (uriReturned == null) {
+                            // If the new content URI is null, then there was an error with insertion.
+                            onError(null);
+                        } else {
+                            // Otherwise, the insertion was successful and we can display a toast.
+                            Toast.makeText(CatalogActivity.this, getString(R.string.editor_insert_pet_successful),
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        Toast.makeText(CatalogActivity.this, getString(R.string.editor_insert_pet_failed),
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
     }
 
     @Override
@@ -143,47 +291,12 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertPet();
-                displayDatabaseInfo();
                 return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
-                getContentResolver().delete(PetContract.PetEntry.CONTENT_URI, null, null);
+                PetWriter.getInstance(this).delete(PetContract.PetEntry.CONTENT_URI, null, null, null);
                 return true;
         }
         return super.onOptionsItemSelected(item);
     }
-
-    private void displayDatabaseInfo() {
-        Cursor cursor = getContentResolver().query(
-                PetContract.PetEntry.CONTENT_URI,
-                projection, null, null, null);
-        mPetCursorAdapter = new PetCursorAdapter(this, cursor);
-        mPetListView.setAdapter(mPetCursorAdapter);
-    }
-
-
-    @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        return new CursorLoader(
-                getApplicationContext(),
-                PetContract.PetEntry.CONTENT_URI,
-                new String[]{
-                        PetContract.PetEntry._ID,
-                        PetContract.PetEntry.COLUMN_BREED,
-                        PetContract.PetEntry.COLUMN_NAME},
-                null,
-                null,
-                null
-        );
-    }
-
-    @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mPetCursorAdapter.swapCursor(data);
-    }
-
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        mPetCursorAdapter.swapCursor(null);
-    }
 }
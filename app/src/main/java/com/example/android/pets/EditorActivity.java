@@ -18,17 +18,15 @@ package com.example.android.pets;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Bundle;
-import android.support.v4.app.LoaderManager;
 import android.support.v4.app.NavUtils;
-import android.support.v4.content.CursorLoader;
-import android.support.v4.content.Loader;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
@@ -41,7 +39,9 @@ import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
-import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetReader;
+import com.example.android.pets.data.PetValidationException;
+import com.example.android.pets.data.PetWriter;
 
 import static java.security.AccessController.getContext;
 
@@ -49,11 +49,15 @@ import static java.security.AccessController.getContext;
  * Allows user to create a new pet or edit an existing one.
  */
 @SuppressWarnings("ConstantConditions")
-public class EditorActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
-    private static final int LOADER_ID = 0;
+public class EditorActivity extends AppCompatActivity {
+    private static final String LOG_TAG = EditorActivity.class.getSimpleName();
+
+    /** Request code of the picker started to choose a photo of the pet */
+    private static final int REQUEST_PHOTO = 1;
+
+    /** Instance state key of {@link #mPetLoaded} */
+    private static final String STATE_PET_LOADED = "pet_loaded";
 
-    PetDbHelper mDbHelper;
-    SQLiteDatabase db;
 
     /** EditText field to enter the pet's name */
     private EditText mNameEditText;
@@ -79,9 +83,17 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     private Uri currentPetUri;
     private String[] projection;
 
+    /** The query of the pet being edited, until its fields are filled in */
+    private PetReader.Request mQuery;
+    /** Whether the pet being edited was loaded, after which the views keep what was entered */
+    private boolean mPetLoaded;
+
     private boolean mPetHasChanged = false;
     private boolean mPetDeletedInEditMode = false;
 
+    /** Set once destroyed, so results of writes arriving later are dropped */
+    private boolean mDestroyed;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -101,7 +113,13 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                     PetEntry.COLUMN_GENDER,
                     PetEntry.COLUMN_WEIGHT
             };
-            getSupportLoaderManager().initLoader(LOADER_ID, null, this);
+            // Once loaded, the views restore what was entered before the activity was recreated
+            if (savedInstanceState == null
+                    || !savedInstanceState.getBoolean(STATE_PET_LOADED)) {
+                loadPet();
+            } else {
+                mPetLoaded = true;
+            }
         }
 
         // Find all relevant views that we will need to read user input from
@@ -116,9 +134,6 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mGenderSpinner.setOnTouchListener(mTouchListener);
 
         setupSpinner();
-
-        mDbHelper = new PetDbHelper(getApplicationContext());
-        db = mDbHelper.getReadableDatabase();
     }
 
     /**
@@ -182,6 +197,12 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             case R.id.action_delete:
                 showDeleteConfirmationDialog();
                 return true;
+            // Respond to a click on the "Choose photo" menu option
+            case R.id.action_choose_photo:
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT).setType("image/*");
+                startActivityForResult(Intent.createChooser(intent,
+                        getString(R.string.action_choose_photo)), REQUEST_PHOTO);
+                return true;
             // Respond to a click on the "Up" arrow button in the app bar
             case android.R.id.home:
                 // Navigate back to parent activity (CatalogActivity)
@@ -219,10 +240,38 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         if (currentPetUri == null) {
             MenuItem menuItem = menu.findItem(R.id.action_delete);
             menuItem.setVisible(false);
+            // A new pet has no id to attach a photo to yet
+            menu.findItem(R.id.action_choose_photo).setVisible(false);
         }
         return true;
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != REQUEST_PHOTO) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        if (resultCode != RESULT_OK || data == null || data.getData() == null
+                || currentPetUri == null) {
+            return;
+        }
+        // The picked image is copied on the write thread; the list shows it once it is stored
+        PetWriter.getInstance(this).setPhoto(ContentUris.parseId(currentPetUri), data.getData(),
+                whileAlive(new PetWriter.Callback<Void>() {
+                    @Override
+                    public void onComplete(Void result) {
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        Toast.makeText(EditorActivity.this,
+                                getString(R.string.editor_photo_failed),
+                                Toast.LENGTH_SHORT).show();
+                    }
+                }));
+    }
+
     @Override
     public void onBackPressed() {
         // If the pet hasn't changed, continue with handling back button press
@@ -274,58 +323,113 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         values.put(PetEntry.COLUMN_WEIGHT, mWeightInt);
         values.put(PetEntry.COLUMN_GENDER, mGender);
 
-        Uri uriReturned;
-        int rowsNumberReturned;
+        PetWriter writer = PetWriter.getInstance(this);
         if (currentPetUri == null) {
-            uriReturned = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-            long rowId = ContentUris.parseId(uriReturned);
-            Toast toast;
-            if (rowId != -1 && rowId != -2) {
-                toast = Toast.makeText(this, "Pet saved with id: " + rowId, Toast.LENGTH_SHORT);
-                toast.show();
-                finish();
-            } else if (rowId != -2){
-                toast = Toast.makeText(this, "Error with saving pet", Toast.LENGTH_SHORT);
-                toast.show();
-            }
+            writer.insert(PetEntry.CONTENT_URI, values, whileAlive(new PetWriter.Callback<Uri>() {
+                @Override
+                public void onComplete(Uri uriReturned) {
+                    if (uriReturned == null) {
+                        onError(null);
+                        return;
+                    }
+                    long rowId = ContentUris.parseId(uriReturned);
+                    Toast.makeText(EditorActivity.this, "Pet saved with id: " + rowId, Toast.LENGTH_SHORT).show();
+                    finish();
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    showWriteError(e, "Error with saving pet");
+                }
+            }));
         } else {
-            int id = (int) ContentUris.parseId(currentPetUri);
-            rowsNumberReturned = getContentResolver().update(
-                    currentPetUri,
-                    values,
-                    null,
-                    null
-            );
-            Toast toast;
-            if (rowsNumberReturned != -1) {
-                toast = Toast.makeText(this, "Pet updated", Toast.LENGTH_SHORT);
-                toast.show();
-                finish();
-            } else {
-                toast = Toast.makeText(this, "Error with updating pet", Toast.LENGTH_SHORT);
-                toast.show();
-            }
+            writer.update(currentPetUri, values, null, null,
+                    whileAlive(new PetWriter.Callback<Integer>() {
+                @Override
+                public void onComplete(Integer rowsNumberReturned) {
+                    Toast.makeText(EditorActivity.this, "Pet updated", Toast.LENGTH_SHORT).show();
+                    finish();
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    showWriteError(e, "Error with updating pet");
+                }
+            }));
         }
     }
 
+    /**
+     * Show why the provider rejected the pet, or the given message for any other failure.
+     */
+    private void showWriteError(Exception e, String fallbackMessage) {
+        String message = e instanceof PetValidationException ? e.getMessage() : fallbackMessage;
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Wrap the callback of a write so it is not called once this activity is destroyed, as when
+     * the write finishes after the user left or the activity was recreated.
+     */
+    private <T> PetWriter.Callback<T> whileAlive(final PetWriter.Callback<T> callback) {
+        return new PetWriter.Callback<T>() {
+            @Override
+            public void onComplete(T result) {
+                if (!mDestroyed) {
+                    callback.onComplete(result);
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                if (!mDestroyed) {
+                    callback.onError(e);
+                }
+            }
+        };
+    }
+
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String selection = PetEntry._ID + "=?";
-        String[] selectionArgs = {String.valueOf(ContentUris.parseId(currentPetUri))};
-        return new CursorLoader(
-                getApplication(),
-                PetEntry.CONTENT_URI,
-                projection,
-                selection,
-                selectionArgs,
-                null
-        );
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_PET_LOADED, mPetLoaded);
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        if (mPetDeletedInEditMode) return;
-        data.moveToFirst();
+    protected void onDestroy() {
+        super.onDestroy();
+        mDestroyed = true;
+        if (mQuery != null) {
+            mQuery.cancel();
+        }
+    }
+
+    /**
+     * Query the pet being edited in the background.
+     */
+    private void loadPet() {
+        mQuery = PetReader.getInstance(this).query(currentPetUri, projection, null, null, null,
+                new PetWriter.Callback<Cursor>() {
+                    @Override
+                    public void onComplete(Cursor cursor) {
+                        mQuery = null;
+                        mPetLoaded = true;
+                        showPet(cursor);
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        mQuery = null;
+                        Log.e(LOG_TAG, "Failed to load " + currentPetUri, e);
+                    }
+                });
+    }
+
+    /**
+     * Fill the fields in with the pet loaded for editing.
+     */
+    private void showPet(Cursor data) {
+        if (mPetDeletedInEditMode || data == null || !data.moveToFirst()) return;
 
         int nameColumnId = data.getColumnIndexOrThrow(PetEntry.COLUMN_NAME);
         int breedColumnId = data.getColumnIndexOrThrow(PetEntry.COLUMN_BREED);
@@ -354,14 +458,6 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     }
 
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        mNameEditText.setText("");
-        mBreedEditText.setText("");
-        mGenderSpinner.setSelection(0);
-        mWeightEditText.setText("");
-    }
-
     private View.OnTouchListener mTouchListener = new View.OnTouchListener() {
         @Override
         public boolean onTouch(View view, MotionEvent motionEvent) {
@@ -431,25 +527,30 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             // Call the ContentResolver to delete the pet at the given content URI.
             // Pass in null for the selection and selection args because the mCurrentPetUri
             // content URI already identifies the pet that we want.
-            int rowsDeleted = getContentResolver().delete(currentPetUri, null, null);
-            if (rowsDeleted == 0) {
-                // If no rows were deleted, then there was an error with the delete.
-                // Close the activity
-                finish();
-                Toast.makeText(this, getString(R.string.editor_delete_pet_failed),
-                        Toast.LENGTH_SHORT).show();
-               // getContentResolver().notifyChange(currentPetUri, null);
-
-            } else {
-                // Otherwise, the delete was successful and we can display a toast.
-                // Close the activity
-                finish();
-                Toast.makeText(this, getString(R.string.editor_delete_pet_successful),
-                        Toast.LENGTH_SHORT).show();
-                //getContentResolver().notifyChange(currentPetUri, null);
-
-            }
-
+            PetWriter.getInstance(this).delete(currentPetUri, null, null,
+                    whileAlive(new PetWriter.Callback<Integer>() {
+                        @Override
+                        public void onComplete(Integer rowsDeleted) {
+                            if (rowsDeleted == 0) {
+                                // If no rows were deleted, then there was an error with the delete.
+                                onError(null);
+                            } else {
+                                // Otherwise, the delete was successful and we can display a toast.
+                                // Close the activity
+                                finish();
+                                Toast.makeText(EditorActivity.this, getString(R.string.editor_delete_pet_successful),
+                                        Toast.LENGTH_SHORT).show();
+                            }
+                        }
+
+                        @Override
+                        public void onError(Exception e) {
+                            // Close the activity
+                            finish();
+                            Toast.makeText(EditorActivity.this, getString(R.string.editor_delete_pet_failed),
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    }));
         }
     }
 }
\ No newline at end of file
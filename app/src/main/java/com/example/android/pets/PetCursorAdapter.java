@@ -2,70 +2,308 @@ package com.example.android.pets;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
+import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetReader;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * {@link PetCursorAdapter} is an adapter for a list or grid view
- * that uses a {@link Cursor} of pet data as its data source. This adapter knows
- * how to create list items for each row of pet data in the {@link Cursor}.
+ * {@link PetCursorAdapter} is a {@link RecyclerView} adapter that uses a {@link Cursor} of pet
+ * data as its data source. This adapter knows how to create list items for each row of pet data
+ * in the {@link Cursor}.
+ *
+ * The rows of a cursor are copied into an immutable {@link Rows} snapshot by {@link Rows#READER}
+ * on the thread that ran the query, and the new snapshot is compared with the displayed one on a
+ * background thread, so the main thread does no work that grows with the list. Only the rows
+ * that were inserted, removed or changed are then animated and rebound. Every item has a stable
+ * id, the {@link PetContract.PetEntry#_ID} of its pet. Thumbnails of the photos are loaded in
+ * the background by {@link PetThumbnailLoader}.
  */
-public class PetCursorAdapter extends CursorAdapter {
+public class PetCursorAdapter extends RecyclerView.Adapter<PetCursorAdapter.ViewHolder> {
+
+    /**
+     * Called when a pet in the list is clicked.
+     */
+    public interface OnPetClickListener {
+        void onPetClick(long id);
+    }
+
+    /** Compares snapshots one at a time, so results are posted in the order cursors arrived */
+    private static final ExecutorService sDiffExecutor = Executors.newSingleThreadExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final LayoutInflater mInflater;
+    private final OnPetClickListener mListener;
+    private final PetThumbnailLoader mThumbnails;
+
+    /** Shown in place of an empty breed, looked up once instead of on every bind */
+    private final String mUnknownBreed;
+
+    /** The rows on screen */
+    private Rows mRows = Rows.EMPTY;
+
+    /** The rows last given, on screen once their diff is dispatched */
+    private Rows mLatest = Rows.EMPTY;
+
+    /** Incremented on every swap, so that a diff finishing after a newer swap is dropped */
+    private int mGeneration;
 
     /**
      * Constructs a new {@link PetCursorAdapter}.
      *
-     * @param context The context
-     * @param c       The cursor from which to get the data.
+     * @param context  The context
+     * @param listener Notified when a pet is clicked
      */
-    public PetCursorAdapter(Context context, Cursor c) {
-        super(context, c, 0 /* flags */);
+    public PetCursorAdapter(Context context, OnPetClickListener listener) {
+        mInflater = LayoutInflater.from(context);
+        mListener = listener;
+        mThumbnails = PetThumbnailLoader.getInstance(context);
+        mUnknownBreed = context.getString(R.string.unknown_breed);
+        setHasStableIds(true);
     }
 
     /**
-     * Makes a new blank list item view. No data is set (or bound) to the views yet.
-     *
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already
-     *                moved to the correct position.
-     * @param parent  The parent to which the new view is attached to
-     * @return the newly created list item view.
+     * Show the given rows, read by {@link Rows#READER} off the main thread, or no rows for null.
      */
+    public void swapRows(Rows rows) {
+        final int generation = ++mGeneration;
+        final Rows oldRows = mRows;
+        final Rows newRows = rows == null ? Rows.EMPTY : rows;
+        mLatest = newRows;
+
+        if (oldRows.size() == 0 || newRows.size() == 0) {
+            mRows = newRows;
+            notifyDataSetChanged();
+            return;
+        }
+
+        sDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(
+                        new RowsDiffCallback(oldRows, newRows), false);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mRows = newRows;
+                        diff.dispatchUpdatesTo(PetCursorAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Show the given page, read by {@link Rows#READER}, after the rows last given. Unless a diff
+     * is still running, the page is inserted without comparing the rows already shown.
+     */
+    public void appendRows(Rows page) {
+        if (page.size() == 0) {
+            return;
+        }
+        if (mRows != mLatest) {
+            swapRows(mLatest.append(page));
+            return;
+        }
+        int start = mRows.size();
+        mRows = mRows.append(page);
+        mLatest = mRows;
+        notifyItemRangeInserted(start, page.size());
+    }
+
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+    public int getItemCount() {
+        return mRows.size();
+    }
 
+    @Override
+    public long getItemId(int position) {
+        return mRows.ids[position];
     }
 
     /**
-     * This method binds the pet data (in the current row pointed to by cursor) to the given
-     * list item layout. For example, the name for the current pet can be set on the name TextView
-     * in the list item layout.
-     *
-     * @param view    Existing view, returned earlier by newView() method
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already moved to the
-     *                correct row.
+     * Makes a new blank list item view. No data is set (or bound) to the views yet.
      */
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        TextView nameTextView = (TextView) view.findViewById(R.id.name);
-        TextView summaryTextView = (TextView) view.findViewById(R.id.summary);
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new ViewHolder(mInflater.inflate(R.layout.list_item, parent, false));
+    }
+
+    /**
+     * This method binds the pet data at the given position to the given list item. For example,
+     * the name for the current pet can be set on the name TextView in the list item layout.
+     */
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        String summaryString = mRows.breeds[position];
+
+        if (TextUtils.isEmpty(summaryString)) summaryString = mUnknownBreed;
+        holder.nameTextView.setText(mRows.names[position]);
+        holder.summaryTextView.setText(summaryString);
+        mThumbnails.bind(holder.photoImageView, mRows.ids[position]);
+    }
+
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        mThumbnails.unbind(holder.photoImageView);
+    }
+
+    /**
+     * Views of a list item, looked up once when the item is inflated.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView nameTextView;
+        final TextView summaryTextView;
+        final ImageView photoImageView;
+
+        ViewHolder(View view) {
+            super(view);
+            photoImageView = (ImageView) view.findViewById(R.id.photo);
+            nameTextView = (TextView) view.findViewById(R.id.name);
+            summaryTextView = (TextView) view.findViewById(R.id.summary);
+            view.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            if (mListener != null && getAdapterPosition() != RecyclerView.NO_POSITION) {
+                mListener.onPetClick(getItemId());
+            }
+        }
+    }
+
+    /**
+     * An immutable copy of the displayed columns of a cursor. The arrays may be longer than the
+     * rows, their free space taken by the pages appended later.
+     */
+    static final class Rows {
+        static final Rows EMPTY = new Rows(0);
+
+        /** Copies the rows of a query of the list, on the thread that ran it */
+        static final PetReader.CursorReader<Rows> READER = new PetReader.CursorReader<Rows>() {
+            @Override
+            public Rows read(Cursor cursor) {
+                return of(cursor);
+            }
+        };
+
+        final long[] ids;
+        final String[] names;
+        final String[] breeds;
+        private final int mSize;
+        /** Number of array entries written, shared by the snapshots of the same arrays */
+        private final int[] mFilled;
+
+        private Rows(int size) {
+            this(new long[size], new String[size], new String[size], new int[] { size }, size);
+        }
+
+        private Rows(long[] ids, String[] names, String[] breeds, int[] filled, int size) {
+            this.ids = ids;
+            this.names = names;
+            this.breeds = breeds;
+            mFilled = filled;
+            mSize = size;
+        }
+
+        static Rows of(Cursor cursor) {
+            if (cursor == null || cursor.getCount() == 0) {
+                return EMPTY;
+            }
+            int idColumnIndex = cursor.getColumnIndexOrThrow(PetContract.PetEntry._ID);
+            int nameColumnIndex = cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_NAME);
+            int breedColumnIndex = cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_BREED);
+
+            Rows rows = new Rows(cursor.getCount());
+            int position = cursor.getPosition();
+            for (int i = 0; cursor.moveToPosition(i); i++) {
+                rows.ids[i] = cursor.getLong(idColumnIndex);
+                rows.names[i] = cursor.getString(nameColumnIndex);
+                rows.breeds[i] = cursor.getString(breedColumnIndex);
+            }
+            cursor.moveToPosition(position);
+            return rows;
+        }
+
+        /**
+         * Returns these rows followed by the given page. The page goes in the free space of the
+         * arrays unless another snapshot took it, and the arrays grow by doubling, so appending
+         * a page seldom copies the rows before it. Must be called on the main thread.
+         */
+        Rows append(Rows page) {
+            if (page.mSize == 0) {
+                return this;
+            }
+            int size = mSize + page.mSize;
+            Rows rows;
+            if (mFilled[0] == mSize && size <= ids.length) {
+                rows = new Rows(ids, names, breeds, mFilled, size);
+            } else {
+                int capacity = Math.max(size, mSize * 2);
+                rows = new Rows(Arrays.copyOf(ids, capacity), Arrays.copyOf(names, capacity),
+                        Arrays.copyOf(breeds, capacity), new int[1], size);
+            }
+            System.arraycopy(page.ids, 0, rows.ids, mSize, page.mSize);
+            System.arraycopy(page.names, 0, rows.names, mSize, page.mSize);
+            System.arraycopy(page.breeds, 0, rows.breeds, mSize, page.mSize);
+            rows.mFilled[0] = size;
+            return rows;
+        }
+
+        /** The id of the last row, of which there must be one */
+        long lastId() {
+            return ids[mSize - 1];
+        }
+
+        int size() {
+            return mSize;
+        }
+    }
+
+    private static final class RowsDiffCallback extends DiffUtil.Callback {
+        private final Rows mOld;
+        private final Rows mNew;
+
+        RowsDiffCallback(Rows oldRows, Rows newRows) {
+            mOld = oldRows;
+            mNew = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.size();
+        }
 
-        int nameId = cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_NAME);
-        String nameString = cursor.getString(nameId);
-        int summaryId = cursor.getColumnIndexOrThrow(PetContract.PetEntry.COLUMN_BREED);
-        String summaryString = cursor.getString(summaryId);
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
 
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return mOld.ids[oldPosition] == mNew.ids[newPosition];
+        }
 
-        if (TextUtils.isEmpty(summaryString)) summaryString = context.getString(R.string.unknown_breed);
-        nameTextView.setText(nameString);
-        summaryTextView.setText(summaryString);
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            return TextUtils.equals(mOld.names[oldPosition], mNew.names[newPosition])
+                    && TextUtils.equals(mOld.breeds[oldPosition], mNew.breeds[newPosition]);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,226 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.pets.data.PetContract;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads the thumbnails of the photos of pets into image views, off the UI thread.
+ *
+ * Decoded thumbnails are kept in a memory cache bounded in bytes, and pets found without a photo
+ * are remembered too, so scrolling back over a row never opens a file. A thumbnail wanted by
+ * several views is loaded once, and a load whose view was rebound to another pet before it
+ * started is skipped. Views are only set on the main thread, and only if they still show the
+ * pet the thumbnail is for.
+ *
+ * The thumbnails of a pet are dropped and loaded again when its photo changes.
+ */
+public final class PetThumbnailLoader {
+
+    private static final String TAG = PetThumbnailLoader.class.getSimpleName();
+
+    /** Number of thumbnails decoded at the same time */
+    private static final int THREADS = 2;
+
+    /** Share of the maximum heap the decoded thumbnails may take */
+    private static final int MEMORY_DIVISOR = 16;
+
+    /** Number of pets remembered to have no photo */
+    private static final int MAX_MISSING = 1024;
+
+    private static PetThumbnailLoader sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREADS);
+
+    private final LruCache<Long, Bitmap> mCache;
+    private final LruCache<Long, Boolean> mMissing = new LruCache<>(MAX_MISSING);
+
+    /** The pet each view shows. Guarded by itself, read by the loading threads. */
+    private final Map<ImageView, Long> mBound = new WeakHashMap<>();
+
+    /** Pets whose thumbnail is being loaded. Only used on the main thread. */
+    private final Set<Long> mLoading = new HashSet<>();
+
+    /** Incremented whenever a photo changes, so a load started before it is not cached */
+    private int mGeneration;
+
+    public static synchronized PetThumbnailLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetThumbnailLoader(
+                    context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    private PetThumbnailLoader(ContentResolver resolver) {
+        mResolver = resolver;
+        int maxBytes = (int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / MEMORY_DIVISOR);
+        mCache = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long id, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+        mResolver.registerContentObserver(PetContract.PetEntry.CONTENT_URI, true,
+                new ContentObserver(mMainHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        // Before API 16 the changed URI is not known
+                        invalidateAll();
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        List<String> segments = uri.getPathSegments();
+                        if (segments.size() == 3
+                                && PetContract.PATH_PHOTO.equals(segments.get(2))) {
+                            invalidate(Long.parseLong(segments.get(1)));
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Show the thumbnail of the given pet in the view, or nothing if the pet has no photo. Must
+     * be called on the main thread.
+     */
+    public void bind(ImageView view, long id) {
+        synchronized (mBound) {
+            mBound.put(view, id);
+        }
+        Bitmap bitmap = mCache.get(id);
+        view.setImageBitmap(bitmap);
+        if (bitmap == null && mMissing.get(id) == null) {
+            load(id);
+        }
+    }
+
+    /**
+     * Stop showing thumbnails in the view, as when it is recycled.
+     */
+    public void unbind(ImageView view) {
+        synchronized (mBound) {
+            mBound.remove(view);
+        }
+        view.setImageBitmap(null);
+    }
+
+    private void load(final long id) {
+        if (!mLoading.add(id)) {
+            return;
+        }
+        final int generation = mGeneration;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Rows scrolled past quickly are rebound before their turn comes
+                final Bitmap bitmap = isBound(id) ? decode(id) : null;
+                final boolean skipped = bitmap == null && !isBound(id);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLoading.remove(id);
+                        if (generation != mGeneration) {
+                            // The photo changed while it was loaded
+                            if (isBound(id)) {
+                                load(id);
+                            }
+                            return;
+                        }
+                        if (bitmap != null) {
+                            mCache.put(id, bitmap);
+                        } else if (!skipped) {
+                            mMissing.put(id, Boolean.TRUE);
+                        }
+                        show(id, bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    private Bitmap decode(long id) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        // Thumbnails are JPEGs, which have no alpha to keep
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        InputStream in = null;
+        try {
+            in = mResolver.openInputStream(PetContract.PetEntry.buildThumbnailUri(id));
+            return in == null ? null : BitmapFactory.decodeStream(in, null, options);
+        } catch (FileNotFoundException e) {
+            // The pet has no photo
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close thumbnail of pet " + id, e);
+                }
+            }
+        }
+    }
+
+    private boolean isBound(long id) {
+        synchronized (mBound) {
+            return mBound.containsValue(id);
+        }
+    }
+
+    private void show(long id, Bitmap bitmap) {
+        synchronized (mBound) {
+            for (Map.Entry<ImageView, Long> entry : mBound.entrySet()) {
+                if (entry.getValue() == id) {
+                    entry.getKey().setImageBitmap(bitmap);
+                }
+            }
+        }
+    }
+
+    private void invalidate(long id) {
+        mGeneration++;
+        mCache.remove(id);
+        mMissing.remove(id);
+        if (isBound(id)) {
+            load(id);
+        }
+    }
+
+    private void invalidateAll() {
+        mGeneration++;
+        mCache.evictAll();
+        mMissing.evictAll();
+        List<Long> ids;
+        synchronized (mBound) {
+            ids = new ArrayList<>(new HashSet<>(mBound.values()));
+        }
+        for (long id : ids) {
+            load(id);
+        }
+    }
+}
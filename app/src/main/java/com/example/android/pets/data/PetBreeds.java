@@ -0,0 +1,200 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The breed dictionary: every breed name is stored once in the breeds table and the pets refer
+ * to it by id. Translates between the names {@link PetProvider} accepts and returns and the ids
+ * stored, adding a breed the first time a pet is written with it.
+ *
+ * Known breeds are kept in memory both ways, so translating a pet being written or a breed filter
+ * is a map lookup. Breeds are never renamed or deleted, so a breed held never goes stale. A breed
+ * added or first read inside a transaction is not held, though, as the transaction may still roll
+ * back and its id be handed out again: it is looked up in the database until it is read outside
+ * of one. The database is never used while holding the lock of this object, so a writer waiting
+ * for the lock cannot hold up the transaction of another.
+ */
+class PetBreeds {
+
+    private static final String SQL_QUERY_ID = "SELECT " + PetContract.PetEntry._ID + " FROM "
+            + PetDbHelper.BREEDS_TABLE_NAME + " WHERE " + PetDbHelper.BREEDS_COLUMN_NAME + "=?";
+
+    private static final String SQL_QUERY_NAME = "SELECT " + PetDbHelper.BREEDS_COLUMN_NAME
+            + " FROM " + PetDbHelper.BREEDS_TABLE_NAME + " WHERE " + PetContract.PetEntry._ID
+            + "=?";
+
+    private final PetDbHelper mDbHelper;
+
+    /** Guarded by {@code this} */
+    private final Map<String, Long> mIds = new HashMap<>();
+    private final Map<Long, String> mNames = new HashMap<>();
+    private boolean mLoaded;
+
+    PetBreeds(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Returns the breed of a pet being written, null if it has none. An empty breed is no breed,
+     * as the breed filter and stats always counted it.
+     */
+    static String breedOf(ContentValues values) {
+        String breed = values.getAsString(PetContract.PetEntry.COLUMN_BREED);
+        return TextUtils.isEmpty(breed) ? null : breed;
+    }
+
+    /**
+     * Returns the values to write to the pets table for the given pet values: the same values,
+     * with the breed replaced by its id. Must be called in the transaction of the write, if it
+     * has one, so a breed it adds is rolled back with it.
+     */
+    ContentValues toRow(ContentValues values) {
+        if (!values.containsKey(PetContract.PetEntry.COLUMN_BREED)) {
+            return values;
+        }
+        ContentValues row = new ContentValues(values);
+        row.remove(PetContract.PetEntry.COLUMN_BREED);
+        String breed = breedOf(values);
+        if (breed == null) {
+            row.putNull(PetDbHelper.COLUMN_BREED_ID);
+        } else {
+            row.put(PetDbHelper.COLUMN_BREED_ID, idOf(breed, true));
+        }
+        return row;
+    }
+
+    /**
+     * Returns the id of the given breed, or -1 if no pet ever had it.
+     */
+    long find(String breed) {
+        return idOf(breed, false);
+    }
+
+    /**
+     * Returns the name of the breed with the given id, or null if there is none.
+     */
+    String nameOf(long id) {
+        synchronized (this) {
+            String name = mNames.get(id);
+            if (name != null) {
+                return name;
+            }
+        }
+
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        if (load(database)) {
+            synchronized (this) {
+                String name = mNames.get(id);
+                if (name != null) {
+                    return name;
+                }
+            }
+        }
+        Cursor cursor = database.rawQuery(SQL_QUERY_NAME, new String[] { String.valueOf(id) });
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            String name = cursor.getString(0);
+            hold(database, id, name);
+            return name;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long idOf(String breed, boolean add) {
+        synchronized (this) {
+            Long id = mIds.get(breed);
+            if (id != null) {
+                return id;
+            }
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        if (load(database)) {
+            synchronized (this) {
+                Long id = mIds.get(breed);
+                if (id != null) {
+                    return id;
+                }
+            }
+        }
+        long id = queryId(database, breed);
+        if (id == -1 && add) {
+            // Ignored if another writer added the breed in the meantime, read back below
+            ContentValues values = new ContentValues(1);
+            values.put(PetDbHelper.BREEDS_COLUMN_NAME, breed);
+            database.insertWithOnConflict(PetDbHelper.BREEDS_TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+            id = queryId(database, breed);
+        }
+        if (id != -1) {
+            hold(database, id, breed);
+        }
+        return id;
+    }
+
+    private static long queryId(SQLiteDatabase database, String breed) {
+        Cursor cursor = database.rawQuery(SQL_QUERY_ID, new String[] { breed });
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Read every breed into memory the first time it can be done outside of a transaction.
+     * Returns true if breeds were loaded by this call.
+     */
+    private boolean load(SQLiteDatabase database) {
+        synchronized (this) {
+            if (mLoaded || !canHold(database)) {
+                return false;
+            }
+        }
+        Map<String, Long> ids = new HashMap<>();
+        Cursor cursor = database.query(PetDbHelper.BREEDS_TABLE_NAME,
+                new String[] { PetContract.PetEntry._ID, PetDbHelper.BREEDS_COLUMN_NAME },
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ids.put(cursor.getString(1), cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        synchronized (this) {
+            for (Map.Entry<String, Long> breed : ids.entrySet()) {
+                mIds.put(breed.getKey(), breed.getValue());
+                mNames.put(breed.getValue(), breed.getKey());
+            }
+            mLoaded = true;
+        }
+        return true;
+    }
+
+    private void hold(SQLiteDatabase database, long id, String name) {
+        if (canHold(database)) {
+            synchronized (this) {
+                mIds.put(name, id);
+                mNames.put(id, name);
+            }
+        }
+    }
+
+    /**
+     * Returns true if what the current thread reads from the database is committed, and so may
+     * be held in memory.
+     */
+    private static boolean canHold(SQLiteDatabase database) {
+        return !database.inTransaction();
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Bounded LRU cache of pet rows keyed by {@link PetContract.PetEntry#_ID}, used by
+ * {@link PetProvider} to answer single pet lookups without touching the database.
+ *
+ * Every write invalidates the rows it touched once it has committed. A reader that loaded a row
+ * from the database only caches it if no write finished in the meantime, so a row read before a
+ * write can never overwrite the invalidation of that write.
+ */
+class PetCache {
+
+    /** Default number of pets kept in memory */
+    static final int DEFAULT_MAX_SIZE = 500;
+
+    /** Every column of a pet, as the provider returns them */
+    static final String[] ALL_COLUMNS = {
+            PetContract.PetEntry._ID,
+            PetContract.PetEntry.COLUMN_NAME,
+            PetContract.PetEntry.COLUMN_BREED,
+            PetContract.PetEntry.COLUMN_GENDER,
+            PetContract.PetEntry.COLUMN_WEIGHT
+    };
+
+    private final LruCache<Long, Pet> mPets;
+
+    /** Incremented by every invalidation. Guarded by {@code this}. */
+    private long mGeneration;
+
+    /** Ids invalidated by the batch running on the current thread, or null outside of a batch */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
+
+    PetCache(int maxSize) {
+        mPets = new LruCache<>(maxSize);
+    }
+
+    /**
+     * Returns the cached pet with the given id, or null on a miss.
+     */
+    Pet get(long id) {
+        return mPets.get(id);
+    }
+
+    /**
+     * Returns the current generation, to be read before loading a pet from the database and
+     * passed to {@link #putIfCurrent}.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache a pet loaded from the database, unless a write was invalidated since
+     * {@link #generation()} returned {@code generation}.
+     */
+    synchronized void putIfCurrent(Pet pet, long generation) {
+        if (generation == mGeneration) {
+            mPets.put(pet.id, pet);
+        }
+    }
+
+    /**
+     * Cache a pet that was just written, so the row is known to be current. Inside a batch the
+     * transaction may still roll back, so the pet is only dropped, again once the batch ended.
+     */
+    synchronized void put(Pet pet) {
+        if (mBatch.get() != null) {
+            invalidate(new long[] { pet.id });
+            return;
+        }
+        mPets.put(pet.id, pet);
+    }
+
+    /**
+     * Drop the given pets. Inside a batch they are dropped again once the batch has ended,
+     * as readers may still see the old rows until the transaction commits.
+     */
+    synchronized void invalidate(long[] ids) {
+        mGeneration++;
+        for (long id : ids) {
+            mPets.remove(id);
+        }
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            for (long id : ids) {
+                batch.ids.add(id);
+            }
+        }
+    }
+
+    /**
+     * Drop every pet.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mPets.evictAll();
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.all = true;
+        }
+    }
+
+    /**
+     * Start recording invalidations on the current thread until the matching {@link #endBatch}.
+     */
+    void beginBatch() {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            batch = new Batch();
+            mBatch.set(batch);
+        }
+        batch.depth++;
+    }
+
+    /**
+     * End the batch started by {@link #beginBatch} and repeat its invalidations now that its
+     * transaction is over.
+     */
+    void endBatch() {
+        Batch batch = mBatch.get();
+        if (batch == null || --batch.depth > 0) {
+            return;
+        }
+        mBatch.remove();
+        synchronized (this) {
+            mGeneration++;
+            if (batch.all) {
+                mPets.evictAll();
+            } else {
+                for (Long id : batch.ids) {
+                    mPets.remove(id);
+                }
+            }
+        }
+    }
+
+    int hitCount() {
+        return mPets.hitCount();
+    }
+
+    int missCount() {
+        return mPets.missCount();
+    }
+
+    int evictionCount() {
+        return mPets.evictionCount();
+    }
+
+    int size() {
+        return mPets.size();
+    }
+
+    int maxSize() {
+        return mPets.maxSize();
+    }
+
+    @Override
+    public String toString() {
+        return "PetCache[size=" + size() + "/" + maxSize() + ", hits=" + hitCount()
+                + ", misses=" + missCount() + ", evictions=" + evictionCount() + "]";
+    }
+
+    /**
+     * An immutable copy of one row of the pets table.
+     */
+    static final class Pet {
+        final long id;
+        final String name;
+        final String breed;
+        final int gender;
+        final int weight;
+
+        Pet(long id, String name, String breed, int gender, int weight) {
+            this.id = id;
+            this.name = name;
+            this.breed = breed;
+            this.gender = gender;
+            this.weight = weight;
+        }
+
+        /**
+         * Read the current row of a cursor over {@link #ALL_COLUMNS}.
+         */
+        static Pet fromCursor(Cursor cursor) {
+            return new Pet(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                    cursor.getInt(3), cursor.getInt(4));
+        }
+
+        /**
+         * Returns a one row cursor over the given columns of this pet, or all of them if
+         * {@code projection} is null.
+         */
+        Cursor toCursor(String[] projection) {
+            if (projection == null) {
+                projection = ALL_COLUMNS;
+            }
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                row[i] = valueOf(projection[i]);
+            }
+            MatrixCursor cursor = new MatrixCursor(projection, 1);
+            cursor.addRow(row);
+            return cursor;
+        }
+
+        private Object valueOf(String column) {
+            switch (column) {
+                case PetContract.PetEntry._ID:
+                    return id;
+                case PetContract.PetEntry.COLUMN_NAME:
+                    return name;
+                case PetContract.PetEntry.COLUMN_BREED:
+                    return breed;
+                case PetContract.PetEntry.COLUMN_GENDER:
+                    return gender;
+                case PetContract.PetEntry.COLUMN_WEIGHT:
+                    return weight;
+                default:
+                    throw new IllegalArgumentException("Unknown column " + column);
+            }
+        }
+    }
+
+    private static class Batch {
+        final Set<Long> ids = new HashSet<>();
+        boolean all;
+        int depth;
+    }
+}
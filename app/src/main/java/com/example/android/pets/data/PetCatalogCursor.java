@@ -0,0 +1,277 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+
+/**
+ * A read-only cursor over pets for list screens, holding its rows in one primitive array per
+ * column instead of in a {@link CursorWindow}.
+ *
+ * It is built once from a query result, and only holds the columns of the projection, so a list
+ * of ids and names costs a long and a reference per pet. Breeds are read as ids and named from
+ * the {@link PetBreeds} dictionary, so the query does not join the breed names in, and every
+ * breed is held once whatever the number of pets and cursors. Reading a row neither copies nor
+ * allocates: getString() returns the string held, and moving is a field write.
+ *
+ * In another process the cursor is sent through a window filled straight from the arrays.
+ */
+final class PetCatalogCursor extends AbstractCursor {
+
+    /** Catalog columns, in the order of the kinds below */
+    private static final String[] COLUMNS = {
+            PetContract.PetEntry._ID,
+            PetContract.PetEntry.COLUMN_NAME,
+            PetContract.PetEntry.COLUMN_BREED,
+            PetContract.PetEntry.COLUMN_GENDER,
+            PetContract.PetEntry.COLUMN_WEIGHT
+    };
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int BREED = 2;
+    private static final int GENDER = 3;
+    private static final int WEIGHT = 4;
+
+    private final String[] mColumnNames;
+    /** Which catalog column each column of this cursor is */
+    private final int[] mKinds;
+    private final int mCount;
+
+    /** Null for columns not in the projection */
+    private final long[] mIds;
+    private final String[] mNames;
+    private final String[] mBreeds;
+    private final int[] mGenders;
+    private final int[] mWeights;
+
+    /**
+     * Returns true if a catalog cursor can hold the given projection: a non-empty list of pet
+     * columns, each named once.
+     */
+    static boolean canHold(String[] projection) {
+        if (projection == null || projection.length == 0) {
+            return false;
+        }
+        boolean[] seen = new boolean[COLUMNS.length];
+        for (String column : projection) {
+            int kind = kindOf(column);
+            if (kind < 0 || seen[kind]) {
+                return false;
+            }
+            seen[kind] = true;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the projection to query for a catalog cursor with the given projection, which
+     * must pass {@link #canHold}: the same columns, with the breed id in place of the breed.
+     */
+    static String[] sourceProjection(String[] projection) {
+        String[] source = projection.clone();
+        for (int i = 0; i < source.length; i++) {
+            if (kindOf(source[i]) == BREED) {
+                source[i] = PetDbHelper.COLUMN_BREED_ID;
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Copy every row of a pets cursor queried with the {@link #sourceProjection} of the given
+     * projection, naming breeds from {@code breeds}. The source is read from its first row and
+     * left open.
+     */
+    static PetCatalogCursor copyOf(Cursor source, String[] projection, PetBreeds breeds) {
+        return new PetCatalogCursor(source, projection, breeds);
+    }
+
+    private PetCatalogCursor(Cursor source, String[] projection, PetBreeds breeds) {
+        mColumnNames = projection.clone();
+        mKinds = new int[mColumnNames.length];
+        int[] sourceIndex = new int[COLUMNS.length];
+        for (int i = 0; i < mColumnNames.length; i++) {
+            mKinds[i] = kindOf(mColumnNames[i]);
+            if (mKinds[i] < 0) {
+                throw new IllegalArgumentException("Not a catalog column: " + mColumnNames[i]);
+            }
+            sourceIndex[mKinds[i]] = i;
+        }
+
+        mCount = source.getCount();
+        mIds = has(ID) ? new long[mCount] : null;
+        mNames = has(NAME) ? new String[mCount] : null;
+        mBreeds = has(BREED) ? new String[mCount] : null;
+        mGenders = has(GENDER) ? new int[mCount] : null;
+        mWeights = has(WEIGHT) ? new int[mCount] : null;
+
+        for (int row = 0; row < mCount && source.moveToPosition(row); row++) {
+            if (mIds != null) {
+                mIds[row] = source.getLong(sourceIndex[ID]);
+            }
+            if (mNames != null) {
+                mNames[row] = source.getString(sourceIndex[NAME]);
+            }
+            if (mBreeds != null && !source.isNull(sourceIndex[BREED])) {
+                mBreeds[row] = breeds.nameOf(source.getLong(sourceIndex[BREED]));
+            }
+            if (mGenders != null) {
+                mGenders[row] = source.getInt(sourceIndex[GENDER]);
+            }
+            if (mWeights != null) {
+                mWeights[row] = source.getInt(sourceIndex[WEIGHT]);
+            }
+        }
+    }
+
+    private static int kindOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean has(int kind) {
+        for (int k : mKinds) {
+            if (k == kind) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        switch (mKinds[column]) {
+            case NAME:
+                return Cursor.FIELD_TYPE_STRING;
+            case BREED:
+                return mBreeds[checkedPosition()] == null
+                        ? Cursor.FIELD_TYPE_NULL : Cursor.FIELD_TYPE_STRING;
+            default:
+                return Cursor.FIELD_TYPE_INTEGER;
+        }
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mKinds[column] == BREED && mBreeds[checkedPosition()] == null;
+    }
+
+    @Override
+    public String getString(int column) {
+        int row = checkedPosition();
+        switch (mKinds[column]) {
+            case NAME:
+                return mNames[row];
+            case BREED:
+                return mBreeds[row];
+            default:
+                return String.valueOf(getLong(column));
+        }
+    }
+
+    @Override
+    public long getLong(int column) {
+        int row = checkedPosition();
+        switch (mKinds[column]) {
+            case ID:
+                return mIds[row];
+            case GENDER:
+                return mGenders[row];
+            case WEIGHT:
+                return mWeights[row];
+            default:
+                // Text is converted as SQLite would: a number if it holds one, otherwise 0
+                String text = getString(column);
+                try {
+                    return text == null ? 0 : Long.parseLong(text.trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+        }
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    /**
+     * Fill the window straight from the arrays, without going through the getters and the type
+     * of every cell as {@link AbstractCursor} does.
+     */
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        if (position < 0 || position > mCount) {
+            return;
+        }
+        window.acquireReference();
+        try {
+            window.clear();
+            window.setStartPosition(position);
+            window.setNumColumns(mKinds.length);
+            for (int row = position; row < mCount; row++) {
+                if (!window.allocRow()) {
+                    return;
+                }
+                for (int column = 0; column < mKinds.length; column++) {
+                    if (!putCell(window, row, column)) {
+                        window.freeLastRow();
+                        return;
+                    }
+                }
+            }
+        } finally {
+            window.releaseReference();
+        }
+    }
+
+    private boolean putCell(CursorWindow window, int row, int column) {
+        switch (mKinds[column]) {
+            case ID:
+                return window.putLong(mIds[row], row, column);
+            case NAME:
+                return window.putString(mNames[row], row, column);
+            case BREED:
+                return mBreeds[row] == null ? window.putNull(row, column)
+                        : window.putString(mBreeds[row], row, column);
+            case GENDER:
+                return window.putLong(mGenders[row], row, column);
+            default:
+                return window.putLong(mWeights[row], row, column);
+        }
+    }
+
+    private int checkedPosition() {
+        checkPosition();
+        return mPos;
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads and compacts the change log of the pets table, see {@link PetContract.ChangesEntry}.
+ *
+ * The log is written by triggers in {@link PetDbHelper}, which keep only the latest change of
+ * each pet, so it never holds more entries than there are pets changed since it was last
+ * compacted. Compaction then drops all but the newest {@link #DEFAULT_MAX_CHANGES} entries and
+ * moves the horizon up to the last entry dropped: callers asking for changes from before the
+ * horizon get a reset row instead of an incomplete list.
+ *
+ * Compaction runs on a background thread once enough rows were written since the last one, so
+ * writes never wait for it.
+ */
+class PetChangeLog {
+
+    /** Number of entries kept by compaction */
+    static final int DEFAULT_MAX_CHANGES = 10000;
+
+    private static final String TAG = PetChangeLog.class.getSimpleName();
+
+    private static final String SEQ = PetContract.ChangesEntry.COLUMN_SEQUENCE;
+
+    private static final String SQL_QUERY_HORIZON = "SELECT " + PetDbHelper.CHANGES_COLUMN_HORIZON
+            + " FROM " + PetDbHelper.CHANGES_HORIZON_TABLE_NAME;
+    private static final String HORIZON = "(" + SQL_QUERY_HORIZON + ")";
+
+    /**
+     * The changes after ?1 if they are all still logged, or else a single reset row carrying the
+     * latest sequence number ever given out. One statement, so a compaction cannot run between
+     * checking the horizon and reading the changes.
+     */
+    private static final String SQL_QUERY_CHANGES = "SELECT " + SEQ + ", "
+            + PetContract.ChangesEntry.COLUMN_PET_ID + ", "
+            + PetContract.ChangesEntry.COLUMN_OPERATION + ", "
+            + PetContract.ChangesEntry.COLUMN_ORIGIN
+            + " FROM " + PetDbHelper.CHANGES_TABLE_NAME
+            + " WHERE " + SEQ + " > ?1 AND ?1 >= " + HORIZON
+            + " UNION ALL SELECT (SELECT seq FROM sqlite_sequence WHERE name = '"
+            + PetDbHelper.CHANGES_TABLE_NAME + "'), NULL, "
+            + PetContract.ChangesEntry.OPERATION_RESET + ", NULL"
+            + " WHERE ?1 < " + HORIZON
+            + " ORDER BY " + SEQ;
+
+    private final PetDbHelper mDbHelper;
+    private final int mMaxChanges;
+
+    /** Rows written since the last compaction was scheduled */
+    private final AtomicInteger mWrites = new AtomicInteger();
+    private final AtomicBoolean mCompacting = new AtomicBoolean();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    PetChangeLog(PetDbHelper dbHelper, int maxChanges) {
+        mDbHelper = dbHelper;
+        mMaxChanges = maxChanges;
+    }
+
+    /**
+     * Returns the changes made after the change with sequence number {@code since}, at most
+     * {@code limit} of them, or all if {@code limit} is negative.
+     */
+    Cursor query(SQLiteDatabase database, long since, long limit) {
+        String sql = limit < 0 ? SQL_QUERY_CHANGES : SQL_QUERY_CHANGES + " LIMIT " + limit;
+        return database.rawQuery(sql, new String[] { String.valueOf(since) });
+    }
+
+    /**
+     * Note that {@code rows} rows of pets were written, scheduling a compaction once the log
+     * may have grown by a quarter of its size since the last one.
+     */
+    void onWritten(int rows) {
+        if (rows <= 0 || mWrites.addAndGet(rows) < mMaxChanges / 4) {
+            return;
+        }
+        if (!mCompacting.compareAndSet(false, true)) {
+            return;
+        }
+        mWrites.set(0);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to compact the change log", e);
+                } finally {
+                    mCompacting.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop all but the newest entries of the log and move the horizon past the dropped ones.
+     * Returns the number of entries dropped.
+     */
+    int compact() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            Cursor cursor = database.rawQuery("SELECT " + SEQ + " FROM "
+                    + PetDbHelper.CHANGES_TABLE_NAME + " ORDER BY " + SEQ + " DESC LIMIT 1 OFFSET "
+                    + mMaxChanges, null);
+            long horizon;
+            try {
+                if (!cursor.moveToFirst()) {
+                    database.setTransactionSuccessful();
+                    return 0;
+                }
+                horizon = cursor.getLong(0);
+            } finally {
+                cursor.close();
+            }
+
+            int dropped = database.delete(PetDbHelper.CHANGES_TABLE_NAME, SEQ + " <= ?",
+                    new String[] { String.valueOf(horizon) });
+            database.execSQL("UPDATE " + PetDbHelper.CHANGES_HORIZON_TABLE_NAME + " SET "
+                    + PetDbHelper.CHANGES_COLUMN_HORIZON + " = max("
+                    + PetDbHelper.CHANGES_COLUMN_HORIZON + ", ?)", new Object[] { horizon });
+            database.setTransactionSuccessful();
+            return dropped;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Set the origin logged with the changes made from now on in the current transaction.
+     */
+    static void setOrigin(SQLiteDatabase database, int origin) {
+        database.execSQL("UPDATE " + PetDbHelper.CHANGES_ORIGIN_TABLE_NAME + " SET "
+                + PetContract.ChangesEntry.COLUMN_ORIGIN + " = ?", new Object[] { origin });
+    }
+
+    /**
+     * Returns the sequence number up to which changes are no longer logged.
+     */
+    long horizon(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database, SQL_QUERY_HORIZON, null);
+    }
+}
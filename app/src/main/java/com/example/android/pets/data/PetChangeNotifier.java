@@ -0,0 +1,223 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Coalesces the change notifications sent by {@link PetProvider}.
+ *
+ * Single writes mark their URI dirty and the dirty set is flushed once per window, so a burst of
+ * writes makes observers re-query once instead of once per write. Writes made inside a batch are
+ * held until the batch ends and then flushed straight away, or dropped if the batch rolled back.
+ * When many item URIs (pets/#) of the same collection are dirty they are folded into a single
+ * notification on the collection URI, which also reaches observers of the items.
+ */
+class PetChangeNotifier {
+
+    /** Default time to collect dirty URIs before notifying, in milliseconds */
+    static final long DEFAULT_WINDOW_MILLIS = 100;
+
+    /** Default number of dirty items of one collection above which the collection is notified */
+    static final int DEFAULT_FOLD_THRESHOLD = 8;
+
+    private final ContentResolver mResolver;
+    private final PetMetrics mMetrics;
+    private final Handler mHandler;
+
+    private volatile long mWindowMillis = DEFAULT_WINDOW_MILLIS;
+    private volatile int mFoldThreshold = DEFAULT_FOLD_THRESHOLD;
+
+    /** URIs waiting for the next flush. Guarded by {@code this}. */
+    private final Set<Uri> mPending = new LinkedHashSet<>();
+    private boolean mFlushScheduled;
+
+    /** The batch running on the current thread, or null outside of a batch */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    PetChangeNotifier(ContentResolver resolver, PetMetrics metrics) {
+        mResolver = resolver;
+        mMetrics = metrics;
+        HandlerThread thread = new HandlerThread(PetChangeNotifier.class.getSimpleName(),
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Set how long dirty URIs are collected before observers are notified. A window of 0 notifies
+     * on the writing thread as soon as the write is done.
+     */
+    void setWindow(long millis) {
+        mWindowMillis = millis;
+    }
+
+    /**
+     * Set how many dirty items of one collection are notified one by one before they are folded
+     * into a single notification on the collection.
+     */
+    void setFoldThreshold(int threshold) {
+        mFoldThreshold = threshold;
+    }
+
+    /**
+     * Record that the data at the given URI changed.
+     */
+    void markDirty(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.uris.add(uri);
+            return;
+        }
+
+        long window = mWindowMillis;
+        synchronized (this) {
+            mPending.add(uri);
+            if (window > 0) {
+                if (!mFlushScheduled) {
+                    mFlushScheduled = true;
+                    mHandler.postDelayed(mFlushRunnable, window);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Start holding notifications on the current thread until the matching {@link #endBatch}.
+     * Batches may nest; only the outermost one notifies.
+     */
+    void beginBatch() {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            batch = new Batch();
+            mBatch.set(batch);
+        }
+        batch.depth++;
+    }
+
+    /**
+     * End the batch started by {@link #beginBatch}. If the outermost batch was successful every
+     * URI it changed is notified now; otherwise nothing was written and nothing is notified.
+     */
+    void endBatch(boolean successful) {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            throw new IllegalStateException("endBatch() called without beginBatch()");
+        }
+        if (!successful) {
+            batch.failed = true;
+        }
+        if (--batch.depth > 0) {
+            return;
+        }
+        mBatch.remove();
+        if (batch.failed || batch.uris.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            mPending.addAll(batch.uris);
+        }
+        flush();
+    }
+
+    /**
+     * Notify every pending URI once.
+     */
+    void flush() {
+        Set<Uri> pending;
+        synchronized (this) {
+            if (mFlushScheduled) {
+                mFlushScheduled = false;
+                mHandler.removeCallbacks(mFlushRunnable);
+            }
+            if (mPending.isEmpty()) {
+                return;
+            }
+            pending = new LinkedHashSet<>(mPending);
+            mPending.clear();
+        }
+
+        Set<Uri> folded = fold(pending, mFoldThreshold);
+        for (Uri uri : folded) {
+            mResolver.notifyChange(uri, null);
+        }
+        mMetrics.recordNotification(pending.size(), folded.size());
+    }
+
+    /**
+     * Drop item URIs whose collection is notified anyway, and replace the items of a collection
+     * with the collection itself once there are more than {@code threshold} of them.
+     */
+    private static Set<Uri> fold(Set<Uri> uris, int threshold) {
+        Map<Uri, List<Uri>> itemsByParent = new HashMap<>();
+        Set<Uri> folded = new LinkedHashSet<>();
+        for (Uri uri : uris) {
+            Uri parent = parentOf(uri);
+            if (parent == null) {
+                folded.add(uri);
+                continue;
+            }
+            List<Uri> items = itemsByParent.get(parent);
+            if (items == null) {
+                items = new ArrayList<>();
+                itemsByParent.put(parent, items);
+            }
+            items.add(uri);
+        }
+
+        for (Map.Entry<Uri, List<Uri>> entry : itemsByParent.entrySet()) {
+            if (folded.contains(entry.getKey())) {
+                continue;
+            }
+            if (entry.getValue().size() > threshold) {
+                folded.add(entry.getKey());
+            } else {
+                folded.addAll(entry.getValue());
+            }
+        }
+        return folded;
+    }
+
+    /**
+     * Return the collection URI of an item URI such as pets/3, or null if the URI is not an item.
+     */
+    private static Uri parentOf(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        int last = segments.size() - 1;
+        if (last < 1 || !TextUtils.isDigitsOnly(segments.get(last))) {
+            return null;
+        }
+        Uri.Builder builder = new Uri.Builder()
+                .scheme(uri.getScheme())
+                .authority(uri.getAuthority());
+        for (int i = 0; i < last; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+
+    private static class Batch {
+        final Set<Uri> uris = new LinkedHashSet<>();
+        int depth;
+        boolean failed;
+    }
+}
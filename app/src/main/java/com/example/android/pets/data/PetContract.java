@@ -2,6 +2,7 @@ package com.example.android.pets.data;
 
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -11,12 +12,83 @@ public class PetContract {
     public static final String CONTENT_AUTHORITY = "com.example.android.pets";
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     public static final String PATH_PETS = "pets";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_METRICS = "_metrics";
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_EXPORT = "export";
+    public static final String PATH_SNAPSHOT = "snapshot";
+    public static final String PATH_CHANGES = "changes";
+    public static final String PATH_PHOTO = "photo";
+    public static final String PATH_THUMBNAIL = "thumbnail";
+
+    /** Query parameter capping the number of rows returned for {@link PetEntry#CONTENT_URI} */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /** Query parameter skipping the first rows of the result, only valid together with a limit */
+    public static final String QUERY_PARAMETER_OFFSET = "offset";
+
+    /**
+     * Keyset paging: only return pets with an {@link PetEntry#_ID} greater than this one,
+     * ordered by {@link PetEntry#_ID}.
+     */
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+    /**
+     * Keyset paging by name: together with {@link #QUERY_PARAMETER_AFTER_ID} only return pets
+     * sorting after that (name, _id) pair, ordered by {@link PetEntry#COLUMN_NAME}.
+     */
+    public static final String QUERY_PARAMETER_AFTER_NAME = "after_name";
+
+    /** Query parameter holding the text searched for by {@link PetEntry#SEARCH_URI} */
+    public static final String QUERY_PARAMETER_QUERY = "q";
+
+    /** Filter on {@link PetEntry#COLUMN_GENDER}, one of the GENDER_ values */
+    public static final String QUERY_PARAMETER_GENDER = "gender";
+
+    /** Filter on {@link PetEntry#COLUMN_BREED}, matched exactly. Empty matches pets without one. */
+    public static final String QUERY_PARAMETER_BREED = "breed";
+
+    /** Filters on {@link PetEntry#COLUMN_WEIGHT}, both bounds inclusive */
+    public static final String QUERY_PARAMETER_MIN_WEIGHT = "min_weight";
+    public static final String QUERY_PARAMETER_MAX_WEIGHT = "max_weight";
+
+    /** Filter on the start of {@link PetEntry#COLUMN_NAME}, case sensitive */
+    public static final String QUERY_PARAMETER_NAME_PREFIX = "name_prefix";
+
+    /**
+     * Column to sort by, one of {@link PetEntry#_ID}, {@link PetEntry#COLUMN_NAME},
+     * {@link PetEntry#COLUMN_BREED}, {@link PetEntry#COLUMN_GENDER} or
+     * {@link PetEntry#COLUMN_WEIGHT}. Pets that sort equal are ordered by id.
+     */
+    public static final String QUERY_PARAMETER_SORT = "sort";
+
+    /** Direction of {@link #QUERY_PARAMETER_SORT}, {@link #ORDER_ASCENDING} by default */
+    public static final String QUERY_PARAMETER_ORDER = "order";
+
+    public static final String ORDER_ASCENDING = "asc";
+    public static final String ORDER_DESCENDING = "desc";
+
+    /** Sequence number of the last change already seen, see {@link ChangesEntry} */
+    public static final String QUERY_PARAMETER_SINCE = "since";
+
+    /**
+     * Marks a write made by a sync adapter, applying changes that came from elsewhere. Such
+     * writes are logged with {@link ChangesEntry#ORIGIN_REMOTE}, so they are not sent back.
+     */
+    public static final String QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER = "caller_is_syncadapter";
+
+    /** Query parameter of the export URI choosing its format, one of the FORMAT_ values */
+    public static final String QUERY_PARAMETER_FORMAT = "format";
+
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_JSON = "json";
 
     public static class PetEntry implements BaseColumns {
         public static final String TABLE_NAME = "pets";
 
         public static final String COLUMN_ID = "_id";
         public static final String COLUMN_NAME = "name";
+        /** Name of the breed, null if the pet has none. An empty breed is stored as none. */
         public static final String COLUMN_BREED = "breed";
         public static final String COLUMN_GENDER = "gender";
         public static final String COLUMN_WEIGHT = "weight";
@@ -27,6 +99,206 @@ public class PetContract {
 
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        /**
+         * Full-text search over pet names and breeds. Every word of the query is matched as a
+         * prefix, and pets whose name starts with the first word are returned first.
+         */
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * Every pet, streamed when opened with {@link ContentResolver#openInputStream} in the
+         * format given by {@link #buildExportUri}. CSV by default.
+         */
+        public static final Uri EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+
+        /**
+         * A copy of the whole pets database, as an SQLite database file, when opened with
+         * {@link ContentResolver#openInputStream}.
+         */
+        public static final Uri SNAPSHOT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SNAPSHOT);
+
+        /**
+         * Returns an export URI in the given format, {@link #FORMAT_CSV} or {@link #FORMAT_JSON}.
+         */
+        public static Uri buildExportUri(String format) {
+            return EXPORT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_FORMAT, format)
+                    .build();
+        }
+
+        /**
+         * Returns the URI of the photo of the pet with the given id. It is read with
+         * {@link ContentResolver#openInputStream}, replaced by writing the whole image to
+         * {@link ContentResolver#openOutputStream}, and removed with
+         * {@link ContentResolver#delete}. Pets without a photo have no file there.
+         */
+        public static Uri buildPhotoUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_PHOTO)
+                    .build();
+        }
+
+        /**
+         * Returns the URI of a JPEG of the photo of the pet with the given id, downscaled so its
+         * longer side is at most {@link #THUMBNAIL_SIZE} pixels. Read only; it is made the
+         * first time it is opened, so it must not be opened on the main thread.
+         */
+        public static Uri buildThumbnailUri(long id) {
+            return buildPhotoUri(id).buildUpon()
+                    .appendPath(PATH_THUMBNAIL)
+                    .build();
+        }
+
+        /** Size in pixels of the longer side of a thumbnail */
+        public static final int THUMBNAIL_SIZE = 256;
+
+        /**
+         * Returns the given pets or pet URI marked as written by a sync adapter.
+         */
+        public static Uri asSyncAdapter(Uri uri) {
+            return uri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER, "true")
+                    .build();
+        }
+
+        /**
+         * Returns a search URI for at most {@code limit} pets matching the given text.
+         */
+        public static Uri buildSearchUri(String query, int limit) {
+            return SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_QUERY, query)
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Returns a URI for at most {@code limit} pets, skipping the first {@code offset} of them.
+         */
+        public static Uri buildPageUri(int limit, int offset) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .appendQueryParameter(QUERY_PARAMETER_OFFSET, String.valueOf(offset))
+                    .build();
+        }
+
+        /**
+         * Returns a URI for at most {@code limit} pets following the pet with the given id.
+         */
+        public static Uri buildPageAfterIdUri(int limit, long afterId) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                    .build();
+        }
+
+        /**
+         * Returns a URI for at most {@code limit} pets following the given pet in name order.
+         */
+        public static Uri buildPageAfterNameUri(int limit, String afterName, long afterId) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER_NAME, afterName)
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                    .build();
+        }
+
+        /**
+         * Builds a {@link #CONTENT_URI} query for the pets matching every filter set, in the
+         * given order. For example, the female pets of a breed, heaviest first:
+         *
+         * <pre>
+         * Uri uri = new PetEntry.QueryBuilder()
+         *         .gender(PetEntry.GENDER_FEMALE)
+         *         .breed("Tabby")
+         *         .sortBy(PetEntry.COLUMN_WEIGHT, true)
+         *         .build();
+         * </pre>
+         *
+         * Filters are passed to SQLite as arguments, never as SQL, and are answered from the
+         * indices on gender and breed, weight and name.
+         */
+        public static final class QueryBuilder {
+            private Integer mGender;
+            private String mBreed;
+            private Integer mMinWeight;
+            private Integer mMaxWeight;
+            private String mNamePrefix;
+            private String mSort;
+            private boolean mDescending;
+            private Integer mLimit;
+
+            public QueryBuilder gender(int gender) {
+                mGender = gender;
+                return this;
+            }
+
+            /** Only pets of this breed, or without a breed if it is empty */
+            public QueryBuilder breed(String breed) {
+                mBreed = breed;
+                return this;
+            }
+
+            public QueryBuilder minWeight(int weight) {
+                mMinWeight = weight;
+                return this;
+            }
+
+            public QueryBuilder maxWeight(int weight) {
+                mMaxWeight = weight;
+                return this;
+            }
+
+            public QueryBuilder namePrefix(String prefix) {
+                mNamePrefix = prefix;
+                return this;
+            }
+
+            public QueryBuilder sortBy(String column, boolean descending) {
+                mSort = column;
+                mDescending = descending;
+                return this;
+            }
+
+            public QueryBuilder limit(int limit) {
+                mLimit = limit;
+                return this;
+            }
+
+            /**
+             * Returns the URI. Parameters are always added in the same order, so equal queries
+             * give equal URIs.
+             */
+            public Uri build() {
+                Uri.Builder builder = CONTENT_URI.buildUpon();
+                if (mGender != null) {
+                    builder.appendQueryParameter(QUERY_PARAMETER_GENDER, String.valueOf(mGender));
+                }
+                if (mBreed != null) {
+                    builder.appendQueryParameter(QUERY_PARAMETER_BREED, mBreed);
+                }
+                if (mMinWeight != null) {
+                    builder.appendQueryParameter(QUERY_PARAMETER_MIN_WEIGHT,
+                            String.valueOf(mMinWeight));
+                }
+                if (mMaxWeight != null) {
+                    builder.appendQueryParameter(QUERY_PARAMETER_MAX_WEIGHT,
+                            String.valueOf(mMaxWeight));
+                }
+                if (mNamePrefix != null) {
+                    builder.appendQueryParameter(QUERY_PARAMETER_NAME_PREFIX, mNamePrefix);
+                }
+                if (mSort != null) {
+                    builder.appendQueryParameter(QUERY_PARAMETER_SORT, mSort)
+                            .appendQueryParameter(QUERY_PARAMETER_ORDER,
+                                    mDescending ? ORDER_DESCENDING : ORDER_ASCENDING);
+                }
+                if (mLimit != null) {
+                    builder.appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(mLimit));
+                }
+                return builder.build();
+            }
+        }
+
         public static boolean isValidGender(int gender) {
             if (gender == GENDER_UNKNOWN || gender == GENDER_MALE || gender == GENDER_FEMALE) {
                 return true;
@@ -38,5 +310,114 @@ public class PetContract {
                 + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
         public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE
                 + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
+
+        public static final String CSV_TYPE = "text/csv";
+        public static final String JSON_TYPE = "application/json";
+        public static final String SNAPSHOT_TYPE = "application/x-sqlite3";
+        public static final String THUMBNAIL_TYPE = "image/jpeg";
+    }
+
+    /**
+     * The pets changed since a given point, so observers can apply what changed instead of
+     * loading every pet again. Each row names a pet and how it last changed, in the order of
+     * {@link #COLUMN_SEQUENCE}, and only the latest change of each pet is kept: an
+     * {@link #OPERATION_INSERT} or {@link #OPERATION_UPDATE} means the pet should be read again,
+     * an {@link #OPERATION_DELETE} that it is gone.
+     *
+     * Old changes are compacted away. A caller asking for changes that are no longer kept gets a
+     * single {@link #OPERATION_RESET} row instead: it must read every pet again, and continue
+     * from the sequence number of that row.
+     */
+    public static class ChangesEntry {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI,
+                PATH_CHANGES);
+
+        public static final String COLUMN_SEQUENCE = "seq";
+        /** The changed pet, null in a reset row */
+        public static final String COLUMN_PET_ID = "pet_id";
+        /** One of the OPERATION_ values */
+        public static final String COLUMN_OPERATION = "operation";
+
+        public static final int OPERATION_INSERT = 1;
+        public static final int OPERATION_UPDATE = 2;
+        public static final int OPERATION_DELETE = 3;
+        public static final int OPERATION_RESET = 4;
+
+        /** Whether the change was made on this device or applied by a sync adapter */
+        public static final String COLUMN_ORIGIN = "origin";
+
+        public static final int ORIGIN_LOCAL = 0;
+        public static final int ORIGIN_REMOTE = 1;
+
+        /**
+         * Returns a URI for at most {@code limit} changes made after the change with sequence
+         * number {@code since}, 0 for every change kept.
+         */
+        public static Uri buildChangesUri(long since, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SINCE, String.valueOf(since))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_CHANGES;
+    }
+
+    /**
+     * Pet counts and weights, read from summary tables kept up to date on every write, so the
+     * cost does not grow with the number of pets. There is one {@link #GROUP_TOTAL} row holding
+     * the number of pets and their weight statistics, then one row per gender and per breed
+     * holding the number of pets in it.
+     */
+    public static class StatsEntry {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI,
+                PATH_STATS);
+
+        /** One of the GROUP_ values */
+        public static final String COLUMN_GROUP = "stats_group";
+        /**
+         * The gender or breed the row counts, null for the total. Pets without a breed are
+         * counted under the empty breed.
+         */
+        public static final String COLUMN_KEY = "stats_key";
+        public static final String COLUMN_COUNT = "count";
+        /** Weight statistics over every pet, only set in the total row */
+        public static final String COLUMN_MIN_WEIGHT = "min_weight";
+        public static final String COLUMN_MAX_WEIGHT = "max_weight";
+        public static final String COLUMN_AVG_WEIGHT = "avg_weight";
+
+        public static final String GROUP_TOTAL = "total";
+        public static final String GROUP_GENDER = "gender";
+        public static final String GROUP_BREED = "breed";
+
+        public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_STATS;
+    }
+
+    /**
+     * Timings of the provider's operations, one row per operation and URI pattern. Only recorded
+     * in debug builds, or once "adb shell setprop log.tag.PetMetrics DEBUG" is set before the
+     * provider starts.
+     */
+    public static class MetricsEntry {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI,
+                PATH_METRICS);
+
+        /** query, insert, bulkInsert, update, delete or applyBatch */
+        public static final String COLUMN_OPERATION = "operation";
+        /** URI pattern of the operation, such as pets/# */
+        public static final String COLUMN_URI = "uri";
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_P50_MICROS = "p50_micros";
+        public static final String COLUMN_P90_MICROS = "p90_micros";
+        public static final String COLUMN_P99_MICROS = "p99_micros";
+        public static final String COLUMN_MAX_MICROS = "max_micros";
+        /** Rows returned by queries, or changed by writes, in total */
+        public static final String COLUMN_TOTAL_ROWS = "total_rows";
+        public static final String COLUMN_MAX_ROWS = "max_rows";
+
+        public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_METRICS;
     }
 }
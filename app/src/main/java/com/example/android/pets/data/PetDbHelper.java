@@ -2,19 +2,637 @@ package com.example.android.pets.data;
 
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import java.io.File;
 
 public class PetDbHelper extends SQLiteOpenHelper {
-    private final static String DATABASE_NAME = "shelter.db";
-    private final static int DATABASE_VERSION = 1;
+    static final String DATABASE_NAME = "shelter.db";
+
+    /** Full-text index over the name and breed of every pet, keyed by docid = pets._id */
+    static final String FTS_TABLE_NAME = "pets_fts";
+
+    /** Summary tables kept up to date by triggers, read by the stats URI without a table scan */
+    static final String STATS_TOTALS_TABLE_NAME = "pet_stats_totals";
+    static final String STATS_GENDER_TABLE_NAME = "pet_stats_gender";
+    static final String STATS_BREED_TABLE_NAME = "pet_stats_breed";
+    static final String STATS_WEIGHT_TABLE_NAME = "pet_stats_weight";
+
+    /** Column of the summary tables holding the number of pets in a group */
+    static final String STATS_COLUMN_COUNT = "count";
+
+    /** Column of the totals table holding the sum of the weight of every pet */
+    static final String STATS_COLUMN_WEIGHT_SUM = "weight_sum";
+
+    /** The latest change of every recently changed pet, in the order they were made */
+    static final String CHANGES_TABLE_NAME = "pet_changes";
+
+    /**
+     * Single row table holding the sequence number up to which changes were compacted away,
+     * see {@link PetChangeLog}
+     */
+    static final String CHANGES_HORIZON_TABLE_NAME = "pet_changes_horizon";
+    static final String CHANGES_COLUMN_HORIZON = "horizon";
+
+    /**
+     * Single row table holding the origin logged with the changes being made, set to
+     * {@link PetContract.ChangesEntry#ORIGIN_REMOTE} for the time of a sync adapter's write
+     */
+    static final String CHANGES_ORIGIN_TABLE_NAME = "pet_changes_origin";
+
+    /** SQL expression for the origin of the change being logged, read by the change triggers */
+    private static final String CHANGE_ORIGIN = "(SELECT " + PetContract.ChangesEntry.COLUMN_ORIGIN
+            + " FROM " + CHANGES_ORIGIN_TABLE_NAME + ")";
+
+    /** Every breed name, stored once and referred to by the pets by id, see {@link PetBreeds} */
+    static final String BREEDS_TABLE_NAME = "breeds";
+    static final String BREEDS_COLUMN_NAME = "name";
+
+    /** Column of the pets table holding the id of the pet's breed, null if it has none */
+    static final String COLUMN_BREED_ID = "breed_id";
+
+    /** Breed id counting the pets without a breed in the breed stats. Breed ids start at 1. */
+    static final long NO_BREED_ID = 0;
+
+    /**
+     * The pets with the name of their breed, as the provider returns them. Reads go through the
+     * view, writes go to the pets table with the breed translated to its id.
+     */
+    static final String PETS_VIEW_NAME = "pets_view";
+
+    /**
+     * Column of the pets table holding the time in milliseconds the pet was deleted at, null
+     * while it is not. Deleted pets are hidden by the pets view until {@link PetPurger} removes
+     * them.
+     */
+    static final String COLUMN_DELETED_AT = "deleted_at";
+
+    /**
+     * Single row table holding the id up to which every pet is deleted, set by deleting all pets
+     * at once, see {@link PetPurger#deleteAll}
+     */
+    static final String DELETIONS_TABLE_NAME = "pet_deletions";
+    static final String DELETIONS_COLUMN_THROUGH = "deleted_through";
+
+    /** SQL expression for the id up to which every pet is deleted */
+    static final String DELETED_THROUGH = "(SELECT " + DELETIONS_COLUMN_THROUGH + " FROM "
+            + DELETIONS_TABLE_NAME + ")";
+
+    /**
+     * One step of the schema migration. The step for version N upgrades a version N-1 database
+     * to version N, and is never changed once released: later schema changes get a new step.
+     */
+    abstract static class Migration {
+        final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
+
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * Every migration step in version order, starting from the version 1 schema created by
+     * {@link #createVersion1}.
+     */
+    static final Migration[] MIGRATIONS = {
+            // Index backing the catalog sorted by name
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX pets_name_index ON " + PetContract.PetEntry.TABLE_NAME
+                            + " (" + PetContract.PetEntry.COLUMN_NAME + ");");
+                }
+            },
+            // Index backing filters on gender, and on gender and breed together
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX pets_gender_breed_index ON "
+                            + PetContract.PetEntry.TABLE_NAME
+                            + " (" + PetContract.PetEntry.COLUMN_GENDER + ", "
+                            + PetContract.PetEntry.COLUMN_BREED + ");");
+                }
+            },
+            // Full-text index for searching pets by name and breed, kept in sync by triggers
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    String pets = PetContract.PetEntry.TABLE_NAME;
+                    String name = PetContract.PetEntry.COLUMN_NAME;
+                    String breed = PetContract.PetEntry.COLUMN_BREED;
+                    String id = PetContract.PetEntry._ID;
+
+                    db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME
+                            + " USING fts4(" + name + ", " + breed + ");");
+                    db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (docid, " + name + ", " + breed
+                            + ") SELECT " + id + ", " + name + ", " + breed + " FROM " + pets + ";");
+                    db.execSQL("CREATE TRIGGER pets_fts_insert AFTER INSERT ON " + pets
+                            + " BEGIN INSERT INTO " + FTS_TABLE_NAME
+                            + " (docid, " + name + ", " + breed + ")"
+                            + " VALUES (NEW." + id + ", NEW." + name + ", NEW." + breed + "); END;");
+                    db.execSQL("CREATE TRIGGER pets_fts_update AFTER UPDATE OF "
+                            + name + ", " + breed + " ON " + pets
+                            + " BEGIN UPDATE " + FTS_TABLE_NAME
+                            + " SET " + name + " = NEW." + name + ", " + breed + " = NEW." + breed
+                            + " WHERE docid = OLD." + id + "; END;");
+                    db.execSQL("CREATE TRIGGER pets_fts_delete AFTER DELETE ON " + pets
+                            + " BEGIN DELETE FROM " + FTS_TABLE_NAME
+                            + " WHERE docid = OLD." + id + "; END;");
+                }
+            },
+            // Pet counts per gender, per breed and per weight, and the weight total, kept
+            // up to date by triggers so the stats never scan the pets table
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    String pets = PetContract.PetEntry.TABLE_NAME;
+                    String gender = PetContract.PetEntry.COLUMN_GENDER;
+                    String breed = PetContract.PetEntry.COLUMN_BREED;
+                    String weight = PetContract.PetEntry.COLUMN_WEIGHT;
+                    String count = STATS_COLUMN_COUNT;
+                    String weightSum = STATS_COLUMN_WEIGHT_SUM;
+
+                    // A single row, with _id 0
+                    db.execSQL("CREATE TABLE " + STATS_TOTALS_TABLE_NAME + " ("
+                            + PetContract.PetEntry._ID + " INTEGER PRIMARY KEY CHECK ("
+                            + PetContract.PetEntry._ID + " = 0), "
+                            + count + " INTEGER NOT NULL, " + weightSum + " INTEGER NOT NULL);");
+                    db.execSQL("CREATE TABLE " + STATS_GENDER_TABLE_NAME + " ("
+                            + gender + " INTEGER PRIMARY KEY, " + count + " INTEGER NOT NULL);");
+                    // Pets without a breed are counted under the empty breed
+                    db.execSQL("CREATE TABLE " + STATS_BREED_TABLE_NAME + " ("
+                            + breed + " TEXT PRIMARY KEY NOT NULL, " + count + " INTEGER NOT NULL);");
+                    // Only weights with pets have a row, so min() and max() are index lookups
+                    db.execSQL("CREATE TABLE " + STATS_WEIGHT_TABLE_NAME + " ("
+                            + weight + " INTEGER PRIMARY KEY, " + count + " INTEGER NOT NULL);");
+
+                    db.execSQL("INSERT INTO " + STATS_TOTALS_TABLE_NAME + " ("
+                            + PetContract.PetEntry._ID + ", " + count + ", " + weightSum + ")"
+                            + " SELECT 0, count(*), ifnull(sum(" + weight + "), 0) FROM " + pets
+                            + ";");
+                    db.execSQL("INSERT INTO " + STATS_GENDER_TABLE_NAME + " (" + gender + ", "
+                            + count + ") SELECT " + gender + ", count(*) FROM " + pets
+                            + " GROUP BY " + gender + ";");
+                    db.execSQL("INSERT INTO " + STATS_BREED_TABLE_NAME + " (" + breed + ", "
+                            + count + ") SELECT ifnull(" + breed + ", ''), count(*) FROM " + pets
+                            + " GROUP BY ifnull(" + breed + ", '');");
+                    db.execSQL("INSERT INTO " + STATS_WEIGHT_TABLE_NAME + " (" + weight + ", "
+                            + count + ") SELECT " + weight + ", count(*) FROM " + pets
+                            + " GROUP BY " + weight + ";");
+
+                    db.execSQL("CREATE TRIGGER pet_stats_insert AFTER INSERT ON " + pets
+                            + " BEGIN " + countStats("NEW", "+", breed, "''") + "END;");
+                    db.execSQL("CREATE TRIGGER pet_stats_update AFTER UPDATE OF "
+                            + gender + ", " + breed + ", " + weight + " ON " + pets
+                            + " BEGIN " + countStats("OLD", "-", breed, "''")
+                            + countStats("NEW", "+", breed, "''") + "END;");
+                    db.execSQL("CREATE TRIGGER pet_stats_delete AFTER DELETE ON " + pets
+                            + " BEGIN " + countStats("OLD", "-", breed, "''") + "END;");
+                }
+            },
+            // Index backing the weight range filter and the catalog sorted by weight
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX pets_weight_index ON " + PetContract.PetEntry.TABLE_NAME
+                            + " (" + PetContract.PetEntry.COLUMN_WEIGHT + ");");
+                }
+            },
+            // Change log of the pets table, written by triggers
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    String id = PetContract.PetEntry._ID;
+                    String changes = CHANGES_TABLE_NAME;
+                    String seq = PetContract.ChangesEntry.COLUMN_SEQUENCE;
+                    String petId = PetContract.ChangesEntry.COLUMN_PET_ID;
+                    String operation = PetContract.ChangesEntry.COLUMN_OPERATION;
+
+                    // AUTOINCREMENT so sequence numbers are never reused after compaction
+                    db.execSQL("CREATE TABLE " + changes + " (" + seq
+                            + " INTEGER PRIMARY KEY AUTOINCREMENT, " + petId + " INTEGER NOT NULL, "
+                            + operation + " INTEGER NOT NULL);");
+                    db.execSQL("CREATE INDEX pet_changes_pet_index ON " + changes
+                            + " (" + petId + ");");
+                    db.execSQL("CREATE TABLE " + CHANGES_HORIZON_TABLE_NAME + " ("
+                            + id + " INTEGER PRIMARY KEY CHECK (" + id + " = 0), "
+                            + CHANGES_COLUMN_HORIZON + " INTEGER NOT NULL);");
+                    db.execSQL("INSERT INTO " + CHANGES_HORIZON_TABLE_NAME + " (" + id + ", "
+                            + CHANGES_COLUMN_HORIZON + ") VALUES (0, 0);");
+
+                    createChangeTriggers(db, null);
+                }
+            },
+            // Origin of every change, so a sync adapter can tell its own writes from local ones
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    String id = PetContract.PetEntry._ID;
+                    db.execSQL("ALTER TABLE " + CHANGES_TABLE_NAME + " ADD COLUMN "
+                            + PetContract.ChangesEntry.COLUMN_ORIGIN + " INTEGER NOT NULL DEFAULT "
+                            + PetContract.ChangesEntry.ORIGIN_LOCAL + ";");
+                    db.execSQL("CREATE TABLE " + CHANGES_ORIGIN_TABLE_NAME + " ("
+                            + id + " INTEGER PRIMARY KEY CHECK (" + id + " = 0), "
+                            + PetContract.ChangesEntry.COLUMN_ORIGIN + " INTEGER NOT NULL);");
+                    db.execSQL("INSERT INTO " + CHANGES_ORIGIN_TABLE_NAME + " (" + id + ", "
+                            + PetContract.ChangesEntry.COLUMN_ORIGIN + ") VALUES (0, "
+                            + PetContract.ChangesEntry.ORIGIN_LOCAL + ");");
+                    db.execSQL("DROP TRIGGER pet_changes_insert;");
+                    db.execSQL("DROP TRIGGER pet_changes_update;");
+                    db.execSQL("DROP TRIGGER pet_changes_delete;");
+                    createChangeTriggers(db, CHANGE_ORIGIN);
+                }
+            },
+            // Breed names stored once in a dictionary, the pets referring to them by id. SQLite
+            // cannot drop a column, so the pets table is rebuilt with the same ids, and its
+            // indexes and triggers are created again on the breed id.
+            new Migration(9) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    String pets = PetContract.PetEntry.TABLE_NAME;
+                    String id = PetContract.PetEntry._ID;
+                    String name = PetContract.PetEntry.COLUMN_NAME;
+                    String breed = PetContract.PetEntry.COLUMN_BREED;
+                    String gender = PetContract.PetEntry.COLUMN_GENDER;
+                    String weight = PetContract.PetEntry.COLUMN_WEIGHT;
+                    String breedId = COLUMN_BREED_ID;
+                    String breeds = BREEDS_TABLE_NAME;
+                    String breedName = BREEDS_COLUMN_NAME;
+                    String count = STATS_COLUMN_COUNT;
+                    String rebuilt = pets + "_new";
+
+                    db.execSQL("CREATE TABLE " + breeds + " (" + id + " INTEGER PRIMARY KEY, "
+                            + breedName + " TEXT NOT NULL UNIQUE);");
+                    // An empty breed was already filtered and counted as no breed, and now is one
+                    db.execSQL("INSERT INTO " + breeds + " (" + breedName + ") SELECT DISTINCT "
+                            + breed + " FROM " + pets + " WHERE " + breed + " != '' ORDER BY "
+                            + breed + ";");
+
+                    db.execSQL("CREATE TABLE " + rebuilt + " (" + id
+                            + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + name + " TEXT NOT NULL, "
+                            + breedId + " INTEGER REFERENCES " + breeds + " (" + id + "), "
+                            + gender + " INTEGER NOT NULL, "
+                            + weight + " INTEGER NOT NULL DEFAULT 0);");
+                    db.execSQL("INSERT INTO " + rebuilt + " (" + id + ", " + name + ", " + breedId
+                            + ", " + gender + ", " + weight + ") SELECT " + pets + "." + id + ", "
+                            + pets + "." + name + ", " + breeds + "." + id + ", "
+                            + pets + "." + gender + ", " + pets + "." + weight + " FROM " + pets
+                            + " LEFT JOIN " + breeds + " ON " + breeds + "." + breedName + " = "
+                            + pets + "." + breed + ";");
+                    // Carry the id sequence over, so the ids of deleted pets are not reused
+                    db.execSQL("DELETE FROM sqlite_sequence WHERE name = '" + rebuilt + "';");
+                    db.execSQL("UPDATE sqlite_sequence SET name = '" + rebuilt + "' WHERE name = '"
+                            + pets + "';");
+                    // Also drops the indexes and triggers of the old table
+                    db.execSQL("DROP TABLE " + pets + ";");
+                    db.execSQL("ALTER TABLE " + rebuilt + " RENAME TO " + pets + ";");
+
+                    db.execSQL("CREATE INDEX pets_name_index ON " + pets + " (" + name + ");");
+                    db.execSQL("CREATE INDEX pets_gender_breed_index ON " + pets + " (" + gender
+                            + ", " + breedId + ");");
+                    db.execSQL("CREATE INDEX pets_weight_index ON " + pets + " (" + weight + ");");
+
+                    // The full-text index keeps the breed names, so its rows stay as they are
+                    String breedOfNew = "(SELECT " + breedName + " FROM " + breeds + " WHERE "
+                            + id + " = NEW." + breedId + ")";
+                    db.execSQL("CREATE TRIGGER pets_fts_insert AFTER INSERT ON " + pets
+                            + " BEGIN INSERT INTO " + FTS_TABLE_NAME
+                            + " (docid, " + name + ", " + breed + ")"
+                            + " VALUES (NEW." + id + ", NEW." + name + ", " + breedOfNew
+                            + "); END;");
+                    db.execSQL("CREATE TRIGGER pets_fts_update AFTER UPDATE OF "
+                            + name + ", " + breedId + " ON " + pets
+                            + " BEGIN UPDATE " + FTS_TABLE_NAME
+                            + " SET " + name + " = NEW." + name + ", " + breed + " = " + breedOfNew
+                            + " WHERE docid = OLD." + id + "; END;");
+                    db.execSQL("CREATE TRIGGER pets_fts_delete AFTER DELETE ON " + pets
+                            + " BEGIN DELETE FROM " + FTS_TABLE_NAME
+                            + " WHERE docid = OLD." + id + "; END;");
+
+                    // Breed counts keyed by breed id, pets without a breed under NO_BREED_ID
+                    String noBreed = String.valueOf(NO_BREED_ID);
+                    db.execSQL("DROP TABLE " + STATS_BREED_TABLE_NAME + ";");
+                    db.execSQL("CREATE TABLE " + STATS_BREED_TABLE_NAME + " ("
+                            + breedId + " INTEGER PRIMARY KEY, " + count + " INTEGER NOT NULL);");
+                    db.execSQL("INSERT INTO " + STATS_BREED_TABLE_NAME + " (" + breedId + ", "
+                            + count + ") SELECT ifnull(" + breedId + ", " + noBreed + "), count(*)"
+                            + " FROM " + pets + " GROUP BY ifnull(" + breedId + ", " + noBreed
+                            + ");");
+                    db.execSQL("CREATE TRIGGER pet_stats_insert AFTER INSERT ON " + pets
+                            + " BEGIN " + countStats("NEW", "+", breedId, noBreed) + "END;");
+                    db.execSQL("CREATE TRIGGER pet_stats_update AFTER UPDATE OF "
+                            + gender + ", " + breedId + ", " + weight + " ON " + pets
+                            + " BEGIN " + countStats("OLD", "-", breedId, noBreed)
+                            + countStats("NEW", "+", breedId, noBreed) + "END;");
+                    db.execSQL("CREATE TRIGGER pet_stats_delete AFTER DELETE ON " + pets
+                            + " BEGIN " + countStats("OLD", "-", breedId, noBreed) + "END;");
+
+                    createChangeTriggers(db, CHANGE_ORIGIN);
+
+                    db.execSQL("CREATE VIEW " + PETS_VIEW_NAME + " AS SELECT "
+                            + pets + "." + id + " AS " + id + ", "
+                            + pets + "." + name + " AS " + name + ", "
+                            + breeds + "." + breedName + " AS " + breed + ", "
+                            + pets + "." + gender + " AS " + gender + ", "
+                            + pets + "." + weight + " AS " + weight + ", "
+                            + pets + "." + breedId + " AS " + breedId
+                            + " FROM " + pets + " LEFT JOIN " + breeds + " ON "
+                            + breeds + "." + id + " = " + pets + "." + breedId + ";");
+                }
+            },
+            // Soft deletes: a pet is deleted by setting its deletion time, or by moving the id
+            // up to which every pet is deleted, and PetPurger removes the rows later. Deleted
+            // pets leave the stats and the change log when they are deleted, not when purged.
+            new Migration(10) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    String pets = PetContract.PetEntry.TABLE_NAME;
+                    String id = PetContract.PetEntry._ID;
+                    String name = PetContract.PetEntry.COLUMN_NAME;
+                    String breed = PetContract.PetEntry.COLUMN_BREED;
+                    String gender = PetContract.PetEntry.COLUMN_GENDER;
+                    String weight = PetContract.PetEntry.COLUMN_WEIGHT;
+                    String breedId = COLUMN_BREED_ID;
+                    String deletedAt = COLUMN_DELETED_AT;
+                    String breeds = BREEDS_TABLE_NAME;
+                    String noBreed = String.valueOf(NO_BREED_ID);
+
+                    db.execSQL("ALTER TABLE " + pets + " ADD COLUMN " + deletedAt + " INTEGER;");
+                    // Lets the purger find the deleted pets without a table scan
+                    db.execSQL("CREATE INDEX pets_deleted_index ON " + pets + " (" + deletedAt
+                            + ");");
+                    db.execSQL("CREATE TABLE " + DELETIONS_TABLE_NAME + " ("
+                            + id + " INTEGER PRIMARY KEY CHECK (" + id + " = 0), "
+                            + DELETIONS_COLUMN_THROUGH + " INTEGER NOT NULL);");
+                    db.execSQL("INSERT INTO " + DELETIONS_TABLE_NAME + " (" + id + ", "
+                            + DELETIONS_COLUMN_THROUGH + ") VALUES (0, 0);");
+
+                    // Deleting a pet removes it from the stats, purging it does not
+                    db.execSQL("DROP TRIGGER pet_stats_delete;");
+                    db.execSQL("CREATE TRIGGER pet_stats_delete AFTER DELETE ON " + pets
+                            + " WHEN " + isLive("OLD") + " BEGIN "
+                            + countStats("OLD", "-", breedId, noBreed) + "END;");
+                    db.execSQL("CREATE TRIGGER pet_stats_tombstone AFTER UPDATE OF " + deletedAt
+                            + " ON " + pets + " WHEN " + isTombstoned() + " BEGIN "
+                            + countStats("OLD", "-", breedId, noBreed) + "END;");
+
+                    db.execSQL("DROP TRIGGER pet_changes_insert;");
+                    db.execSQL("DROP TRIGGER pet_changes_update;");
+                    db.execSQL("DROP TRIGGER pet_changes_delete;");
+                    createChangeTriggers(db, CHANGE_ORIGIN, true);
+
+                    db.execSQL("DROP VIEW " + PETS_VIEW_NAME + ";");
+                    db.execSQL("CREATE VIEW " + PETS_VIEW_NAME + " AS SELECT "
+                            + pets + "." + id + " AS " + id + ", "
+                            + pets + "." + name + " AS " + name + ", "
+                            + breeds + "." + BREEDS_COLUMN_NAME + " AS " + breed + ", "
+                            + pets + "." + gender + " AS " + gender + ", "
+                            + pets + "." + weight + " AS " + weight + ", "
+                            + pets + "." + breedId + " AS " + breedId
+                            + " FROM " + pets + " LEFT JOIN " + breeds + " ON "
+                            + breeds + "." + id + " = " + pets + "." + breedId
+                            + " WHERE " + isLive(pets) + ";");
+                }
+            },
+            // Pets deleted all at once already left the stats when the bound moved, so giving
+            // them a deletion time later must not count them out again
+            new Migration(11) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    String pets = PetContract.PetEntry.TABLE_NAME;
+                    db.execSQL("DROP TRIGGER pet_stats_tombstone;");
+                    db.execSQL("CREATE TRIGGER pet_stats_tombstone AFTER UPDATE OF "
+                            + COLUMN_DELETED_AT + " ON " + pets + " WHEN " + isTombstoned()
+                            + " AND OLD." + PetContract.PetEntry._ID + " > " + DELETED_THROUGH
+                            + " BEGIN " + countStats("OLD", "-", COLUMN_BREED_ID,
+                            String.valueOf(NO_BREED_ID)) + "END;");
+                }
+            },
+            // Deleting every pet logs a reset, see PetPurger#deleteAll, so purging the pets it
+            // deleted is not logged again
+            new Migration(12) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("DROP TRIGGER pet_changes_delete;");
+                    db.execSQL("CREATE TRIGGER pet_changes_delete AFTER DELETE ON "
+                            + PetContract.PetEntry.TABLE_NAME + " WHEN " + isLive("OLD")
+                            + " BEGIN " + logChange("OLD." + PetContract.PetEntry._ID,
+                            PetContract.ChangesEntry.OPERATION_DELETE, CHANGE_ORIGIN) + "END;");
+                }
+            },
+    };
+
+    /**
+     * Returns the SQL condition holding for the {@code row} (a table name, NEW or OLD) pet if it
+     * is not deleted.
+     */
+    static String isLive(String row) {
+        return row + "." + COLUMN_DELETED_AT + " IS NULL AND " + row + "."
+                + PetContract.PetEntry._ID + " > " + DELETED_THROUGH;
+    }
+
+    /**
+     * Returns the trigger condition of an update deleting a pet. Only pets that are not deleted
+     * are ever updated, so their deletion time going from null to set is their deletion.
+     */
+    private static String isTombstoned() {
+        return "OLD." + COLUMN_DELETED_AT + " IS NULL AND NEW." + COLUMN_DELETED_AT
+                + " IS NOT NULL";
+    }
+
+    private static void createChangeTriggers(SQLiteDatabase db, String origin) {
+        createChangeTriggers(db, origin, false);
+    }
+
+    /**
+     * Create the triggers logging every change of the pets table. Each change replaces the
+     * earlier changes of the same pet, so the log holds at most one entry per pet.
+     *
+     * @param origin     SQL expression for the origin of a change, or null before the log had one
+     * @param tombstones whether pets are deleted by setting their deletion time: that update is
+     *                   logged as their deletion, and only pets deleted all at once are logged
+     *                   when they are purged
+     */
+    private static void createChangeTriggers(SQLiteDatabase db, String origin,
+                                             boolean tombstones) {
+        String pets = PetContract.PetEntry.TABLE_NAME;
+        String id = PetContract.PetEntry._ID;
+        db.execSQL("CREATE TRIGGER pet_changes_insert AFTER INSERT ON " + pets
+                + " BEGIN " + logChange("NEW." + id,
+                PetContract.ChangesEntry.OPERATION_INSERT, origin) + "END;");
+        // A changed id is logged as the old pet deleted and the new one updated
+        db.execSQL("CREATE TRIGGER pet_changes_update AFTER UPDATE ON " + pets
+                + (tombstones ? " WHEN NEW." + COLUMN_DELETED_AT + " IS NULL" : "")
+                + " BEGIN DELETE FROM " + CHANGES_TABLE_NAME + " WHERE "
+                + PetContract.ChangesEntry.COLUMN_PET_ID + " = OLD." + id
+                + " AND OLD." + id + " != NEW." + id + "; "
+                + "INSERT INTO " + CHANGES_TABLE_NAME + " (" + changeColumns(origin) + ")"
+                + " SELECT OLD." + id + ", " + PetContract.ChangesEntry.OPERATION_DELETE
+                + (origin == null ? "" : ", " + origin)
+                + " WHERE OLD." + id + " != NEW." + id + "; "
+                + logChange("NEW." + id, PetContract.ChangesEntry.OPERATION_UPDATE, origin)
+                + "END;");
+        db.execSQL("CREATE TRIGGER pet_changes_delete AFTER DELETE ON " + pets
+                + (tombstones ? " WHEN OLD." + COLUMN_DELETED_AT + " IS NULL" : "")
+                + " BEGIN " + logChange("OLD." + id,
+                PetContract.ChangesEntry.OPERATION_DELETE, origin) + "END;");
+        if (tombstones) {
+            db.execSQL("CREATE TRIGGER pet_changes_tombstone AFTER UPDATE OF " + COLUMN_DELETED_AT
+                    + " ON " + pets + " WHEN " + isTombstoned() + " BEGIN "
+                    + logChange("OLD." + id, PetContract.ChangesEntry.OPERATION_DELETE, origin)
+                    + "END;");
+        }
+    }
+
+    /**
+     * Returns the trigger statements replacing the logged change of the given pet id.
+     */
+    private static String logChange(String petId, int operation, String origin) {
+        return "DELETE FROM " + CHANGES_TABLE_NAME
+                + " WHERE " + PetContract.ChangesEntry.COLUMN_PET_ID + " = " + petId + "; "
+                + "INSERT INTO " + CHANGES_TABLE_NAME + " (" + changeColumns(origin)
+                + ") VALUES (" + petId + ", " + operation
+                + (origin == null ? "" : ", " + origin) + "); ";
+    }
+
+    private static String changeColumns(String origin) {
+        return PetContract.ChangesEntry.COLUMN_PET_ID + ", "
+                + PetContract.ChangesEntry.COLUMN_OPERATION
+                + (origin == null ? "" : ", " + PetContract.ChangesEntry.COLUMN_ORIGIN);
+    }
+
+    /**
+     * Returns the trigger statements adding ("+") or removing ("-") the {@code row} (NEW or OLD)
+     * pet to or from the summary tables. Groups left without pets are deleted.
+     *
+     * @param breedColumn column of the pets and breed stats tables the breed groups are keyed by
+     * @param noBreed     SQL literal of the key counting the pets without a breed
+     */
+    static String countStats(String row, String sign, String breedColumn, String noBreed) {
+        String count = STATS_COLUMN_COUNT;
+        String breed = "ifnull(" + row + "." + breedColumn + ", " + noBreed + ")";
+        StringBuilder sql = new StringBuilder();
+        sql.append("UPDATE ").append(STATS_TOTALS_TABLE_NAME)
+                .append(" SET ").append(count).append(" = ").append(count).append(' ').append(sign).append(" 1, ")
+                .append(STATS_COLUMN_WEIGHT_SUM).append(" = ").append(STATS_COLUMN_WEIGHT_SUM)
+                .append(' ').append(sign).append(' ').append(row).append('.').append(PetContract.PetEntry.COLUMN_WEIGHT)
+                .append("; ");
+        countGroup(sql, STATS_GENDER_TABLE_NAME, PetContract.PetEntry.COLUMN_GENDER,
+                row + "." + PetContract.PetEntry.COLUMN_GENDER, sign);
+        countGroup(sql, STATS_BREED_TABLE_NAME, breedColumn, breed, sign);
+        countGroup(sql, STATS_WEIGHT_TABLE_NAME, PetContract.PetEntry.COLUMN_WEIGHT,
+                row + "." + PetContract.PetEntry.COLUMN_WEIGHT, sign);
+        return sql.toString();
+    }
+
+    private static void countGroup(StringBuilder sql, String table, String column, String value,
+                                   String sign) {
+        String count = STATS_COLUMN_COUNT;
+        if (sign.equals("+")) {
+            sql.append("INSERT OR IGNORE INTO ").append(table).append(" (").append(column)
+                    .append(", ").append(count).append(") VALUES (").append(value).append(", 0); ");
+        }
+        sql.append("UPDATE ").append(table).append(" SET ").append(count).append(" = ")
+                .append(count).append(' ').append(sign).append(" 1 WHERE ").append(column).append(" = ")
+                .append(value).append("; ");
+        if (sign.equals("-")) {
+            sql.append("DELETE FROM ").append(table).append(" WHERE ").append(column)
+                    .append(" = ").append(value).append(" AND ").append(count).append(" = 0; ");
+        }
+    }
+
+    private final static int DATABASE_VERSION = MIGRATIONS[MIGRATIONS.length - 1].version;
+
+    static {
+        for (int i = 0; i < MIGRATIONS.length; i++) {
+            if (MIGRATIONS[i].version != i + 2) {
+                throw new IllegalStateException("Migration " + i + " targets version "
+                        + MIGRATIONS[i].version + " instead of " + (i + 2));
+            }
+        }
+    }
+
+    /** PRAGMA synchronous levels. In WAL mode NORMAL only syncs at checkpoints. */
+    public static final int SYNCHRONOUS_OFF = 0;
+    public static final int SYNCHRONOUS_NORMAL = 1;
+    public static final int SYNCHRONOUS_FULL = 2;
+
+    /** Default number of WAL pages after which the log is checkpointed into the database */
+    public static final int DEFAULT_AUTOCHECKPOINT_PAGES = 1000;
+
+    /** Size in bytes the WAL file is truncated back to after a checkpoint */
+    private static final long JOURNAL_SIZE_LIMIT = 4 * 1024 * 1024;
+
+    private final int mSynchronous;
+    private final int mAutoCheckpointPages;
 
     public PetDbHelper(Context context) {
+        this(context, SYNCHRONOUS_NORMAL, DEFAULT_AUTOCHECKPOINT_PAGES);
+    }
+
+    /**
+     * Creates a helper for a database in write-ahead logging mode, so readers use their own
+     * pooled connections and do not wait for writers.
+     *
+     * @param synchronous         one of the SYNCHRONOUS_ levels
+     * @param autoCheckpointPages WAL size in pages that triggers a checkpoint, 0 to disable
+     */
+    public PetDbHelper(Context context, int synchronous, int autoCheckpointPages) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mSynchronous = synchronous;
+        mAutoCheckpointPages = autoCheckpointPages;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        configure(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        // onConfigure() only exists since Jelly Bean
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+            configure(db);
+        }
+    }
+
+    private void configure(SQLiteDatabase db) {
+        // Lets PetPurger hand the pages of purged pets back to the file system. Only takes
+        // effect in a database created after it is set, older ones keep their free pages.
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.execSQL("PRAGMA synchronous = " + mSynchronous);
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + mAutoCheckpointPages, null);
+        DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit = " + JOURNAL_SIZE_LIMIT, null);
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        createVersion1(sqLiteDatabase);
+        migrate(sqLiteDatabase, 1, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        migrate(sqLiteDatabase, oldVersion, newVersion);
+    }
+
+    /**
+     * Create the schema as it was released in version 1. New databases are brought up to date
+     * by running every migration step on top of it, the same way existing databases are.
+     */
+    static void createVersion1(SQLiteDatabase db) {
         String SQL_CREATE_TABLE =
                 "CREATE TABLE " + PetContract.PetEntry.TABLE_NAME
                 + " (" + PetContract.PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -22,11 +640,206 @@ public class PetDbHelper extends SQLiteOpenHelper {
                 + PetContract.PetEntry.COLUMN_BREED + " TEXT, "
                 + PetContract.PetEntry.COLUMN_GENDER + " INTEGER NOT NULL, "
                 + PetContract.PetEntry.COLUMN_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
-        sqLiteDatabase.execSQL(SQL_CREATE_TABLE);
+        db.execSQL(SQL_CREATE_TABLE);
     }
 
-    @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
+    /**
+     * Write a copy of the database to {@code destination}, which must not exist or be empty.
+     * The copy can be opened as a pets database of the current version. It holds the pets that
+     * are not deleted and a change log of one insert per pet, as if they had been inserted into
+     * a new database in id order, whichever way it was made.
+     *
+     * Since API 30 the copy is made by VACUUM INTO, in one read transaction on a read-only
+     * handle of its own: run through this helper's database it would hold the one connection
+     * every write of the provider goes through until the whole copy is written. In WAL mode the
+     * read transaction does not block writers. The deleted pets and the history of the change
+     * log are then dropped from the copy. Before API 30 the schema is created in the new file
+     * and the pets are copied over in chunks of {@code chunkSize} ids, each in its own short
+     * read, so pets written meanwhile may or may not be included. The tables derived from the
+     * pets are filled by their triggers.
+     */
+    void snapshot(File destination, int chunkSize) {
+        SQLiteDatabase source = getReadableDatabase();
+        if (Build.VERSION.SDK_INT >= 30) {
+            SQLiteDatabase reader = SQLiteDatabase.openDatabase(source.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+            try {
+                reader.execSQL("VACUUM INTO ?", new Object[] { destination.getPath() });
+            } finally {
+                reader.close();
+            }
+            SQLiteDatabase copy = SQLiteDatabase.openDatabase(destination.getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE);
+            try {
+                dropHistory(copy);
+            } finally {
+                copy.close();
+            }
+            return;
+        }
+
+        SQLiteDatabase copy = SQLiteDatabase.openOrCreateDatabase(destination, null);
+        try {
+            copy.beginTransaction();
+            try {
+                createVersion1(copy);
+                migrate(copy, 1, DATABASE_VERSION);
+                copyPets(source, copy, chunkSize);
+                copy.setVersion(DATABASE_VERSION);
+                copy.setTransactionSuccessful();
+            } finally {
+                copy.endTransaction();
+            }
+        } finally {
+            copy.close();
+        }
+    }
+
+    /**
+     * Reduce a copy made by VACUUM INTO to what the copy made pet by pet holds: the deleted pets
+     * are removed, the delete-all bound goes back to 0, and the change log is written again as
+     * one insert per pet, numbered from 1. The ids are counted from the last pet left.
+     */
+    private static void dropHistory(SQLiteDatabase copy) {
+        String pets = PetContract.PetEntry.TABLE_NAME;
+        String id = PetContract.PetEntry._ID;
+        copy.beginTransaction();
+        try {
+            // Not live, so only the full-text index triggers follow them
+            copy.execSQL("DELETE FROM " + pets + " WHERE NOT (" + isLive(pets) + ");");
+            copy.execSQL("UPDATE " + DELETIONS_TABLE_NAME + " SET " + DELETIONS_COLUMN_THROUGH
+                    + " = 0;");
+            copy.execSQL("DELETE FROM sqlite_sequence WHERE name IN ('" + pets + "', '"
+                    + CHANGES_TABLE_NAME + "');");
+            copy.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" + pets + "', max("
+                    + id + ") FROM " + pets + " HAVING count(*) > 0;");
+            copy.execSQL("DELETE FROM " + CHANGES_TABLE_NAME + ";");
+            copy.execSQL("INSERT INTO " + CHANGES_TABLE_NAME + " ("
+                    + PetContract.ChangesEntry.COLUMN_PET_ID + ", "
+                    + PetContract.ChangesEntry.COLUMN_OPERATION + ", "
+                    + PetContract.ChangesEntry.COLUMN_ORIGIN + ") SELECT " + id + ", "
+                    + PetContract.ChangesEntry.OPERATION_INSERT + ", "
+                    + PetContract.ChangesEntry.ORIGIN_LOCAL + " FROM " + pets
+                    + " ORDER BY " + id + ";");
+            copy.execSQL("UPDATE " + CHANGES_HORIZON_TABLE_NAME + " SET "
+                    + CHANGES_COLUMN_HORIZON + " = 0;");
+            copy.execSQL("UPDATE " + CHANGES_ORIGIN_TABLE_NAME + " SET "
+                    + PetContract.ChangesEntry.COLUMN_ORIGIN + " = "
+                    + PetContract.ChangesEntry.ORIGIN_LOCAL + ";");
+            copy.setTransactionSuccessful();
+        } finally {
+            copy.endTransaction();
+        }
+    }
+
+    /**
+     * Copy every column of every pet that is not deleted, in id order, chunk by chunk, along
+     * with the breeds they refer to. Breeds are only ever added, so the breeds read after a chunk
+     * of pets include every breed of the chunk, and are copied before it for its triggers to find
+     * them.
+     */
+    private static void copyPets(SQLiteDatabase source, SQLiteDatabase copy, int chunkSize) {
+        String[] afterPet = { "0" };
+        String[] afterBreed = { "0" };
+        while (true) {
+            Cursor pets = source.query(PetContract.PetEntry.TABLE_NAME, null,
+                    PetContract.PetEntry._ID + ">? AND " + isLive(PetContract.PetEntry.TABLE_NAME),
+                    afterPet, null, null,
+                    PetContract.PetEntry._ID + " ASC", String.valueOf(chunkSize));
+            try {
+                int count = pets.getCount();
+                Cursor breeds = source.query(BREEDS_TABLE_NAME, null,
+                        PetContract.PetEntry._ID + ">?", afterBreed, null, null,
+                        PetContract.PetEntry._ID + " ASC");
+                try {
+                    copyRows(breeds, copy, BREEDS_TABLE_NAME, afterBreed);
+                } finally {
+                    breeds.close();
+                }
+                copyRows(pets, copy, PetContract.PetEntry.TABLE_NAME, afterPet);
+                if (count < chunkSize) {
+                    return;
+                }
+            } finally {
+                pets.close();
+            }
+        }
+    }
+
+    /**
+     * Insert every row of the cursor into the table of the same name in the copy, setting
+     * {@code lastId[0]} to the id of the last row copied.
+     */
+    private static void copyRows(Cursor cursor, SQLiteDatabase copy, String table,
+                                 String[] lastId) {
+        if (cursor.getCount() == 0) {
+            return;
+        }
+        SQLiteStatement insert = copy.compileStatement(insertStatement(table,
+                cursor.getColumnNames()));
+        try {
+            int idColumn = cursor.getColumnIndexOrThrow(PetContract.PetEntry._ID);
+            while (cursor.moveToNext()) {
+                insert.clearBindings();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    bindColumn(insert, i + 1, cursor, i);
+                }
+                insert.executeInsert();
+                lastId[0] = cursor.getString(idColumn);
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static String insertStatement(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(')').toString();
+    }
+
+    private static void bindColumn(SQLiteStatement statement, int index, Cursor cursor,
+                                   int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                statement.bindNull(index);
+                break;
+            case Cursor.FIELD_TYPE_INTEGER:
+                statement.bindLong(index, cursor.getLong(column));
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                statement.bindDouble(index, cursor.getDouble(column));
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                statement.bindBlob(index, cursor.getBlob(column));
+                break;
+            default:
+                statement.bindString(index, cursor.getString(column));
+                break;
+        }
+    }
 
+    /**
+     * Run the migration steps upgrading a database from {@code fromVersion} to {@code toVersion}
+     * in order, inside a single transaction: either every step is applied or none is.
+     */
+    static void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        db.beginTransaction();
+        try {
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version > fromVersion && migration.version <= toVersion) {
+                    migration.migrate(db);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 }
@@ -0,0 +1,172 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.util.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Exports every pet from {@link PetProvider} as CSV or JSON to an output stream.
+ *
+ * Pets are read in chunks of consecutive ids, each chunk by its own short query, and written out
+ * before the next chunk is read. Memory use is bounded by the chunk size whatever the number of
+ * pets, no cursor window ever holds the whole table, and writers are only held off for the time
+ * of one chunk. Pets written during an export are included if their chunk has not been read yet.
+ *
+ * The CSV and JSON written can be read back by {@link PetImporter}. Exports block until every
+ * pet is written, so they must not run on the main thread.
+ */
+public final class PetExporter {
+
+    /** Default number of pets read per query */
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] COLUMNS = {
+            PetContract.PetEntry._ID,
+            PetContract.PetEntry.COLUMN_NAME,
+            PetContract.PetEntry.COLUMN_BREED,
+            PetContract.PetEntry.COLUMN_GENDER,
+            PetContract.PetEntry.COLUMN_WEIGHT
+    };
+
+    private final ContentResolver mResolver;
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+
+    public PetExporter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Set how many pets are read per query.
+     */
+    public PetExporter setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1: " + chunkSize);
+        }
+        mChunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Write every pet as UTF-8 CSV with a header line, in id order. The stream is flushed but
+     * not closed.
+     *
+     * @return the number of pets written
+     */
+    public int exportCsv(OutputStream out) throws IOException {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+        for (int i = 0; i < COLUMNS.length; i++) {
+            writer.write(i == 0 ? "" : ",");
+            writer.write(COLUMNS[i]);
+        }
+        writer.write("\r\n");
+
+        int exported = export(new RowWriter() {
+            @Override
+            public void write(Cursor cursor) throws IOException {
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    writer.write(i == 0 ? "" : ",");
+                    if (!cursor.isNull(i)) {
+                        writeCsvField(writer, cursor.getString(i));
+                    }
+                }
+                writer.write("\r\n");
+            }
+        });
+        writer.flush();
+        return exported;
+    }
+
+    /**
+     * Write every pet as a UTF-8 JSON array of objects, in id order. The stream is flushed but
+     * not closed.
+     *
+     * @return the number of pets written
+     */
+    public int exportJson(OutputStream out) throws IOException {
+        final JsonWriter writer = new JsonWriter(
+                new BufferedWriter(new OutputStreamWriter(out, UTF_8)));
+        writer.beginArray();
+        int exported = export(new RowWriter() {
+            @Override
+            public void write(Cursor cursor) throws IOException {
+                writer.beginObject();
+                writer.name(PetContract.PetEntry._ID).value(cursor.getLong(0));
+                writer.name(PetContract.PetEntry.COLUMN_NAME).value(cursor.getString(1));
+                writer.name(PetContract.PetEntry.COLUMN_BREED);
+                if (cursor.isNull(2)) {
+                    writer.nullValue();
+                } else {
+                    writer.value(cursor.getString(2));
+                }
+                writer.name(PetContract.PetEntry.COLUMN_GENDER).value(cursor.getInt(3));
+                writer.name(PetContract.PetEntry.COLUMN_WEIGHT).value(cursor.getInt(4));
+                writer.endObject();
+            }
+        });
+        writer.endArray();
+        writer.flush();
+        return exported;
+    }
+
+    private interface RowWriter {
+        void write(Cursor cursor) throws IOException;
+    }
+
+    /**
+     * Read the pets chunk by chunk in id order, continuing after the last id of every chunk,
+     * and pass each row to the writer.
+     */
+    private int export(RowWriter rowWriter) throws IOException {
+        int exported = 0;
+        long lastId = 0;
+        while (true) {
+            Cursor cursor = mResolver.query(
+                    PetContract.PetEntry.buildPageAfterIdUri(mChunkSize, lastId),
+                    COLUMNS, null, null, null);
+            if (cursor == null) {
+                throw new IOException("Pets could not be queried");
+            }
+            int count;
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    rowWriter.write(cursor);
+                    lastId = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            exported += count;
+            if (count < mChunkSize) {
+                return exported;
+            }
+        }
+    }
+
+    /**
+     * Write a CSV field, quoted if it holds a separator, a quote or a line break.
+     */
+    private static void writeCsvField(Writer writer, String field) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < field.length() && !quote; i++) {
+            char c = field.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            writer.write(field);
+            return;
+        }
+        writer.write('"');
+        writer.write(field.replace("\"", "\"\""));
+        writer.write('"');
+    }
+}
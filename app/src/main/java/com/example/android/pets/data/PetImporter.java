@@ -0,0 +1,427 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Imports pets from CSV or JSON exports into {@link PetProvider}.
+ *
+ * Records are parsed one at a time from the stream, mapped onto the {@link PetContract.PetEntry}
+ * columns and collected into chunks. Each chunk is validated in one pass, its invalid records
+ * are skipped and reported, and the others are written by one bulk insert, so one transaction
+ * per chunk.
+ * Memory use is bounded by the chunk size, whatever the size of the input.
+ *
+ * Imports block until the whole stream is read, so they must not run on the main thread.
+ */
+public final class PetImporter {
+
+    /** Default number of pets written per transaction */
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    /** Error code of records whose chunk could not be written, next to the PetValidator codes */
+    public static final int ERROR_WRITE_FAILED = 100;
+
+    /** Number of failed records reported one by one. Later failures are only counted. */
+    public static final int MAX_REPORTED_FAILURES = 100;
+
+    private static final String LOG_TAG = PetImporter.class.getSimpleName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Index of each column in the values read for a record */
+    private static final int NAME = 0;
+    private static final int BREED = 1;
+    private static final int GENDER = 2;
+    private static final int WEIGHT = 3;
+    private static final String[] COLUMNS = {
+            PetContract.PetEntry.COLUMN_NAME,
+            PetContract.PetEntry.COLUMN_BREED,
+            PetContract.PetEntry.COLUMN_GENDER,
+            PetContract.PetEntry.COLUMN_WEIGHT
+    };
+
+    /**
+     * Notified on the importing thread after every chunk is written.
+     */
+    public interface ProgressListener {
+        void onProgress(int recordsRead, int imported, int failed);
+    }
+
+    private final ContentResolver mResolver;
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private ProgressListener mListener;
+
+    public PetImporter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Set how many pets are written per transaction. Larger chunks import faster but hold the
+     * database for longer at a time.
+     */
+    public PetImporter setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1: " + chunkSize);
+        }
+        mChunkSize = chunkSize;
+        return this;
+    }
+
+    public PetImporter setProgressListener(ProgressListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Import a UTF-8 CSV file whose first line names the columns. Columns are matched to the
+     * pet columns by name ignoring case, and unknown columns are ignored. Fields may be quoted
+     * with double quotes, and quoted fields may hold commas, line breaks and doubled quotes.
+     *
+     * @throws IOException if the stream cannot be read or has no name column
+     */
+    public Result importCsv(InputStream in) throws IOException {
+        CsvParser parser = new CsvParser(new InputStreamReader(in, UTF_8));
+        List<String> header = parser.readRecord();
+        if (header == null) {
+            return new Result();
+        }
+
+        int[] columnOf = new int[header.size()];
+        boolean hasName = false;
+        for (int i = 0; i < header.size(); i++) {
+            columnOf[i] = columnIndex(header.get(i));
+            hasName |= columnOf[i] == NAME;
+        }
+        if (!hasName) {
+            throw new IOException("CSV header has no " + PetContract.PetEntry.COLUMN_NAME
+                    + " column: " + header);
+        }
+
+        Chunk chunk = new Chunk();
+        String[] fields = new String[COLUMNS.length];
+        List<String> record;
+        while ((record = parser.readRecord()) != null) {
+            Arrays.fill(fields, null);
+            for (int i = 0; i < record.size() && i < columnOf.length; i++) {
+                if (columnOf[i] >= 0) {
+                    fields[columnOf[i]] = record.get(i);
+                }
+            }
+            chunk.add(fields);
+        }
+        return chunk.finish();
+    }
+
+    /**
+     * Import a UTF-8 JSON array of pet objects. Members are matched to the pet columns by name
+     * ignoring case, and unknown members are ignored. Gender and weight may be numbers or
+     * strings.
+     *
+     * @throws IOException if the stream cannot be read or is not a JSON array of objects
+     */
+    public Result importJson(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, UTF_8));
+        Chunk chunk = new Chunk();
+        String[] fields = new String[COLUMNS.length];
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Arrays.fill(fields, null);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                int column = columnIndex(reader.nextName());
+                JsonToken token = reader.peek();
+                if (column < 0 || token == JsonToken.BEGIN_ARRAY
+                        || token == JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                } else if (token == JsonToken.NULL) {
+                    reader.nextNull();
+                } else if (token == JsonToken.BOOLEAN) {
+                    fields[column] = String.valueOf(reader.nextBoolean());
+                } else {
+                    fields[column] = reader.nextString();
+                }
+            }
+            reader.endObject();
+            chunk.add(fields);
+        }
+        reader.endArray();
+        return chunk.finish();
+    }
+
+    /**
+     * Returns a message describing a failure code, one of the PetValidator ERROR_ codes or
+     * {@link #ERROR_WRITE_FAILED}.
+     */
+    public static String describe(int error) {
+        if (error == ERROR_WRITE_FAILED) {
+            return "Pet could not be written";
+        }
+        return PetValidator.describe(error);
+    }
+
+    private static int columnIndex(String name) {
+        String column = name.trim().toLowerCase(Locale.US);
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Map the fields of a record onto pet columns. Fields that cannot be parsed are left out,
+     * so that validation rejects the record. A missing gender is unknown and a missing weight 0,
+     * as in the editor.
+     */
+    private static ContentValues toValues(String[] fields) {
+        ContentValues values = new ContentValues(COLUMNS.length);
+        String name = fields[NAME] == null ? null : fields[NAME].trim();
+        values.put(PetContract.PetEntry.COLUMN_NAME, name);
+
+        String breed = fields[BREED] == null ? null : fields[BREED].trim();
+        values.put(PetContract.PetEntry.COLUMN_BREED,
+                breed == null || breed.isEmpty() ? null : breed);
+
+        Integer gender = parseGender(fields[GENDER]);
+        if (gender != null) {
+            values.put(PetContract.PetEntry.COLUMN_GENDER, gender);
+        }
+
+        String weight = fields[WEIGHT] == null ? "" : fields[WEIGHT].trim();
+        try {
+            values.put(PetContract.PetEntry.COLUMN_WEIGHT,
+                    weight.isEmpty() ? 0 : Integer.parseInt(weight));
+        } catch (NumberFormatException e) {
+            // Left out, rejected as an invalid weight
+        }
+        return values;
+    }
+
+    private static Integer parseGender(String field) {
+        String gender = field == null ? "" : field.trim().toLowerCase(Locale.US);
+        switch (gender) {
+            case "":
+            case "unknown":
+                return PetContract.PetEntry.GENDER_UNKNOWN;
+            case "m":
+            case "male":
+                return PetContract.PetEntry.GENDER_MALE;
+            case "f":
+            case "female":
+                return PetContract.PetEntry.GENDER_FEMALE;
+            default:
+                try {
+                    return Integer.valueOf(gender);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+        }
+    }
+
+    /**
+     * Collects valid records and writes them once a chunk is full.
+     */
+    private class Chunk {
+        private final ContentValues[] mRows = new ContentValues[mChunkSize];
+        private final int[] mRecords = new int[mChunkSize];
+        private int mSize;
+        private final Result mResult = new Result();
+
+        void add(String[] fields) {
+            mRows[mSize] = toValues(fields);
+            mRecords[mSize] = ++mResult.mRecordsRead;
+            if (++mSize == mRows.length) {
+                flush();
+            }
+        }
+
+        Result finish() {
+            if (mSize > 0) {
+                flush();
+            }
+            return mResult;
+        }
+
+        private void flush() {
+            ContentValues[] rows = mSize == mRows.length ? mRows : Arrays.copyOf(mRows, mSize);
+            PetValidator.Result invalid = PetValidator.validateInserts(rows);
+            if (invalid != null) {
+                // Report the invalid records and move the valid ones up in their place
+                int valid = 0;
+                for (int i = 0, next = 0; i < mSize; i++) {
+                    if (next < invalid.size() && invalid.rowAt(next) == i) {
+                        mResult.fail(mRecords[i], invalid.errorAt(next++));
+                    } else {
+                        mRows[valid] = mRows[i];
+                        mRecords[valid] = mRecords[i];
+                        valid++;
+                    }
+                }
+                mSize = valid;
+                rows = Arrays.copyOf(mRows, mSize);
+            }
+            if (mSize > 0) {
+                try {
+                    mResult.mImported += mResolver.bulkInsert(PetContract.PetEntry.CONTENT_URI,
+                            rows);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to write records " + mRecords[0] + " to "
+                            + mRecords[mSize - 1], e);
+                    for (int i = 0; i < mSize; i++) {
+                        mResult.fail(mRecords[i], ERROR_WRITE_FAILED);
+                    }
+                }
+            }
+            Arrays.fill(mRows, null);
+            mSize = 0;
+
+            if (mListener != null) {
+                mListener.onProgress(mResult.mRecordsRead, mResult.mImported, mResult.mFailed);
+            }
+        }
+    }
+
+    /**
+     * The outcome of an import: how many records were read and imported, and which failed.
+     * Records are numbered from 1 in input order, not counting a CSV header.
+     */
+    public static final class Result {
+        private int mRecordsRead;
+        private int mImported;
+        private int mFailed;
+        private final List<int[]> mFailures = new ArrayList<>();
+
+        void fail(int record, int error) {
+            mFailed++;
+            if (mFailures.size() < MAX_REPORTED_FAILURES) {
+                mFailures.add(new int[] { record, error });
+            }
+        }
+
+        /** Returns the number of records read */
+        public int getRecordsRead() {
+            return mRecordsRead;
+        }
+
+        /** Returns the number of pets inserted */
+        public int getImported() {
+            return mImported;
+        }
+
+        /** Returns the number of records that were not imported */
+        public int getFailed() {
+            return mFailed;
+        }
+
+        /** Returns the number of failures reported one by one, at most MAX_REPORTED_FAILURES */
+        public int size() {
+            return mFailures.size();
+        }
+
+        /** Returns the number of the i-th reported failed record */
+        public int recordAt(int i) {
+            return mFailures.get(i)[0];
+        }
+
+        /** Returns the error code of the i-th reported failed record, see {@link #describe} */
+        public int errorAt(int i) {
+            return mFailures.get(i)[1];
+        }
+    }
+
+    /**
+     * Reads RFC 4180 CSV records from a reader, one record at a time.
+     */
+    private static final class CsvParser {
+        private final Reader mReader;
+        private final char[] mBuffer = new char[8192];
+        private int mPosition;
+        private int mLimit;
+        private boolean mFirst = true;
+
+        private final List<String> mRecord = new ArrayList<>();
+        private final StringBuilder mField = new StringBuilder();
+
+        CsvParser(Reader reader) {
+            mReader = reader;
+        }
+
+        /**
+         * Returns the fields of the next record, or null at the end of the input. The list is
+         * reused by the next call. Blank lines are skipped.
+         */
+        List<String> readRecord() throws IOException {
+            mRecord.clear();
+            int c = read();
+            if (mFirst) {
+                mFirst = false;
+                if (c == '\uFEFF') {
+                    c = read();
+                }
+            }
+            while (c == '\r' || c == '\n') {
+                c = read();
+            }
+            if (c == -1) {
+                return null;
+            }
+
+            mField.setLength(0);
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException("Unterminated quoted field in CSV");
+                    }
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            quoted = false;
+                            continue;
+                        }
+                    }
+                    mField.append((char) c);
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    mRecord.add(mField.toString());
+                    mField.setLength(0);
+                } else if (c == '\r' || c == '\n' || c == -1) {
+                    mRecord.add(mField.toString());
+                    return mRecord;
+                } else {
+                    mField.append((char) c);
+                }
+                c = read();
+            }
+        }
+
+        private int read() throws IOException {
+            if (mPosition == mLimit) {
+                mLimit = mReader.read(mBuffer, 0, mBuffer.length);
+                mPosition = 0;
+                if (mLimit <= 0) {
+                    mLimit = 0;
+                    return -1;
+                }
+            }
+            return mBuffer[mPosition++];
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records how long the operations of {@link PetProvider} take and how many rows they touch,
+ * per operation and URI, together with the selections used and the fan-out of change
+ * notifications.
+ *
+ * While disabled, {@link #start()} is a field read and every record call returns straight away,
+ * so the provider can call them unconditionally. While enabled, recording is lock free except
+ * for the first use of a new operation, URI or selection.
+ */
+class PetMetrics {
+
+    static final int OP_QUERY = 0;
+    static final int OP_INSERT = 1;
+    static final int OP_BULK_INSERT = 2;
+    static final int OP_UPDATE = 3;
+    static final int OP_DELETE = 4;
+    static final int OP_APPLY_BATCH = 5;
+
+    private static final String[] OPERATION_NAMES = {
+            "query", "insert", "bulkInsert", "update", "delete", "applyBatch"
+    };
+
+    /** Returned by {@link #start()} while disabled */
+    static final long NOT_STARTED = Long.MIN_VALUE;
+
+    /** Distinct selections counted one by one, later ones are counted together */
+    private static final int MAX_SELECTIONS = 32;
+    private static final String OTHER_SELECTIONS = "(other)";
+    private static final String NO_SELECTION = "(none)";
+
+    private volatile boolean mEnabled;
+
+    /** Keyed by operation name and URI pattern, such as "query pets/#" */
+    private final ConcurrentMap<String, OperationStats> mOperations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> mSelections = new ConcurrentHashMap<>();
+
+    /** URIs notified per flush of the change notifier */
+    private final Histogram mNotifiedPerFlush = new Histogram();
+    private final AtomicLong mDirtyUris = new AtomicLong();
+
+    PetMetrics(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Returns the start time to pass to {@link #record}, or {@link #NOT_STARTED} if disabled.
+     */
+    long start() {
+        return mEnabled ? System.nanoTime() : NOT_STARTED;
+    }
+
+    /**
+     * Record an operation on a URI matching {@code uriPattern} that started at {@code start} and
+     * returned or changed {@code rows} rows.
+     */
+    void record(int operation, String uriPattern, String selection, long start, int rows) {
+        if (start == NOT_STARTED) {
+            return;
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+
+        String key = OPERATION_NAMES[operation] + " " + uriPattern;
+        OperationStats stats = mOperations.get(key);
+        if (stats == null) {
+            OperationStats created = new OperationStats(OPERATION_NAMES[operation], uriPattern);
+            stats = mOperations.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        stats.latencyMicros.record(micros);
+        stats.rows.record(rows);
+
+        countSelection(selection == null ? NO_SELECTION : selection);
+    }
+
+    /**
+     * Record a flush of the change notifier that notified {@code notified} URIs for
+     * {@code dirty} changed URIs.
+     */
+    void recordNotification(int dirty, int notified) {
+        if (!mEnabled) {
+            return;
+        }
+        mDirtyUris.addAndGet(dirty);
+        mNotifiedPerFlush.record(notified);
+    }
+
+    private void countSelection(String selection) {
+        AtomicLong count = mSelections.get(selection);
+        if (count == null) {
+            if (mSelections.size() >= MAX_SELECTIONS) {
+                selection = OTHER_SELECTIONS;
+            }
+            AtomicLong created = new AtomicLong();
+            count = mSelections.putIfAbsent(selection, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Drop everything recorded so far.
+     */
+    void reset() {
+        mOperations.clear();
+        mSelections.clear();
+        mNotifiedPerFlush.reset();
+        mDirtyUris.set(0);
+    }
+
+    /**
+     * Returns one row per operation and URI, with the columns of
+     * {@link PetContract.MetricsEntry}.
+     */
+    Cursor toCursor() {
+        String[] columns = {
+                PetContract.MetricsEntry.COLUMN_OPERATION,
+                PetContract.MetricsEntry.COLUMN_URI,
+                PetContract.MetricsEntry.COLUMN_COUNT,
+                PetContract.MetricsEntry.COLUMN_P50_MICROS,
+                PetContract.MetricsEntry.COLUMN_P90_MICROS,
+                PetContract.MetricsEntry.COLUMN_P99_MICROS,
+                PetContract.MetricsEntry.COLUMN_MAX_MICROS,
+                PetContract.MetricsEntry.COLUMN_TOTAL_ROWS,
+                PetContract.MetricsEntry.COLUMN_MAX_ROWS
+        };
+        List<OperationStats> operations = sortedOperations();
+        MatrixCursor cursor = new MatrixCursor(columns, operations.size());
+        for (OperationStats stats : operations) {
+            cursor.addRow(new Object[] {
+                    stats.operation,
+                    stats.uriPattern,
+                    stats.latencyMicros.count(),
+                    stats.latencyMicros.percentile(50),
+                    stats.latencyMicros.percentile(90),
+                    stats.latencyMicros.percentile(99),
+                    stats.latencyMicros.max(),
+                    stats.rows.sum(),
+                    stats.rows.max()
+            });
+        }
+        return cursor;
+    }
+
+    /**
+     * Print everything recorded so far in a human readable form.
+     */
+    void dump(PrintWriter writer) {
+        writer.println("PetMetrics " + (mEnabled ? "enabled" : "disabled"));
+        for (OperationStats stats : sortedOperations()) {
+            writer.println("  " + stats.operation + " " + stats.uriPattern
+                    + ": count=" + stats.latencyMicros.count()
+                    + " p50=" + stats.latencyMicros.percentile(50) + "us"
+                    + " p90=" + stats.latencyMicros.percentile(90) + "us"
+                    + " p99=" + stats.latencyMicros.percentile(99) + "us"
+                    + " max=" + stats.latencyMicros.max() + "us"
+                    + " rows=" + stats.rows.sum() + " maxRows=" + stats.rows.max());
+        }
+        writer.println("  Selections:");
+        for (Map.Entry<String, AtomicLong> entry : mSelections.entrySet()) {
+            writer.println("    " + entry.getValue().get() + " " + entry.getKey());
+        }
+        writer.println("  Notifications: flushes=" + mNotifiedPerFlush.count()
+                + " dirty=" + mDirtyUris.get() + " notified=" + mNotifiedPerFlush.sum()
+                + " maxPerFlush=" + mNotifiedPerFlush.max());
+    }
+
+    private List<OperationStats> sortedOperations() {
+        List<String> keys = new ArrayList<>(mOperations.keySet());
+        Collections.sort(keys);
+        List<OperationStats> operations = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            operations.add(mOperations.get(key));
+        }
+        return operations;
+    }
+
+    private static class OperationStats {
+        final String operation;
+        final String uriPattern;
+        final Histogram latencyMicros = new Histogram();
+        final Histogram rows = new Histogram();
+
+        OperationStats(String operation, String uriPattern) {
+            this.operation = operation;
+            this.uriPattern = uriPattern;
+        }
+    }
+
+    /**
+     * Histogram of non-negative values with log-linear buckets, in the manner of HdrHistogram:
+     * every power of two is split into {@link #SUB_BUCKETS} equal buckets, so any recorded value
+     * is reported within 1/{@link #SUB_BUCKETS} of its actual value, using a fixed few hundred
+     * counters for the whole range of a long.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mCounts.incrementAndGet(indexOf(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        long count() {
+            return mCount.get();
+        }
+
+        long sum() {
+            return mSum.get();
+        }
+
+        long max() {
+            return mMax.get();
+        }
+
+        /**
+         * Returns the highest value that falls in the bucket holding the given percentile.
+         */
+        long percentile(double percentile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                mCounts.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        static int indexOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BUCKET_BITS;
+            int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+        }
+
+        static long highestValueOf(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+            int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+            long lowest = (long) (SUB_BUCKETS + subBucket) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+    }
+}
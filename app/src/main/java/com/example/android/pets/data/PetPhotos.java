@@ -0,0 +1,270 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The photos of the pets, stored as one file per pet in a directory next to the database, and
+ * their thumbnails, kept in a size-bounded cache directory.
+ *
+ * Photos are never held in the database, so a cursor over pets stays small however large the
+ * photos are. A photo is written to a temporary file and renamed over the old one once complete,
+ * so readers see either the old or the new photo, and a reader that opened the old one keeps
+ * reading it.
+ *
+ * A thumbnail is made from the photo the first time it is asked for, and named after the id of
+ * the pet and the time the photo was written, so a replaced photo never serves an old thumbnail.
+ * Once the thumbnails take more than their budget, the least recently used are deleted.
+ */
+class PetPhotos {
+
+    /** Default size in bytes of the thumbnail cache on disk */
+    static final long DEFAULT_MAX_THUMBNAIL_BYTES = 8 * 1024 * 1024;
+
+    /** Largest photo accepted, in bytes */
+    static final long MAX_PHOTO_BYTES = 16 * 1024 * 1024;
+
+    private static final String TAG = PetPhotos.class.getSimpleName();
+
+    private static final int THUMBNAIL_QUALITY = 85;
+
+    private final File mPhotoDir;
+    private final File mThumbnailDir;
+    private final long mMaxThumbnailBytes;
+
+    PetPhotos(Context context, long maxThumbnailBytes) {
+        mPhotoDir = new File(context.getDatabasePath(PetDbHelper.DATABASE_NAME).getParentFile(),
+                "pet_photos");
+        mThumbnailDir = new File(context.getCacheDir(), "pet_thumbnails");
+        mMaxThumbnailBytes = maxThumbnailBytes;
+    }
+
+    private File photoFile(long id) {
+        return new File(mPhotoDir, String.valueOf(id));
+    }
+
+    /**
+     * Open the photo of the given pet for reading.
+     */
+    ParcelFileDescriptor openPhoto(long id) throws FileNotFoundException {
+        return ParcelFileDescriptor.open(photoFile(id), ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Returns the MIME type of the photo of the given pet, read from its header, or null if the
+     * pet has no photo.
+     */
+    String mimeTypeOf(long id) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(photoFile(id).getPath(), options);
+        return options.outMimeType;
+    }
+
+    /**
+     * Replace the photo of the given pet with the image read from {@code in}. The photo is only
+     * replaced once the whole image was read and can be decoded.
+     */
+    void write(long id, InputStream in) throws IOException {
+        if (!mPhotoDir.isDirectory() && !mPhotoDir.mkdirs()) {
+            throw new IOException("Cannot create " + mPhotoDir);
+        }
+        File temp = File.createTempFile("photo", ".tmp", mPhotoDir);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                byte[] buffer = new byte[8192];
+                long total = 0;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    total += read;
+                    if (total > MAX_PHOTO_BYTES) {
+                        throw new IOException("Photo larger than " + MAX_PHOTO_BYTES + " bytes");
+                    }
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(temp.getPath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                throw new IOException("Not an image");
+            }
+            if (!temp.renameTo(photoFile(id))) {
+                throw new IOException("Cannot move the photo of pet " + id + " in place");
+            }
+        } finally {
+            // Only left behind if the photo was not moved in place
+            temp.delete();
+        }
+        deleteThumbnails(id);
+    }
+
+    /**
+     * Delete the photo of the given pet. Returns false if it had none.
+     */
+    boolean delete(long id) {
+        boolean deleted = photoFile(id).delete();
+        deleteThumbnails(id);
+        return deleted;
+    }
+
+    /**
+     * Delete the photos of the given pets, as purged by {@link PetPurger}. The thumbnails are
+     * listed once for all of them.
+     */
+    void delete(long[] ids) {
+        Set<String> names = new HashSet<>();
+        for (long id : ids) {
+            photoFile(id).delete();
+            names.add(String.valueOf(id));
+        }
+        String[] thumbnails = mThumbnailDir.list();
+        if (thumbnails == null) {
+            return;
+        }
+        for (String thumbnail : thumbnails) {
+            int end = thumbnail.indexOf('_');
+            if (end > 0 && names.contains(thumbnail.substring(0, end))) {
+                new File(mThumbnailDir, thumbnail).delete();
+            }
+        }
+    }
+
+    /**
+     * Open the thumbnail of the photo of the given pet for reading, making it first if it is not
+     * in the cache. Decodes the photo when it does, so must not be called on the main thread.
+     */
+    ParcelFileDescriptor openThumbnail(long id) throws FileNotFoundException {
+        File photo = photoFile(id);
+        long version = photo.lastModified();
+        if (version == 0) {
+            throw new FileNotFoundException("Pet " + id + " has no photo");
+        }
+        File thumbnail = new File(mThumbnailDir, id + "_" + version + ".jpg");
+        if (thumbnail.exists()) {
+            // The modification time orders the thumbnails by last use for trimming
+            thumbnail.setLastModified(System.currentTimeMillis());
+        } else {
+            try {
+                createThumbnail(photo, thumbnail);
+            } catch (IOException e) {
+                throw new FileNotFoundException("Cannot make a thumbnail of pet " + id + ": " + e);
+            }
+            trimThumbnails();
+        }
+        return ParcelFileDescriptor.open(thumbnail, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    private void createThumbnail(File photo, File thumbnail) throws IOException {
+        int size = PetContract.PetEntry.THUMBNAIL_SIZE;
+
+        // Decode at the smallest power of two scale still at least as large as the thumbnail,
+        // then scale the rest of the way, so a large photo is never decoded at full size
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(photo.getPath(), options);
+        int longer = Math.max(options.outWidth, options.outHeight);
+        if (longer <= 0) {
+            throw new IOException("Cannot decode " + photo);
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (longer / (options.inSampleSize * 2) >= size) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(photo.getPath(), options);
+        if (bitmap == null) {
+            throw new IOException("Cannot decode " + photo);
+        }
+        float scale = (float) size / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (scale < 1) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+
+        if (!mThumbnailDir.isDirectory() && !mThumbnailDir.mkdirs()) {
+            throw new IOException("Cannot create " + mThumbnailDir);
+        }
+        File temp = File.createTempFile("thumbnail", ".tmp", mThumbnailDir);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+            } finally {
+                out.close();
+                bitmap.recycle();
+            }
+            if (!temp.renameTo(thumbnail)) {
+                throw new IOException("Cannot move " + thumbnail + " in place");
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private void deleteThumbnails(long id) {
+        String prefix = id + "_";
+        String[] names = mThumbnailDir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix)) {
+                new File(mThumbnailDir, name).delete();
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used thumbnails until the rest fit in the budget.
+     */
+    private synchronized void trimThumbnails() {
+        File[] files = mThumbnailDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= mMaxThumbnailBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < files.length && total > mMaxThumbnailBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            } else {
+                Log.w(TAG, "Failed to delete " + files[i]);
+            }
+        }
+    }
+}
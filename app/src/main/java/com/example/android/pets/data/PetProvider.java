@@ -1,16 +1,37 @@
 package com.example.android.pets.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
-import android.widget.Toast;
 
+import com.example.android.pets.BuildConfig;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.IllegalFormatException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * {@link ContentProvider} for Pets app.
@@ -24,6 +45,30 @@ public class PetProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single pet in the pets table */
     private static final int PET_ID = 101;
 
+    /** URI matcher code for the full-text search URI over the pets table */
+    private static final int SEARCH = 102;
+
+    /** URI matcher code for the timings of the provider's own operations */
+    private static final int METRICS = 103;
+
+    /** URI matcher code for the aggregate statistics over all pets */
+    private static final int STATS = 104;
+
+    /** URI matcher code for streaming every pet as CSV or JSON */
+    private static final int EXPORT = 105;
+
+    /** URI matcher code for a copy of the whole database file */
+    private static final int SNAPSHOT = 106;
+
+    /** URI matcher code for the changes made to pets since a given change */
+    private static final int CHANGES = 107;
+
+    /** URI matcher code for the photo of a single pet */
+    private static final int PHOTO = 108;
+
+    /** URI matcher code for the thumbnail of the photo of a single pet */
+    private static final int THUMBNAIL = 109;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -39,26 +84,153 @@ public class PetProvider extends ContentProvider {
 
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH, SEARCH);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_METRICS, METRICS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_STATS, STATS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_EXPORT, EXPORT);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SNAPSHOT, SNAPSHOT);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES, CHANGES);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/#/" + PetContract.PATH_PHOTO, PHOTO);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#/"
+                + PetContract.PATH_PHOTO + "/" + PetContract.PATH_THUMBNAIL, THUMBNAIL);
+    }
+
+    /**
+     * Returns the URI pattern matching the given code, used to group metrics.
+     */
+    private static String patternOf(int match) {
+        switch (match) {
+            case PETS:
+                return PetContract.PATH_PETS;
+            case PET_ID:
+                return PetContract.PATH_PETS + "/#";
+            case SEARCH:
+                return PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH;
+            case STATS:
+                return PetContract.PATH_PETS + "/" + PetContract.PATH_STATS;
+            case CHANGES:
+                return PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES;
+            case PHOTO:
+                return PetContract.PATH_PETS + "/#/" + PetContract.PATH_PHOTO;
+            default:
+                return "unknown";
+        }
     }
 
     /** Tag for the log messages */
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
 
+    /**
+     * The total row followed by the gender and breed rows of the stats URI. Reads only the
+     * summary tables and the breed names: min() and max() of the weight are lookups in its
+     * primary key.
+     */
+    private static final String SQL_QUERY_STATS = "SELECT '"
+            + PetContract.StatsEntry.GROUP_TOTAL + "' AS " + PetContract.StatsEntry.COLUMN_GROUP
+            + ", NULL AS " + PetContract.StatsEntry.COLUMN_KEY
+            + ", " + PetDbHelper.STATS_COLUMN_COUNT + " AS " + PetContract.StatsEntry.COLUMN_COUNT
+            + ", (SELECT min(" + PetContract.PetEntry.COLUMN_WEIGHT + ") FROM "
+            + PetDbHelper.STATS_WEIGHT_TABLE_NAME + ") AS " + PetContract.StatsEntry.COLUMN_MIN_WEIGHT
+            + ", (SELECT max(" + PetContract.PetEntry.COLUMN_WEIGHT + ") FROM "
+            + PetDbHelper.STATS_WEIGHT_TABLE_NAME + ") AS " + PetContract.StatsEntry.COLUMN_MAX_WEIGHT
+            + ", CASE WHEN " + PetDbHelper.STATS_COLUMN_COUNT + " > 0 THEN CAST("
+            + PetDbHelper.STATS_COLUMN_WEIGHT_SUM + " AS REAL) / " + PetDbHelper.STATS_COLUMN_COUNT
+            + " END AS " + PetContract.StatsEntry.COLUMN_AVG_WEIGHT
+            + " FROM " + PetDbHelper.STATS_TOTALS_TABLE_NAME
+            + " UNION ALL SELECT '" + PetContract.StatsEntry.GROUP_GENDER + "', "
+            + PetContract.PetEntry.COLUMN_GENDER + ", " + PetDbHelper.STATS_COLUMN_COUNT
+            + ", NULL, NULL, NULL FROM " + PetDbHelper.STATS_GENDER_TABLE_NAME
+            + " UNION ALL SELECT '" + PetContract.StatsEntry.GROUP_BREED + "', ifnull("
+            + PetDbHelper.BREEDS_TABLE_NAME + "." + PetDbHelper.BREEDS_COLUMN_NAME + ", ''), "
+            + PetDbHelper.STATS_BREED_TABLE_NAME + "." + PetDbHelper.STATS_COLUMN_COUNT
+            + ", NULL, NULL, NULL FROM " + PetDbHelper.STATS_BREED_TABLE_NAME
+            + " LEFT JOIN " + PetDbHelper.BREEDS_TABLE_NAME + " ON "
+            + PetDbHelper.BREEDS_TABLE_NAME + "." + PetContract.PetEntry._ID + " = "
+            + PetDbHelper.STATS_BREED_TABLE_NAME + "." + PetDbHelper.COLUMN_BREED_ID;
+
+    /** Collects changed URIs and notifies each of them once per window or batch */
+    private PetChangeNotifier mNotifier;
+
+    /** Recently read or written pets, answering single pet lookups from memory */
+    private PetCache mCache;
+
+    /** Statements for single row writes, compiled once and rebound on every call */
+    private PetStatements mStatements;
+
+    /** Writes exports and photos through their pipes, one thread per pipe open */
+    private final ExecutorService mExportExecutor = Executors.newCachedThreadPool();
+
+    /** Timings of every operation, recorded in debug builds or when enabled by a log property */
+    private PetMetrics mMetrics;
+
+    /** Reads the change log written by the database triggers and keeps it compacted */
+    private PetChangeLog mChangeLog;
+
+    /** Translates between the breed names of the pets and the breed ids stored */
+    private PetBreeds mBreeds;
+
+    /** Removes the rows of deleted pets in the background */
+    private PetPurger mPurger;
+
+    /** The photo files of the pets and their thumbnails */
+    private PetPhotos mPhotos;
+
     /**
      * Initialize the provider and the database helper object.
      */
     @Override
     public boolean onCreate() {
         mPetDbhelper = new PetDbHelper(getContext());
+        mMetrics = new PetMetrics(BuildConfig.DEBUG || Log.isLoggable("PetMetrics", Log.DEBUG));
+        mNotifier = new PetChangeNotifier(getContext().getContentResolver(), mMetrics);
+        mCache = new PetCache(PetCache.DEFAULT_MAX_SIZE);
+        mStatements = new PetStatements(mPetDbhelper);
+        mChangeLog = new PetChangeLog(mPetDbhelper, PetChangeLog.DEFAULT_MAX_CHANGES);
+        mBreeds = new PetBreeds(mPetDbhelper);
+        mPhotos = new PetPhotos(getContext(), PetPhotos.DEFAULT_MAX_THUMBNAIL_BYTES);
+        mPurger = new PetPurger(mPetDbhelper, mPhotos, PetPurger.DEFAULT_CHUNK_SIZE,
+                PetPurger.DEFAULT_VACUUM_INTERVAL);
+        // Finish purging what was deleted before the process last ended
+        mPurger.schedule();
         return true;
     }
 
+    /**
+     * Close the compiled statements of every thread and the database, as tests do between runs.
+     */
+    @Override
+    public void shutdown() {
+        mStatements.close();
+        mPetDbhelper.close();
+        super.shutdown();
+    }
+
     /**
      * Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
      */
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Perform the query for the given URI, as above. The queries of pets, search and stats are
+     * cancelled through the signal, only given since Jelly Bean, while they run or fill their
+     * cursor, so a caller that no longer wants the rows does not keep the database busy.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        long start = mMetrics.start();
+
         // Get readable database
         SQLiteDatabase database = mPetDbhelper.getReadableDatabase();
 
@@ -71,9 +243,27 @@ public class PetProvider extends ContentProvider {
             case PETS:
                 // For the PETS code, query the pets table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
-                // could contain multiple rows of the pets table.
-                cursor = database.query(PetContract.PetEntry.TABLE_NAME, projection,
-                        selection, selectionArgs, null, null, null);
+                // could contain multiple rows of the pets table, one page of them if the
+                // URI carries paging parameters.
+                //
+                // Pages of list screens are copied once into a columnar cursor, which reads and
+                // crosses processes without a window and holds each breed once. Only pages are
+                // copied, as a whole table would be held in memory at once. They read the breed
+                // ids, named from the breed dictionary instead of by a join.
+                if (uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT) != null
+                        && PetCatalogCursor.canHold(projection)) {
+                    Cursor rows = queryPets(database, uri,
+                            PetCatalogCursor.sourceProjection(projection), selection,
+                            selectionArgs, sortOrder, cancellationSignal);
+                    try {
+                        cursor = PetCatalogCursor.copyOf(rows, projection, mBreeds);
+                    } finally {
+                        rows.close();
+                    }
+                } else {
+                    cursor = queryPets(database, uri, projection, selection, selectionArgs,
+                            sortOrder, cancellationSignal);
+                }
                 break;
             case PET_ID:
                 // For the PET_ID code, extract out the ID from the URI.
@@ -81,174 +271,936 @@ public class PetProvider extends ContentProvider {
                 // the selection will be "_id=?" and the selection argument will be a
                 // String array containing the actual ID of 3 in this case.
                 //
-                // For every "?" in the selection, we need to have an element in the selection
-                // arguments that will fill in the "?". Since we have 1 question mark in the
-                // selection, we have 1 String in the selection arguments' String array.
-                selection = PetContract.PetEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+                // Plain lookups are answered from the cache, and cache the pet on a miss.
+                // Lookups with an extra selection go to the database.
+                if (selection == null) {
+                    cursor = queryPetById(database, ContentUris.parseId(uri), projection);
+                    break;
+                }
+                selection = DatabaseUtils.concatenateWhere(selection, PetContract.PetEntry._ID + "=?");
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        new String[] { String.valueOf(ContentUris.parseId(uri)) });
 
                 // This will perform a query on the pets table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
-                cursor = database.query(PetContract.PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = query(database, PetDbHelper.PETS_VIEW_NAME, petColumns(projection),
+                        selection, selectionArgs, sortOrder, null, cancellationSignal);
+                break;
+            case SEARCH:
+                if (selection != null || sortOrder != null) {
+                    throw new IllegalArgumentException(
+                            "Search defines its own filter and order: " + uri);
+                }
+                cursor = searchPets(database, uri, projection, cancellationSignal);
                 break;
+            case STATS:
+                if (selection != null || sortOrder != null) {
+                    throw new IllegalArgumentException(
+                            "Stats cannot be filtered or sorted: " + uri);
+                }
+                cursor = rawQuery(database, SQL_QUERY_STATS, null, cancellationSignal);
+                break;
+            case CHANGES:
+                if (selection != null || sortOrder != null) {
+                    throw new IllegalArgumentException(
+                            "Changes cannot be filtered or sorted: " + uri);
+                }
+                cursor = queryChanges(database, uri);
+                break;
+            case METRICS:
+                return mMetrics.toCursor();
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        // Stats and changes change with every write to any pet, including writes notified on
+        // pets/#, so they are observed on the pets URI along with everything below it
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                match == STATS || match == CHANGES ? PetContract.PetEntry.CONTENT_URI : uri);
+
+        // Counting the rows runs the query now instead of on the caller's first move, so the
+        // time recorded covers it. Only done while metrics are recorded.
+        if (start != PetMetrics.NOT_STARTED) {
+            mMetrics.record(PetMetrics.OP_QUERY, patternOf(match), selection, start,
+                    cursor.getCount());
+        }
         return cursor;
     }
 
+    /**
+     * Returns the selection for the filter parameters of a pets URI, adding its arguments to
+     * {@code args}, or null if the URI has no filters. Every filter is a comparison of a column
+     * against an argument, so SQLite can answer it from the index on that column. The breed is
+     * compared by id.
+     */
+    private String filterSelection(Uri uri, List<String> args) {
+        StringBuilder where = new StringBuilder();
+
+        String gender = uri.getQueryParameter(PetContract.QUERY_PARAMETER_GENDER);
+        if (gender != null) {
+            long value = parseNonNegative(gender, uri);
+            if (value > Integer.MAX_VALUE || !PetContract.PetEntry.isValidGender((int) value)) {
+                throw new IllegalArgumentException("Invalid gender " + gender + ": " + uri);
+            }
+            appendFilter(where, PetContract.PetEntry.COLUMN_GENDER + "=?");
+            args.add(String.valueOf(value));
+        }
+
+        String breed = uri.getQueryParameter(PetContract.QUERY_PARAMETER_BREED);
+        if (breed != null) {
+            long breedId = breed.isEmpty() ? -1 : mBreeds.find(breed);
+            if (breed.isEmpty()) {
+                appendFilter(where, PetDbHelper.COLUMN_BREED_ID + " IS NULL");
+            } else if (breedId != -1) {
+                appendFilter(where, PetDbHelper.COLUMN_BREED_ID + "=?");
+                args.add(String.valueOf(breedId));
+            } else {
+                // Not in the dictionary, so no pet has it
+                appendFilter(where, "0");
+            }
+        }
+
+        String minWeight = uri.getQueryParameter(PetContract.QUERY_PARAMETER_MIN_WEIGHT);
+        if (minWeight != null) {
+            appendFilter(where, PetContract.PetEntry.COLUMN_WEIGHT + ">=?");
+            args.add(String.valueOf(parseNonNegative(minWeight, uri)));
+        }
+        String maxWeight = uri.getQueryParameter(PetContract.QUERY_PARAMETER_MAX_WEIGHT);
+        if (maxWeight != null) {
+            appendFilter(where, PetContract.PetEntry.COLUMN_WEIGHT + "<=?");
+            args.add(String.valueOf(parseNonNegative(maxWeight, uri)));
+        }
+
+        String prefix = uri.getQueryParameter(PetContract.QUERY_PARAMETER_NAME_PREFIX);
+        if (prefix != null && !prefix.isEmpty()) {
+            // A range on the name index rather than LIKE, which cannot use it
+            String name = PetContract.PetEntry.COLUMN_NAME;
+            char last = prefix.charAt(prefix.length() - 1);
+            if (last == Character.MAX_VALUE || Character.isHighSurrogate(last)
+                    || Character.isLowSurrogate(last)) {
+                appendFilter(where, name + ">=? AND substr(" + name + ", 1, "
+                        + prefix.length() + ")=?");
+                args.add(prefix);
+                args.add(prefix);
+            } else {
+                appendFilter(where, name + ">=? AND " + name + "<?");
+                args.add(prefix);
+                args.add(prefix.substring(0, prefix.length() - 1) + (char) (last + 1));
+            }
+        }
+
+        return where.length() == 0 ? null : where.toString();
+    }
+
+    private static void appendFilter(StringBuilder where, String filter) {
+        if (where.length() > 0) {
+            where.append(" AND ");
+        }
+        where.append(filter);
+    }
+
+    /**
+     * Returns the ORDER BY clause for the sort parameters of a pets URI, or null if it has none.
+     * Only known columns are accepted, and pets that sort equal are ordered by id so pages are
+     * stable.
+     */
+    private static String sortClause(Uri uri) {
+        String sort = uri.getQueryParameter(PetContract.QUERY_PARAMETER_SORT);
+        String order = uri.getQueryParameter(PetContract.QUERY_PARAMETER_ORDER);
+        if (sort == null) {
+            if (order != null) {
+                throw new IllegalArgumentException("order requires sort: " + uri);
+            }
+            return null;
+        }
+
+        switch (sort) {
+            case PetContract.PetEntry._ID:
+            case PetContract.PetEntry.COLUMN_NAME:
+            case PetContract.PetEntry.COLUMN_BREED:
+            case PetContract.PetEntry.COLUMN_GENDER:
+            case PetContract.PetEntry.COLUMN_WEIGHT:
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot sort by " + sort + ": " + uri);
+        }
+        String direction;
+        if (order == null || PetContract.ORDER_ASCENDING.equals(order)) {
+            direction = " ASC";
+        } else if (PetContract.ORDER_DESCENDING.equals(order)) {
+            direction = " DESC";
+        } else {
+            throw new IllegalArgumentException("Invalid order " + order + ": " + uri);
+        }
+
+        if (sort.equals(PetContract.PetEntry._ID)) {
+            return sort + direction;
+        }
+        return sort + direction + ", " + PetContract.PetEntry._ID + direction;
+    }
+
+    /**
+     * Returns a cursor over the given pet, from the cache if possible.
+     */
+    private Cursor queryPetById(SQLiteDatabase database, long id, String[] projection) {
+        PetCache.Pet pet = mCache.get(id);
+        if (pet == null) {
+            long generation = mCache.generation();
+            Cursor cursor = database.query(PetDbHelper.PETS_VIEW_NAME, PetCache.ALL_COLUMNS,
+                    PetContract.PetEntry._ID + "=?", new String[] { String.valueOf(id) },
+                    null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    return database.query(PetDbHelper.PETS_VIEW_NAME, petColumns(projection), "0",
+                            null, null, null, null);
+                }
+                pet = PetCache.Pet.fromCursor(cursor);
+            } finally {
+                cursor.close();
+            }
+            mCache.putIfCurrent(pet, generation);
+        }
+        return pet.toCursor(projection);
+    }
+
+    /**
+     * Query the pets view, applying the limit/offset or keyset paging parameters of the URI.
+     * Keyset paging defines its own order, so it cannot be combined with a sort order or offset.
+     */
+    private Cursor queryPets(SQLiteDatabase database, Uri uri, String[] projection,
+                             String selection, String[] selectionArgs, String sortOrder,
+                             CancellationSignal signal) {
+        String limitParameter = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT);
+        String offsetParameter = uri.getQueryParameter(PetContract.QUERY_PARAMETER_OFFSET);
+        String afterIdParameter = uri.getQueryParameter(PetContract.QUERY_PARAMETER_AFTER_ID);
+        String afterName = uri.getQueryParameter(PetContract.QUERY_PARAMETER_AFTER_NAME);
+
+        List<String> filterArgs = new ArrayList<>();
+        String filter = filterSelection(uri, filterArgs);
+        if (filter != null) {
+            selection = DatabaseUtils.concatenateWhere(selection, filter);
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    filterArgs.toArray(new String[filterArgs.size()]));
+        }
+
+        String sort = sortClause(uri);
+        if (sort != null) {
+            if (sortOrder != null) {
+                throw new IllegalArgumentException(
+                        "The sort parameter cannot be combined with a sort order: " + uri);
+            }
+            sortOrder = sort;
+        }
+
+        if (afterIdParameter != null) {
+            if (sortOrder != null || offsetParameter != null) {
+                throw new IllegalArgumentException(
+                        "Keyset paging cannot be combined with a sort order or offset: " + uri);
+            }
+            String afterId = String.valueOf(parseNonNegative(afterIdParameter, uri));
+            if (afterName != null) {
+                selection = DatabaseUtils.concatenateWhere(selection,
+                        PetContract.PetEntry.COLUMN_NAME + ">? OR ("
+                        + PetContract.PetEntry.COLUMN_NAME + "=? AND "
+                        + PetContract.PetEntry._ID + ">?)");
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        new String[] { afterName, afterName, afterId });
+                sortOrder = PetContract.PetEntry.COLUMN_NAME + " ASC, "
+                        + PetContract.PetEntry._ID + " ASC";
+            } else {
+                selection = DatabaseUtils.concatenateWhere(selection,
+                        PetContract.PetEntry._ID + ">?");
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        new String[] { afterId });
+                sortOrder = PetContract.PetEntry._ID + " ASC";
+            }
+        } else if (afterName != null) {
+            throw new IllegalArgumentException("after_name requires after_id: " + uri);
+        }
+
+        String limit = null;
+        if (limitParameter != null) {
+            limit = String.valueOf(parseNonNegative(limitParameter, uri));
+            if (offsetParameter != null) {
+                limit = parseNonNegative(offsetParameter, uri) + "," + limit;
+            }
+            // Pages are only stable if the rows come back in a defined order
+            if (sortOrder == null) {
+                sortOrder = PetContract.PetEntry._ID + " ASC";
+            }
+        } else if (offsetParameter != null) {
+            throw new IllegalArgumentException("offset requires limit: " + uri);
+        }
+
+        return query(database, PetDbHelper.PETS_VIEW_NAME, petColumns(projection),
+                selection, selectionArgs, sortOrder, limit, signal);
+    }
+
+    /**
+     * {@link SQLiteDatabase#query}, cancelled through the signal unless it is null, as it always
+     * is before Jelly Bean.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static Cursor query(SQLiteDatabase database, String table, String[] columns,
+                                String selection, String[] selectionArgs, String orderBy,
+                                String limit, CancellationSignal signal) {
+        if (signal == null) {
+            return database.query(table, columns, selection, selectionArgs, null, null, orderBy,
+                    limit);
+        }
+        return database.query(false, table, columns, selection, selectionArgs, null, null,
+                orderBy, limit, signal);
+    }
+
+    /**
+     * {@link SQLiteDatabase#rawQuery}, cancelled through the signal unless it is null.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static Cursor rawQuery(SQLiteDatabase database, String sql, String[] args,
+                                   CancellationSignal signal) {
+        return signal == null ? database.rawQuery(sql, args) : database.rawQuery(sql, args, signal);
+    }
+
+    /**
+     * Returns the columns to read from the pets view for the given projection: every column of
+     * a pet for a null projection, rather than the breed id the view holds as well.
+     */
+    private static String[] petColumns(String[] projection) {
+        return projection == null ? PetCache.ALL_COLUMNS : projection;
+    }
+
+    /**
+     * The number of matches of the full-text query in a row. offsets() lists four integers
+     * separated by spaces for every match, so the matches are the spaces plus one over four.
+     */
+    private static final String SQL_MATCH_COUNT = "((length(offsets("
+            + PetDbHelper.FTS_TABLE_NAME + ")) - length(replace(offsets("
+            + PetDbHelper.FTS_TABLE_NAME + "), ' ', '')) + 1) / 4)";
+
+    /**
+     * Search the full-text index for pets whose name or breed contains words starting with
+     * every word of the query. Pets whose name starts with the first word come first, then
+     * pets with more matching words.
+     */
+    private Cursor searchPets(SQLiteDatabase database, Uri uri, String[] projection,
+                              CancellationSignal signal) {
+        String query = uri.getQueryParameter(PetContract.QUERY_PARAMETER_QUERY);
+        String[] words = query == null ? new String[0] : query.trim().split("[^\\p{L}\\p{N}]+");
+
+        StringBuilder match = new StringBuilder();
+        for (String word : words) {
+            if (!word.isEmpty()) {
+                match.append(match.length() == 0 ? "" : " ").append(word).append('*');
+            }
+        }
+        if (match.length() == 0) {
+            return database.query(PetDbHelper.PETS_VIEW_NAME, petColumns(projection), "0", null,
+                    null, null, null);
+        }
+
+        String pets = PetDbHelper.PETS_VIEW_NAME;
+        String[] columns = petColumns(projection);
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(pets).append('.').append(columns[i])
+                    .append(" AS ").append(columns[i]);
+        }
+        sql.append(" FROM ").append(pets).append(" JOIN ").append(PetDbHelper.FTS_TABLE_NAME)
+                .append(" ON ").append(pets).append('.').append(PetContract.PetEntry._ID)
+                .append(" = ").append(PetDbHelper.FTS_TABLE_NAME).append(".docid")
+                .append(" WHERE ").append(PetDbHelper.FTS_TABLE_NAME).append(" MATCH ?")
+                .append(" ORDER BY CASE WHEN ").append(pets).append('.')
+                .append(PetContract.PetEntry.COLUMN_NAME).append(" LIKE ? ESCAPE '\\'")
+                .append(" THEN 0 ELSE 1 END, ").append(SQL_MATCH_COUNT).append(" DESC, ")
+                .append(pets).append('.').append(PetContract.PetEntry.COLUMN_NAME);
+
+        String limit = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            sql.append(" LIMIT ").append(parseNonNegative(limit, uri));
+        }
+
+        String firstWord = match.substring(0, match.indexOf("*"));
+        String namePrefix = firstWord.replace("\\", "\\\\").replace("%", "\\%")
+                .replace("_", "\\_") + "%";
+        return rawQuery(database, sql.toString(),
+                new String[] { match.toString(), namePrefix }, signal);
+    }
+
+    private Cursor queryChanges(SQLiteDatabase database, Uri uri) {
+        String since = uri.getQueryParameter(PetContract.QUERY_PARAMETER_SINCE);
+        if (since == null) {
+            throw new IllegalArgumentException("Changes require "
+                    + PetContract.QUERY_PARAMETER_SINCE + ": " + uri);
+        }
+        String limit = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT);
+        return mChangeLog.query(database, parseNonNegative(since, uri),
+                limit == null ? -1 : parseNonNegative(limit, uri));
+    }
+
+    private static long parseNonNegative(String value, Uri uri) {
+        try {
+            long number = Long.parseLong(value);
+            if (number >= 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the exception below
+        }
+        throw new IllegalArgumentException("Invalid parameter " + value + " in " + uri);
+    }
+
     /**
      * Insert new data into the provider with the given ContentValues.
      */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        long start = mMetrics.start();
+        Uri inserted;
         final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                return insertPet(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        SQLiteDatabase syncDatabase = beginSyncAdapterWrite(uri);
+        boolean successful = false;
+        try {
+            switch (match) {
+                case PETS:
+                    inserted = insertPet(stripSyncAdapter(uri), contentValues);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+            successful = true;
+        } finally {
+            endSyncAdapterWrite(syncDatabase, successful);
         }
+        mChangeLog.onWritten(inserted == null ? 0 : 1);
+        mMetrics.record(PetMetrics.OP_INSERT, patternOf(match), null, start,
+                inserted == null ? 0 : 1);
+        return inserted;
     }
 
     private Uri insertPet(Uri uri, ContentValues values) {
-        String name = values.getAsString(PetContract.PetEntry.COLUMN_NAME);
-        if (name.equals("")) {
-            //throw new IllegalArgumentException("Pet requires a name");
-            Toast toast = Toast.makeText(getContext(), "Pet requires a name", Toast.LENGTH_SHORT);
-            toast.show();
-            return ContentUris.withAppendedId(uri, -2);
+        PetValidator.checkInsert(values);
+
+        long id;
+        ContentValues row = mBreeds.toRow(values);
+        if (PetStatements.isInsertable(row)) {
+            try {
+                id = mStatements.insert(row);
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Error inserting " + values, e);
+                id = -1;
+            }
+        } else {
+            SQLiteDatabase database = mPetDbhelper.getWritableDatabase();
+            Long requestedId = row.getAsLong(PetContract.PetEntry._ID);
+            database.beginTransaction();
+            try {
+                if (requestedId != null) {
+                    PetPurger.prepareInsert(database, requestedId);
+                }
+                id = database.insert(PetContract.PetEntry.TABLE_NAME, null, row);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
         }
-        Integer weight = values.getAsInteger(PetContract.PetEntry.COLUMN_WEIGHT);
-        if (weight == null || weight < 0) {
-            //throw new IllegalArgumentException("Pet requires valid weight");
-            Toast toast = Toast.makeText(getContext(), "Pet requires valid weight", Toast.LENGTH_SHORT);
-            toast.show();
-            return ContentUris.withAppendedId(uri, -2);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
         }
-        Integer gender = values.getAsInteger(PetContract.PetEntry.COLUMN_GENDER);
-        if (gender == null || !PetContract.PetEntry.isValidGender(gender)) {
-            //throw new IllegalArgumentException("Pet requires valid gender");
-            Toast toast = Toast.makeText(getContext(), "Pet requires valid gender", Toast.LENGTH_SHORT);
-            toast.show();
-            return ContentUris.withAppendedId(uri, -2);
+        if (!PetStatements.isInsertable(row) && mPhotos.delete(id)) {
+            // Left by a purged pet that had the id the sync adapter inserted again
+            mNotifier.markDirty(PetContract.PetEntry.buildPhotoUri(id));
         }
 
-
-        SQLiteDatabase database = mPetDbhelper.getWritableDatabase();
-        long id = database.insert(PetContract.PetEntry.TABLE_NAME, null, values);
+        mCache.put(new PetCache.Pet(id, values.getAsString(PetContract.PetEntry.COLUMN_NAME),
+                PetBreeds.breedOf(values),
+                values.getAsInteger(PetContract.PetEntry.COLUMN_GENDER),
+                values.getAsInteger(PetContract.PetEntry.COLUMN_WEIGHT)));
 
         // Once we know the ID of the new row in the table,
         // return the new URI with the ID appended to the end of it
-        getContext().getContentResolver().notifyChange(uri, null);
+        mNotifier.markDirty(uri);
         return ContentUris.withAppendedId(uri, id);
     }
+
+    /**
+     * Insert all the given rows in a single transaction. Every row is validated before anything
+     * is written, so an invalid row rejects the whole batch instead of leaving half of it behind.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = mMetrics.start();
+        int inserted;
+        final int match = sUriMatcher.match(uri);
+        SQLiteDatabase syncDatabase = beginSyncAdapterWrite(uri);
+        boolean successful = false;
+        try {
+            switch (match) {
+                case PETS:
+                    inserted = bulkInsertPets(stripSyncAdapter(uri), values);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Bulk insertion is not supported for "
+                            + uri);
+            }
+            successful = true;
+        } finally {
+            endSyncAdapterWrite(syncDatabase, successful);
+        }
+        mChangeLog.onWritten(inserted);
+        mMetrics.record(PetMetrics.OP_BULK_INSERT, patternOf(match), null, start, inserted);
+        return inserted;
+    }
+
+    private int bulkInsertPets(Uri uri, ContentValues[] values) {
+        PetValidator.checkInserts(values);
+
+        SQLiteDatabase database = mPetDbhelper.getWritableDatabase();
+        int inserted = 0;
+        boolean successful = false;
+        mNotifier.beginBatch();
+        database.beginTransaction();
+        try {
+            for (ContentValues row : values) {
+                if (mStatements.insert(mBreeds.toRow(row)) != -1) {
+                    inserted++;
+                }
+            }
+            if (inserted > 0) {
+                mNotifier.markDirty(uri);
+            }
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            database.endTransaction();
+            mNotifier.endBatch(successful);
+        }
+        return inserted;
+    }
+
+    /**
+     * Apply the given operations in a single transaction and notify the changed URIs once the
+     * transaction has committed. If any operation fails the whole batch is rolled back.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long start = mMetrics.start();
+        SQLiteDatabase database = mPetDbhelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        boolean successful = false;
+
+        mNotifier.beginBatch();
+        mCache.beginBatch();
+        database.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            database.endTransaction();
+            mCache.endBatch();
+            mNotifier.endBatch(successful);
+        }
+        mMetrics.record(PetMetrics.OP_APPLY_BATCH, PetContract.CONTENT_AUTHORITY, null, start,
+                results.length);
+        return results;
+    }
+
     /**
      * Updates the data at the given selection and selection arguments, with the new ContentValues.
      */
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
+        long start = mMetrics.start();
+        String requestedSelection = selection;
+        int updated;
         final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                return updatePet(uri, contentValues, selection, selectionArgs);
-            case PET_ID:
-                // For the PET_ID code, extract out the ID from the URI,
-                // so we know which row to update. Selection will be "_id=?" and selection
-                // arguments will be a String array containing the actual ID.
-                selection = PetContract.PetEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updatePet(uri, contentValues, selection, selectionArgs);
-            default:
-                throw new IllegalArgumentException("Update is not supported for " + uri);
+        SQLiteDatabase syncDatabase = beginSyncAdapterWrite(uri);
+        boolean successful = false;
+        try {
+            switch (match) {
+                case PETS:
+                    updated = updatePet(stripSyncAdapter(uri), contentValues, selection,
+                            selectionArgs);
+                    break;
+                case PET_ID:
+                    // For the PET_ID code, extract out the ID from the URI,
+                    // so we know which row to update. The row is updated by a statement compiled
+                    // once for the columns being set.
+                    updated = updatePetById(stripSyncAdapter(uri),
+                            ContentUris.parseId(uri), contentValues);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Update is not supported for " + uri);
+            }
+            successful = true;
+        } finally {
+            endSyncAdapterWrite(syncDatabase, successful);
         }
+        mChangeLog.onWritten(updated);
+        mMetrics.record(PetMetrics.OP_UPDATE, patternOf(match), requestedSelection, start, updated);
+        return updated;
     }
 
     private int updatePet(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-
-        // TODO: Update the selected pets in the pets database table with the given ContentValues
-        // If the {@link PetEntry#COLUMN_PET_NAME} key is present,
-        // check that the name value is not null.
-
         if (values.size() == 0) {
             return 0;
         }
 
-        if (values.containsKey(PetContract.PetEntry.COLUMN_NAME)) {
-            String name = values.getAsString(PetContract.PetEntry.COLUMN_NAME);
-            if (name == null) {
-                //throw new IllegalArgumentException("Pet requires a name");
-                Toast toast = Toast.makeText(getContext(), "Pet requires valid name", Toast.LENGTH_SHORT);
-                toast.show();
-                return -1;
-            }
-        }
+        PetValidator.checkUpdate(values);
 
-        // If the {@link PetEntry#COLUMN_PET_GENDER} key is present,
-        // check that the gender value is valid.
-        if (values.containsKey(PetContract.PetEntry.COLUMN_GENDER)) {
-            Integer gender = values.getAsInteger(PetContract.PetEntry.COLUMN_GENDER);
-            if (gender == null || !PetContract.PetEntry.isValidGender(gender)) {
-                //throw new IllegalArgumentException("Pet requires valid gender");
-                Toast toast = Toast.makeText(getContext(), "Pet requires valid gender", Toast.LENGTH_SHORT);
-                toast.show();
-                return -1;
-            }
+        SQLiteDatabase database = mPetDbhelper.getWritableDatabase();
+
+        int number;
+        long[] ids;
+        database.beginTransaction();
+        try {
+            ids = idsToInvalidate(database, selection, selectionArgs);
+            number = database.update(PetContract.PetEntry.TABLE_NAME, mBreeds.toRow(values),
+                    rowSelection(selection), selectionArgs);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
         }
 
-        // If the {@link PetEntry#COLUMN_PET_WEIGHT} key is present,
-        // check that the weight value is valid.
-        if (values.containsKey(PetContract.PetEntry.COLUMN_WEIGHT)) {
-            // Check that the weight is greater than or equal to 0 kg
-            Integer weight = values.getAsInteger(PetContract.PetEntry.COLUMN_WEIGHT);
-            if (weight != null && weight < 0) {
-                //throw new IllegalArgumentException("Pet requires valid weight");
-                Toast toast = Toast.makeText(getContext(), "Pet requires valid weight", Toast.LENGTH_SHORT);
-                toast.show();
-                return -1;
-            }
+        if (number > 0) {
+            invalidate(ids);
+            mNotifier.markDirty(uri);
         }
-        SQLiteDatabase database = mPetDbhelper.getWritableDatabase();
 
-        int number = database.update(PetContract.PetEntry.TABLE_NAME, values, selection, selectionArgs);
+        return number;
+    }
+
+    private int updatePetById(Uri uri, long id, ContentValues values) {
+        if (values.size() == 0) {
+            return 0;
+        }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        PetValidator.checkUpdate(values);
 
+        int number = mStatements.updateById(id, mBreeds.toRow(values));
+        if (number > 0) {
+            mCache.invalidate(new long[] { id });
+            mNotifier.markDirty(uri);
+        }
         return number;
     }
 
     /**
-     * Delete the data at the given selection and selection arguments.
+     * Delete the data at the given selection and selection arguments. Pets are only marked
+     * deleted, which takes one short write even for every pet, and purged in the background.
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Get writeable database
-        SQLiteDatabase database = mPetDbhelper.getWritableDatabase();
+        long start = mMetrics.start();
+        String requestedSelection = selection;
 
         final int match = sUriMatcher.match(uri);
+        if (match == PHOTO) {
+            return deletePhoto(uri, start);
+        }
         int deleted;
+        SQLiteDatabase syncDatabase = beginSyncAdapterWrite(uri);
+        boolean successful = false;
+        try {
+            long[] ids;
+            switch (match) {
+                case PETS:
+                    // Delete all rows that match the selection and selection args
+                    SQLiteDatabase database = mPetDbhelper.getWritableDatabase();
+                    if (selection == null) {
+                        ids = null;
+                        deleted = PetPurger.deleteAll(database);
+                        break;
+                    }
+                    database.beginTransaction();
+                    try {
+                        ids = idsToInvalidate(database, selection, selectionArgs);
+                        deleted = PetPurger.delete(database, rowSelection(selection),
+                                selectionArgs);
+                        database.setTransactionSuccessful();
+                    } finally {
+                        database.endTransaction();
+                    }
+                    break;
+                case PET_ID:
+                    // Delete a single row given by the ID in the URI
+                    long id = ContentUris.parseId(uri);
+                    ids = new long[] { id };
+                    deleted = mStatements.deleteById(id);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Deletion is not supported for " + uri);
+            }
+
+            if (deleted > 0) {
+                invalidate(ids);
+                mNotifier.markDirty(stripSyncAdapter(uri));
+                mPurger.schedule();
+            }
+            successful = true;
+        } finally {
+            endSyncAdapterWrite(syncDatabase, successful);
+        }
+        mChangeLog.onWritten(deleted);
+        mMetrics.record(PetMetrics.OP_DELETE, patternOf(match), requestedSelection, start, deleted);
+        return deleted;
+    }
+
+    private int deletePhoto(Uri uri, long start) {
+        int deleted = mPhotos.delete(petIdOf(uri)) ? 1 : 0;
+        if (deleted > 0) {
+            mNotifier.markDirty(uri);
+        }
+        mMetrics.record(PetMetrics.OP_DELETE, patternOf(PHOTO), null, start, deleted);
+        return deleted;
+    }
+
+    /**
+     * Returns the id of the pet of a photo or thumbnail URI.
+     */
+    private static long petIdOf(Uri uri) {
+        return Long.parseLong(uri.getPathSegments().get(1));
+    }
+
+    /**
+     * Returns the id of the pet of a photo or thumbnail URI, which must not be deleted. The files
+     * of a deleted pet stay until it is purged, and must not be read or written meanwhile.
+     */
+    private long livePetIdOf(Uri uri) throws FileNotFoundException {
+        long id = petIdOf(uri);
+        if (DatabaseUtils.queryNumEntries(mPetDbhelper.getReadableDatabase(),
+                PetDbHelper.PETS_VIEW_NAME, PetContract.PetEntry._ID + "=?",
+                new String[] { String.valueOf(id) }) == 0) {
+            throw new FileNotFoundException("No pet for " + uri);
+        }
+        return id;
+    }
+
+    /**
+     * Start the write of a sync adapter, if the URI is marked as one: the changes it makes are
+     * logged as remote, in a transaction, notifier batch and cache batch of their own. Returns
+     * the database to pass to {@link #endSyncAdapterWrite}, or null for any other write.
+     */
+    private SQLiteDatabase beginSyncAdapterWrite(Uri uri) {
+        if (!isSyncAdapter(uri)) {
+            return null;
+        }
+        SQLiteDatabase database = mPetDbhelper.getWritableDatabase();
+        mNotifier.beginBatch();
+        mCache.beginBatch();
+        database.beginTransaction();
+        PetChangeLog.setOrigin(database, PetContract.ChangesEntry.ORIGIN_REMOTE);
+        return database;
+    }
+
+    private void endSyncAdapterWrite(SQLiteDatabase database, boolean successful) {
+        if (database == null) {
+            return;
+        }
+        try {
+            if (successful) {
+                PetChangeLog.setOrigin(database, PetContract.ChangesEntry.ORIGIN_LOCAL);
+                database.setTransactionSuccessful();
+            }
+        } finally {
+            database.endTransaction();
+            mCache.endBatch();
+            mNotifier.endBatch(successful);
+        }
+    }
+
+    private static boolean isSyncAdapter(Uri uri) {
+        return Boolean.parseBoolean(
+                uri.getQueryParameter(PetContract.QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER));
+    }
+
+    /**
+     * Returns the URI without the sync adapter marker, as notified and returned to callers.
+     */
+    private static Uri stripSyncAdapter(Uri uri) {
+        return isSyncAdapter(uri) ? uri.buildUpon().clearQuery().build() : uri;
+    }
+
+    /**
+     * Returns the ids of the pets a write with the given selection is about to change, to be
+     * dropped from the cache once it is done, or null if the write touches every pet.
+     * Must be called in the write's transaction, so no other write can change the selected rows.
+     */
+    private long[] idsToInvalidate(SQLiteDatabase database, String selection,
+                                   String[] selectionArgs) {
+        if (selection == null) {
+            return null;
+        }
+        Cursor cursor = database.query(PetDbHelper.PETS_VIEW_NAME,
+                new String[] { PetContract.PetEntry._ID }, selection, selectionArgs,
+                null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the selection of the pets table rows a write with the given selection changes. The
+     * selection is written against the pets as they are read, so it may compare the breed name:
+     * it is applied to the pets view.
+     */
+    private static String rowSelection(String selection) {
+        if (selection == null) {
+            return null;
+        }
+        return PetContract.PetEntry._ID + " IN (SELECT " + PetContract.PetEntry._ID + " FROM "
+                + PetDbHelper.PETS_VIEW_NAME + " WHERE " + selection + ")";
+    }
+
+    private void invalidate(long[] ids) {
+        if (ids == null) {
+            mCache.invalidateAll();
+        } else {
+            mCache.invalidate(ids);
+        }
+    }
+
+    /**
+     * Open an export, a snapshot, a photo or a thumbnail for reading, or a photo for writing.
+     *
+     * Exports are written into a pipe by a background thread while the caller reads them, and
+     * the snapshot is written to a temporary file that is deleted once opened, so neither is
+     * ever held in memory as a whole. A photo written is read from a pipe the same way.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        int match = sUriMatcher.match(uri);
+        if (match == PHOTO && ("w".equals(mode) || "wt".equals(mode))) {
+            return openPhotoForWriting(uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Only reading is supported for " + uri);
+        }
         switch (match) {
-            case PETS:
-                // Delete all rows that match the selection and selection args
-                deleted = database.delete(PetContract.PetEntry.TABLE_NAME, selection, selectionArgs);
-                getContext().getContentResolver().notifyChange(uri, null);
-                return deleted;
-            case PET_ID:
-                // Delete a single row given by the ID in the URI
-                selection = PetContract.PetEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                Log.i(LOG_TAG, String.valueOf(selectionArgs));
-                deleted = database.delete(PetContract.PetEntry.TABLE_NAME, selection, selectionArgs);
-                getContext().getContentResolver().notifyChange(uri, null);
-                return deleted;
+            case EXPORT:
+                return openExport(uri);
+            case SNAPSHOT:
+                return openSnapshot();
+            case PHOTO:
+                return mPhotos.openPhoto(livePetIdOf(uri));
+            case THUMBNAIL:
+                return mPhotos.openThumbnail(livePetIdOf(uri));
             default:
-                throw new IllegalArgumentException("Deletion is not supported for " + uri);
+                throw new FileNotFoundException("No file at " + uri);
+        }
+    }
+
+    private ParcelFileDescriptor openExport(Uri uri) throws FileNotFoundException {
+        String format = uri.getQueryParameter(PetContract.QUERY_PARAMETER_FORMAT);
+        final boolean json;
+        if (format == null || PetContract.FORMAT_CSV.equals(format)) {
+            json = false;
+        } else if (PetContract.FORMAT_JSON.equals(format)) {
+            json = true;
+        } else {
+            throw new FileNotFoundException("Unknown export format " + format + ": " + uri);
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Could not open a pipe for " + uri + ": " + e);
         }
+        mExportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                try {
+                    PetExporter exporter = new PetExporter(getContext().getContentResolver());
+                    if (json) {
+                        exporter.exportJson(out);
+                    } else {
+                        exporter.exportCsv(out);
+                    }
+                } catch (IOException e) {
+                    // Also thrown when the reader closes its end of the pipe early
+                    Log.w(LOG_TAG, "Export stopped", e);
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, "Failed to close export pipe", e);
+                    }
+                }
+            }
+        });
+        return pipe[0];
+    }
 
+    /**
+     * Returns a pipe whose reading end a background thread copies into the photo of the pet,
+     * replacing the old one once the writer closed the pipe and the image is complete. An
+     * image that is too large or cannot be decoded leaves the old photo in place.
+     */
+    private ParcelFileDescriptor openPhotoForWriting(final Uri uri)
+            throws FileNotFoundException {
+        final long id = livePetIdOf(uri);
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Could not open a pipe for " + uri + ": " + e);
+        }
+        mExportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]);
+                try {
+                    mPhotos.write(id, in);
+                    mNotifier.markDirty(uri);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Photo not written for " + uri, e);
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, "Failed to close photo pipe", e);
+                    }
+                }
+            }
+        });
+        return pipe[1];
     }
+
+    private ParcelFileDescriptor openSnapshot() throws FileNotFoundException {
+        File file = null;
+        try {
+            file = File.createTempFile("pets-snapshot", ".db", getContext().getCacheDir());
+            mPetDbhelper.snapshot(file, PetExporter.DEFAULT_CHUNK_SIZE);
+            // The open descriptor keeps the file readable after it is deleted
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (IOException e) {
+            throw new FileNotFoundException("Could not create a snapshot: " + e);
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println(mCache);
+        writer.println("PetChangeLog horizon="
+                + mChangeLog.horizon(mPetDbhelper.getReadableDatabase()));
+        mMetrics.dump(writer);
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -260,6 +1212,24 @@ public class PetProvider extends ContentProvider {
                 return PetContract.PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return PetContract.PetEntry.CONTENT_ITEM_TYPE;
+            case SEARCH:
+                return PetContract.PetEntry.CONTENT_LIST_TYPE;
+            case STATS:
+                return PetContract.StatsEntry.CONTENT_TYPE;
+            case CHANGES:
+                return PetContract.ChangesEntry.CONTENT_TYPE;
+            case METRICS:
+                return PetContract.MetricsEntry.CONTENT_TYPE;
+            case EXPORT:
+                return PetContract.FORMAT_JSON.equals(
+                        uri.getQueryParameter(PetContract.QUERY_PARAMETER_FORMAT))
+                        ? PetContract.PetEntry.JSON_TYPE : PetContract.PetEntry.CSV_TYPE;
+            case SNAPSHOT:
+                return PetContract.PetEntry.SNAPSHOT_TYPE;
+            case PHOTO:
+                return mPhotos.mimeTypeOf(petIdOf(uri));
+            case THUMBNAIL:
+                return PetContract.PetEntry.THUMBNAIL_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -0,0 +1,229 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Deletes pets logically and removes the deleted rows later.
+ *
+ * A deleted pet keeps its row with {@link PetDbHelper#COLUMN_DELETED_AT} set, and deleting every
+ * pet only moves the id up to which all pets are deleted, so a delete takes a short write
+ * however many pets it hits. The pets view hides both, and the triggers in {@link PetDbHelper}
+ * take the pets out of the stats and log their deletion as they are deleted. Deleting every pet
+ * logs a reset instead, so readers of the change log start over.
+ *
+ * The rows are purged on a background thread, in chunks of their own short transaction so that
+ * writes waiting for the database get in between, and the freed pages are given back to the file
+ * system by an incremental vacuum every few chunks. The photos of the purged pets go with them.
+ */
+class PetPurger {
+
+    /** Number of rows purged per transaction */
+    static final int DEFAULT_CHUNK_SIZE = 500;
+
+    /** Number of chunks purged between incremental vacuums */
+    static final int DEFAULT_VACUUM_INTERVAL = 8;
+
+    /** Maximum number of free pages given back by one incremental vacuum */
+    private static final int VACUUM_PAGES = 1000;
+
+    private static final String TAG = PetPurger.class.getSimpleName();
+
+    private static final String ID = PetContract.PetEntry._ID;
+
+    /** The number of pets that are not deleted, without counting them */
+    private static final String SQL_QUERY_COUNT = "SELECT " + PetDbHelper.STATS_COLUMN_COUNT
+            + " FROM " + PetDbHelper.STATS_TOTALS_TABLE_NAME;
+
+    /** The id of the last pet ever inserted, 0 before the first */
+    private static final String SQL_QUERY_LAST_ID = "SELECT ifnull(max(seq), 0) FROM "
+            + "sqlite_sequence WHERE name = '" + PetContract.PetEntry.TABLE_NAME + "'";
+
+    private final PetDbHelper mDbHelper;
+    private final PetPhotos mPhotos;
+    private final int mChunkSize;
+    private final int mVacuumInterval;
+
+    /** Whether a purge is queued and not started yet */
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private final Runnable mPurgeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled.set(false);
+            try {
+                purge();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to purge deleted pets", e);
+            }
+        }
+    };
+
+    PetPurger(PetDbHelper dbHelper, PetPhotos photos, int chunkSize, int vacuumInterval) {
+        mDbHelper = dbHelper;
+        mPhotos = photos;
+        mChunkSize = chunkSize;
+        mVacuumInterval = vacuumInterval;
+    }
+
+    /**
+     * Mark the pets of the given selection of the pets table deleted. The selection must only
+     * match pets that are not deleted yet. Returns the number of pets deleted.
+     */
+    static int delete(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        ContentValues values = new ContentValues();
+        values.put(PetDbHelper.COLUMN_DELETED_AT, System.currentTimeMillis());
+        return database.update(PetContract.PetEntry.TABLE_NAME, values, selection, selectionArgs);
+    }
+
+    /**
+     * Mark every pet deleted, in time independent of their number: the pets inserted so far are
+     * deleted by id, the summary tables emptied, and the change log moved past a reset, as every
+     * change logged before is superseded. Returns the number of pets deleted.
+     */
+    static int deleteAll(SQLiteDatabase database) {
+        database.beginTransaction();
+        try {
+            int deleted = (int) DatabaseUtils.longForQuery(database, SQL_QUERY_COUNT, null);
+            database.execSQL("UPDATE " + PetDbHelper.DELETIONS_TABLE_NAME + " SET "
+                    + PetDbHelper.DELETIONS_COLUMN_THROUGH + " = (" + SQL_QUERY_LAST_ID + ")");
+            database.execSQL("UPDATE " + PetDbHelper.STATS_TOTALS_TABLE_NAME + " SET "
+                    + PetDbHelper.STATS_COLUMN_COUNT + " = 0, "
+                    + PetDbHelper.STATS_COLUMN_WEIGHT_SUM + " = 0");
+            database.execSQL("DELETE FROM " + PetDbHelper.STATS_GENDER_TABLE_NAME);
+            database.execSQL("DELETE FROM " + PetDbHelper.STATS_BREED_TABLE_NAME);
+            database.execSQL("DELETE FROM " + PetDbHelper.STATS_WEIGHT_TABLE_NAME);
+            // Readers behind the new horizon get a reset row. The log is bounded by its
+            // compaction, so emptying it does not grow with the number of pets.
+            database.execSQL("INSERT INTO " + PetDbHelper.CHANGES_TABLE_NAME + " ("
+                    + PetContract.ChangesEntry.COLUMN_PET_ID + ", "
+                    + PetContract.ChangesEntry.COLUMN_OPERATION + ") VALUES (0, "
+                    + PetContract.ChangesEntry.OPERATION_RESET + ")");
+            database.execSQL("UPDATE " + PetDbHelper.CHANGES_HORIZON_TABLE_NAME + " SET "
+                    + PetDbHelper.CHANGES_COLUMN_HORIZON + " = (SELECT max("
+                    + PetContract.ChangesEntry.COLUMN_SEQUENCE + ") FROM "
+                    + PetDbHelper.CHANGES_TABLE_NAME + ")");
+            database.execSQL("DELETE FROM " + PetDbHelper.CHANGES_TABLE_NAME);
+            database.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Make way for a pet inserted with the given id by removing the row of a deleted pet with
+     * that id. An id up to which every pet was deleted at once is rejected, as the pets view
+     * would hide the new pet and moving the bound back would touch every pet under it. Must be
+     * called in the transaction of the insert.
+     */
+    static void prepareInsert(SQLiteDatabase database, long id) {
+        long through = DatabaseUtils.longForQuery(database, "SELECT "
+                + PetDbHelper.DELETIONS_COLUMN_THROUGH + " FROM "
+                + PetDbHelper.DELETIONS_TABLE_NAME, null);
+        if (id <= through) {
+            throw new IllegalArgumentException("Pet id " + id
+                    + " belongs to the pets deleted all at once, up to " + through);
+        }
+        database.delete(PetContract.PetEntry.TABLE_NAME, ID + " = ? AND "
+                + PetDbHelper.COLUMN_DELETED_AT + " IS NOT NULL",
+                new String[] { String.valueOf(id) });
+    }
+
+    /**
+     * Purge the deleted pets on the background thread, unless a purge is already waiting to
+     * start. A purge running now may miss pets deleted meanwhile, so another one is queued.
+     */
+    void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(mPurgeRunnable);
+        }
+    }
+
+    /**
+     * Remove the rows of every deleted pet, chunk by chunk. Returns the number of rows removed.
+     */
+    int purge() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int purged = 0;
+        int chunks = 0;
+        while (true) {
+            long[] ids = purgeChunk(database);
+            int count = ids.length;
+            if (count == 0) {
+                break;
+            }
+            mPhotos.delete(ids);
+            purged += count;
+            if (++chunks % mVacuumInterval == 0) {
+                vacuum(database);
+            }
+            if (count < mChunkSize) {
+                break;
+            }
+        }
+        if (chunks % mVacuumInterval != 0) {
+            vacuum(database);
+        }
+        return purged;
+    }
+
+    /**
+     * Remove up to one chunk of deleted rows: pets deleted all at once first, found by id, then
+     * pets deleted one by one, found by the index on their deletion time. Returns the ids of the
+     * pets removed, so their photos can go too.
+     */
+    private long[] purgeChunk(SQLiteDatabase database) {
+        String pets = PetContract.PetEntry.TABLE_NAME;
+        database.beginTransaction();
+        try {
+            // The unary + keeps SQLite from scanning the ids above the bound instead of the index
+            Cursor cursor = database.rawQuery("SELECT " + ID + " FROM " + pets
+                    + " WHERE " + ID + " <= " + PetDbHelper.DELETED_THROUGH + " UNION ALL SELECT "
+                    + ID + " FROM " + pets + " WHERE " + PetDbHelper.COLUMN_DELETED_AT
+                    + " IS NOT NULL AND +" + ID + " > " + PetDbHelper.DELETED_THROUGH
+                    + " LIMIT " + mChunkSize, null);
+            long[] ids;
+            StringBuilder joined = new StringBuilder();
+            try {
+                ids = new long[cursor.getCount()];
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    ids[i] = cursor.getLong(0);
+                    joined.append(i == 0 ? "" : ",").append(ids[i]);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (ids.length > 0) {
+                database.delete(pets, ID + " IN (" + joined + ")", null);
+            }
+            database.setTransactionSuccessful();
+            return ids;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Give free pages back to the file system, if the database was created for it.
+     */
+    private static void vacuum(SQLiteDatabase database) {
+        // Each step of the pragma frees one page
+        Cursor cursor = database.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                // Keep stepping
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.ContentResolverCompat;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs queries of {@link PetProvider} off the UI thread.
+ *
+ * Queries run on a small fixed pool of background threads, and the rows of their cursor are
+ * read in there too, so the UI thread never waits for the database. A query requested while an
+ * identical one is still waiting shares it. Once that one started it may have read the rows
+ * before a change the caller wants to see, so the query runs again. A query whose requests were
+ * all cancelled is cancelled in the provider too, through a {@link CancellationSignal}.
+ *
+ * Results are delivered to the {@link PetWriter.Callback} on the main thread. A query can also
+ * be given a {@link CursorReader} that turns the cursor into what the screen shows on the
+ * background thread, so a long list is never copied on the main thread. Otherwise the cursor
+ * itself is delivered, and closed once the callbacks return, so they must copy what they keep.
+ */
+public final class PetReader {
+
+    /**
+     * Reads the rows a screen needs out of a cursor, on the thread that ran the query.
+     */
+    public interface CursorReader<T> {
+        T read(Cursor cursor);
+    }
+
+    /** Number of queries run at the same time */
+    private static final int THREADS = 2;
+
+    private static PetReader sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREADS);
+
+    /** Queries waiting or running, by what they query. Only used on the main thread. */
+    private final Map<Key, Execution> mExecutions = new HashMap<>();
+
+    public static synchronized PetReader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetReader(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    private PetReader(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Query the provider, see {@link ContentResolver#query}. The cursor given to the callback,
+     * which may be null, is only valid until it returns. Must be called on the main thread.
+     */
+    public Request query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                         String sortOrder, PetWriter.Callback<Cursor> callback) {
+        return start(new Key(uri, projection, selection, selectionArgs, sortOrder, null),
+                callback);
+    }
+
+    /**
+     * Query the provider and read the cursor with the given reader in the background. Only
+     * queries read by the same reader instance are shared, so keep one reader per kind of
+     * result. Must be called on the main thread.
+     */
+    public <T> Request query(Uri uri, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder, CursorReader<T> reader,
+                             PetWriter.Callback<T> callback) {
+        return start(new Key(uri, projection, selection, selectionArgs, sortOrder, reader),
+                callback);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Request start(Key key, PetWriter.Callback<?> callback) {
+        Execution execution = mExecutions.get(key);
+        if (execution == null || execution.mStarted) {
+            execution = new Execution(key);
+            mExecutions.put(key, execution);
+            mExecutor.execute(execution);
+        }
+        Request request = new Request(execution, (PetWriter.Callback<Object>) callback);
+        execution.mRequests.add(request);
+        return request;
+    }
+
+    /**
+     * A query waiting for its result.
+     */
+    public final class Request {
+        private final Execution mExecution;
+        private final PetWriter.Callback<Object> mCallback;
+        private boolean mDone;
+
+        private Request(Execution execution, PetWriter.Callback<Object> callback) {
+            mExecution = execution;
+            mCallback = callback;
+        }
+
+        /**
+         * Drop the result, as when a newer query replaces this one. The query itself is
+         * cancelled unless another request shares it. Does nothing once the result was
+         * delivered. Must be called on the main thread.
+         */
+        public void cancel() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            List<Request> requests = mExecution.mRequests;
+            requests.remove(this);
+            if (requests.isEmpty()) {
+                mExecution.mSignal.cancel();
+                // A later identical query must not share the cancelled one
+                if (mExecutions.get(mExecution.mKey) == mExecution) {
+                    mExecutions.remove(mExecution.mKey);
+                }
+            }
+        }
+    }
+
+    private final class Execution implements Runnable {
+        final Key mKey;
+        final CancellationSignal mSignal = new CancellationSignal();
+        final List<Request> mRequests = new ArrayList<>();
+        /** Set once the query starts on its background thread */
+        volatile boolean mStarted;
+
+        Execution(Key key) {
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            mStarted = true;
+            Cursor cursor = null;
+            Object result = null;
+            Exception error = null;
+            try {
+                // Throws right away if every request was cancelled while this one waited
+                cursor = ContentResolverCompat.query(mResolver, mKey.mUri, mKey.mProjection,
+                        mKey.mSelection, mKey.mSelectionArgs, mKey.mSortOrder, mSignal);
+                if (cursor != null && mKey.mReader != null) {
+                    result = mKey.mReader.read(cursor);
+                    cursor.close();
+                    cursor = null;
+                } else if (cursor != null) {
+                    // Fill the window here instead of on first access on the main thread
+                    cursor.getCount();
+                    result = cursor;
+                }
+            } catch (OperationCanceledException e) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            } catch (RuntimeException e) {
+                if (cursor != null) {
+                    cursor.close();
+                    cursor = null;
+                }
+                result = null;
+                error = e;
+            }
+            final Object delivered = result;
+            final Exception failure = error;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(delivered, failure);
+                }
+            });
+        }
+
+        private void deliver(Object result, Exception error) {
+            Cursor cursor = mKey.mReader == null ? (Cursor) result : null;
+            if (mExecutions.get(mKey) == this) {
+                mExecutions.remove(mKey);
+            }
+            try {
+                for (Request request : new ArrayList<>(mRequests)) {
+                    // Cancelled by an earlier callback
+                    if (request.mDone) {
+                        continue;
+                    }
+                    request.mDone = true;
+                    if (error != null) {
+                        request.mCallback.onError(error);
+                    } else {
+                        if (cursor != null) {
+                            cursor.moveToPosition(-1);
+                        }
+                        request.mCallback.onComplete(result);
+                    }
+                }
+            } finally {
+                mRequests.clear();
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Everything that makes two queries identical.
+     */
+    private static final class Key {
+        final Uri mUri;
+        final String[] mProjection;
+        final String mSelection;
+        final String[] mSelectionArgs;
+        final String mSortOrder;
+        final CursorReader<?> mReader;
+
+        Key(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder, CursorReader<?> reader) {
+            mUri = uri;
+            // Copied, so a caller reusing its arrays does not change a running query
+            mProjection = projection == null ? null : projection.clone();
+            mSelection = selection;
+            mSelectionArgs = selectionArgs == null ? null : selectionArgs.clone();
+            mSortOrder = sortOrder;
+            mReader = reader;
+        }
+
+        private Object[] parts() {
+            return new Object[] {
+                    mUri, mProjection, mSelection, mSelectionArgs, mSortOrder, mReader
+            };
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.deepEquals(parts(), ((Key) o).parts());
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.deepHashCode(parts());
+        }
+    }
+}
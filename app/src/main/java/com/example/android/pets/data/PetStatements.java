@@ -0,0 +1,243 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiled statements for the single row writes of {@link PetProvider}: inserting a full row,
+ * and updating or deleting a pet by id. Each statement is compiled once for the open database
+ * and then only rebound, instead of building and parsing its SQL again on every call.
+ *
+ * A statement can only be bound by one thread at a time, so every thread gets statements of its
+ * own, and no lock is held while a statement waits for the database connection. A lock would
+ * deadlock: a thread in a transaction holds the connection between the rows it writes, and would
+ * wait for the lock held by a thread waiting for the connection.
+ *
+ * The statements of every thread are also tracked together, so that those of threads that
+ * ended are not kept forever: they are all closed once any thread finds the database reopened,
+ * and by {@link #close} when the provider shuts down.
+ *
+ * Lookups by id are not here: a compiled statement cannot return a row, so they stay queries
+ * and are mostly answered by {@link PetCache} instead.
+ *
+ * The values written are rows of the pets table, with the breed already translated to its id by
+ * {@link PetBreeds#toRow}.
+ */
+class PetStatements {
+
+    /** Number of distinct column sets whose update statement is kept per thread */
+    private static final int MAX_UPDATE_STATEMENTS = 8;
+
+    private static final String SQL_INSERT_PET = "INSERT INTO " + PetContract.PetEntry.TABLE_NAME
+            + " (" + PetContract.PetEntry.COLUMN_NAME + ", "
+            + PetDbHelper.COLUMN_BREED_ID + ", "
+            + PetContract.PetEntry.COLUMN_GENDER + ", "
+            + PetContract.PetEntry.COLUMN_WEIGHT + ") VALUES (?, ?, ?, ?)";
+
+    /** Only pets that are not deleted yet are updated or deleted */
+    private static final String WHERE_LIVE_ID = " WHERE " + PetContract.PetEntry._ID + "=? AND "
+            + PetDbHelper.isLive(PetContract.PetEntry.TABLE_NAME);
+
+    /** Deletes a pet by setting its deletion time, see {@link PetPurger} */
+    private static final String SQL_DELETE_PET = "UPDATE " + PetContract.PetEntry.TABLE_NAME
+            + " SET " + PetDbHelper.COLUMN_DELETED_AT + "=?" + WHERE_LIVE_ID;
+
+    private final PetDbHelper mDbHelper;
+
+    /** The statements of the calling thread */
+    private final ThreadLocal<Compiled> mCompiled = new ThreadLocal<Compiled>() {
+        @Override
+        protected Compiled initialValue() {
+            return new Compiled();
+        }
+    };
+
+    /** The statements of every thread that compiled some for an open database */
+    private final Set<Compiled> mAllCompiled =
+            Collections.newSetFromMap(new ConcurrentHashMap<Compiled, Boolean>());
+
+    PetStatements(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Returns true if the given row only holds columns of a full row insert, so that
+     * {@link #insert} writes exactly what {@link SQLiteDatabase#insert} would.
+     */
+    static boolean isInsertable(ContentValues row) {
+        int columns = 0;
+        if (row.containsKey(PetContract.PetEntry.COLUMN_NAME)) columns++;
+        if (row.containsKey(PetDbHelper.COLUMN_BREED_ID)) columns++;
+        if (row.containsKey(PetContract.PetEntry.COLUMN_GENDER)) columns++;
+        if (row.containsKey(PetContract.PetEntry.COLUMN_WEIGHT)) columns++;
+        return columns == row.size();
+    }
+
+    /**
+     * Insert the row of an already validated pet, see {@link #isInsertable}. Returns the id of
+     * the new row, or -1 on failure.
+     */
+    long insert(ContentValues row) {
+        Compiled compiled = compiled();
+        if (compiled.insert == null) {
+            compiled.insert = compiled.database.compileStatement(SQL_INSERT_PET);
+        }
+        SQLiteStatement insert = compiled.insert;
+        insert.clearBindings();
+        insert.bindString(1, row.getAsString(PetContract.PetEntry.COLUMN_NAME));
+        Long breedId = row.getAsLong(PetDbHelper.COLUMN_BREED_ID);
+        if (breedId == null) {
+            insert.bindNull(2);
+        } else {
+            insert.bindLong(2, breedId);
+        }
+        insert.bindLong(3, row.getAsInteger(PetContract.PetEntry.COLUMN_GENDER));
+        insert.bindLong(4, row.getAsInteger(PetContract.PetEntry.COLUMN_WEIGHT));
+        return insert.executeInsert();
+    }
+
+    /**
+     * Set the given columns of the pet with the given id. Returns the number of rows changed.
+     */
+    int updateById(long id, ContentValues row) {
+        Compiled compiled = compiled();
+
+        StringBuilder key = new StringBuilder();
+        for (String column : row.keySet()) {
+            key.append(column).append(',');
+        }
+        SQLiteStatement update = compiled.updates.get(key.toString());
+        if (update == null) {
+            StringBuilder sql = new StringBuilder("UPDATE ")
+                    .append(PetContract.PetEntry.TABLE_NAME).append(" SET ");
+            int i = 0;
+            for (String column : row.keySet()) {
+                sql.append(i++ == 0 ? "" : ", ").append(column).append("=?");
+            }
+            sql.append(WHERE_LIVE_ID);
+            update = compiled.database.compileStatement(sql.toString());
+            compiled.updates.put(key.toString(), update);
+        }
+
+        update.clearBindings();
+        int index = 1;
+        for (String column : row.keySet()) {
+            DatabaseUtils.bindObjectToProgram(update, index++, row.get(column));
+        }
+        update.bindLong(index, id);
+        return update.executeUpdateDelete();
+    }
+
+    /**
+     * Mark the pet with the given id deleted. Returns the number of pets deleted.
+     */
+    int deleteById(long id) {
+        Compiled compiled = compiled();
+        if (compiled.delete == null) {
+            compiled.delete = compiled.database.compileStatement(SQL_DELETE_PET);
+        }
+        compiled.delete.bindLong(1, System.currentTimeMillis());
+        compiled.delete.bindLong(2, id);
+        return compiled.delete.executeUpdateDelete();
+    }
+
+    /**
+     * Close the statements of every thread, as when the database is closed. Threads writing
+     * later compile new ones.
+     */
+    void close() {
+        closeStale(null);
+    }
+
+    /**
+     * Returns the statements of the calling thread for the writable database. Once the database
+     * was reopened, the statements of every thread compiled for a previous one are closed.
+     */
+    private Compiled compiled() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Compiled compiled = mCompiled.get();
+        if (database != compiled.database) {
+            compiled.rebind(database, mAllCompiled);
+            closeStale(database);
+        }
+        return compiled;
+    }
+
+    /**
+     * Close the statements of every thread not compiled for the given database.
+     */
+    private void closeStale(SQLiteDatabase database) {
+        for (Compiled compiled : mAllCompiled) {
+            compiled.closeUnless(database, mAllCompiled);
+        }
+    }
+
+    /**
+     * The statements of one thread, only used by that thread. Other threads only close them,
+     * once they were compiled for a database that is no longer open.
+     */
+    private static final class Compiled {
+        volatile SQLiteDatabase database;
+        SQLiteStatement insert;
+        SQLiteStatement delete;
+
+        /** Update statements keyed by the columns they set, least recently used first */
+        final Map<String, SQLiteStatement> updates =
+                new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<String, SQLiteStatement> eldest) {
+                        if (size() > MAX_UPDATE_STATEMENTS) {
+                            eldest.getValue().close();
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+
+        /**
+         * Close the statements and compile the next ones for the given database, tracked in the
+         * given set until they are closed.
+         */
+        synchronized void rebind(SQLiteDatabase newDatabase, Set<Compiled> all) {
+            close();
+            database = newDatabase;
+            all.add(this);
+        }
+
+        /**
+         * Close the statements and stop tracking them, unless they were compiled for the given
+         * database.
+         */
+        synchronized void closeUnless(SQLiteDatabase current, Set<Compiled> all) {
+            if (database != current) {
+                close();
+                all.remove(this);
+            }
+        }
+
+        private void close() {
+            if (insert != null) {
+                insert.close();
+                insert = null;
+            }
+            if (delete != null) {
+                delete.close();
+                delete = null;
+            }
+            for (SQLiteStatement update : updates.values()) {
+                update.close();
+            }
+            updates.clear();
+            database = null;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.android.pets.data;
+
+/**
+ * Thrown by {@link PetProvider} when a pet may not be written, instead of writing it.
+ */
+public class PetValidationException extends IllegalArgumentException {
+
+    /** Row index used when the invalid values were not part of a batch */
+    public static final int NO_ROW = -1;
+
+    /** Number of invalid rows of a batch described in the message. Later ones are counted. */
+    private static final int MAX_DESCRIBED_ROWS = 10;
+
+    private final int mRow;
+    private final int mError;
+    private final PetValidator.Result mResult;
+
+    public PetValidationException(int row, int error) {
+        super(describe(row, error));
+        mRow = row;
+        mError = error;
+        mResult = null;
+    }
+
+    /**
+     * Thrown for every invalid row of a batch at once. Only the message crosses processes, so it
+     * describes the rows too.
+     */
+    public PetValidationException(PetValidator.Result result) {
+        super(describe(result));
+        mRow = result.rowAt(0);
+        mError = result.errorAt(0);
+        mResult = result;
+    }
+
+    /** Returns the index of the first invalid row in its batch, or {@link #NO_ROW} */
+    public int getRow() {
+        return mRow;
+    }
+
+    /** Returns one of the {@link PetValidator} ERROR_ codes, of the first invalid row */
+    public int getError() {
+        return mError;
+    }
+
+    /** Returns every invalid row of the batch, or null if the values were not part of one */
+    public PetValidator.Result getResult() {
+        return mResult;
+    }
+
+    private static String describe(int row, int error) {
+        return row == NO_ROW ? PetValidator.describe(error)
+                : PetValidator.describe(error) + " (row " + row + ")";
+    }
+
+    private static String describe(PetValidator.Result result) {
+        StringBuilder message = new StringBuilder();
+        int described = Math.min(result.size(), MAX_DESCRIBED_ROWS);
+        for (int i = 0; i < described; i++) {
+            message.append(i == 0 ? "" : "; ")
+                    .append(describe(result.rowAt(i), result.errorAt(i)));
+        }
+        if (result.size() > described) {
+            message.append("; and ").append(result.size() - described).append(" more rows");
+        }
+        return message.toString();
+    }
+}
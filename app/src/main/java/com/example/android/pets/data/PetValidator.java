@@ -0,0 +1,172 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+/**
+ * Checks pet rows before they are written by {@link PetProvider}.
+ *
+ * Checks return one of the int ERROR_ codes, or {@link #VALID}, and allocate nothing for valid
+ * rows, so whole batches can be checked in one pass before a transaction is opened. The
+ * {@code check} variants throw a {@link PetValidationException} instead, which for a batch
+ * carries every invalid row.
+ */
+public final class PetValidator {
+    private PetValidator() {}
+
+    public static final int VALID = 0;
+    public static final int ERROR_MISSING_NAME = 1;
+    public static final int ERROR_INVALID_GENDER = 2;
+    public static final int ERROR_INVALID_WEIGHT = 3;
+
+    /**
+     * Validate a row about to be inserted: it needs a name, a valid gender and a weight of at
+     * least 0.
+     */
+    public static int validateInsert(ContentValues values) {
+        String name = values.getAsString(PetContract.PetEntry.COLUMN_NAME);
+        if (name == null || name.isEmpty()) {
+            return ERROR_MISSING_NAME;
+        }
+        Integer gender = values.getAsInteger(PetContract.PetEntry.COLUMN_GENDER);
+        if (gender == null || !PetContract.PetEntry.isValidGender(gender)) {
+            return ERROR_INVALID_GENDER;
+        }
+        Integer weight = values.getAsInteger(PetContract.PetEntry.COLUMN_WEIGHT);
+        if (weight == null || weight < 0) {
+            return ERROR_INVALID_WEIGHT;
+        }
+        return VALID;
+    }
+
+    /**
+     * Validate the values of an update. Only the columns present are checked, and a present
+     * name or gender may not be cleared.
+     */
+    public static int validateUpdate(ContentValues values) {
+        if (values.containsKey(PetContract.PetEntry.COLUMN_NAME)) {
+            String name = values.getAsString(PetContract.PetEntry.COLUMN_NAME);
+            if (name == null || name.isEmpty()) {
+                return ERROR_MISSING_NAME;
+            }
+        }
+        if (values.containsKey(PetContract.PetEntry.COLUMN_GENDER)) {
+            Integer gender = values.getAsInteger(PetContract.PetEntry.COLUMN_GENDER);
+            if (gender == null || !PetContract.PetEntry.isValidGender(gender)) {
+                return ERROR_INVALID_GENDER;
+            }
+        }
+        if (values.containsKey(PetContract.PetEntry.COLUMN_WEIGHT)) {
+            Integer weight = values.getAsInteger(PetContract.PetEntry.COLUMN_WEIGHT);
+            if (weight != null && weight < 0) {
+                return ERROR_INVALID_WEIGHT;
+            }
+        }
+        return VALID;
+    }
+
+    /**
+     * Validate every row of a batch of inserts in one pass.
+     *
+     * @return null if every row is valid, otherwise the invalid rows and their errors
+     */
+    public static Result validateInserts(ContentValues[] rows) {
+        Result result = null;
+        for (int i = 0; i < rows.length; i++) {
+            int error = validateInsert(rows[i]);
+            if (error != VALID) {
+                if (result == null) {
+                    result = new Result();
+                }
+                result.add(i, error);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Throw a {@link PetValidationException} if the row may not be inserted.
+     */
+    public static void checkInsert(ContentValues values) {
+        int error = validateInsert(values);
+        if (error != VALID) {
+            throw new PetValidationException(PetValidationException.NO_ROW, error);
+        }
+    }
+
+    /**
+     * Throw a {@link PetValidationException} carrying every row of the batch that may not be
+     * inserted, see {@link #validateInserts}.
+     */
+    public static void checkInserts(ContentValues[] rows) {
+        Result result = validateInserts(rows);
+        if (result != null) {
+            throw new PetValidationException(result);
+        }
+    }
+
+    /**
+     * Throw a {@link PetValidationException} if the values may not be used for an update.
+     */
+    public static void checkUpdate(ContentValues values) {
+        int error = validateUpdate(values);
+        if (error != VALID) {
+            throw new PetValidationException(PetValidationException.NO_ROW, error);
+        }
+    }
+
+    /**
+     * Returns a message describing an error code.
+     */
+    public static String describe(int error) {
+        switch (error) {
+            case VALID:
+                return "Pet is valid";
+            case ERROR_MISSING_NAME:
+                return "Pet requires a name";
+            case ERROR_INVALID_GENDER:
+                return "Pet requires valid gender";
+            case ERROR_INVALID_WEIGHT:
+                return "Pet requires valid weight";
+            default:
+                return "Unknown validation error " + error;
+        }
+    }
+
+    /**
+     * The invalid rows of a batch, in row order.
+     */
+    public static final class Result {
+        private int[] mRows = new int[4];
+        private int[] mErrors = new int[4];
+        private int mCount;
+
+        void add(int row, int error) {
+            if (mCount == mRows.length) {
+                int[] rows = new int[mCount * 2];
+                int[] errors = new int[mCount * 2];
+                System.arraycopy(mRows, 0, rows, 0, mCount);
+                System.arraycopy(mErrors, 0, errors, 0, mCount);
+                mRows = rows;
+                mErrors = errors;
+            }
+            mRows[mCount] = row;
+            mErrors[mCount] = error;
+            mCount++;
+        }
+
+        /** Returns the number of invalid rows */
+        public int size() {
+            return mCount;
+        }
+
+        /** Returns the index in the batch of the i-th invalid row */
+        public int rowAt(int i) {
+            return mRows[i];
+        }
+
+        /** Returns the error code of the i-th invalid row */
+        public int errorAt(int i) {
+            return mErrors[i];
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs writes to {@link PetProvider} off the UI thread.
+ *
+ * All writes go through one background thread in the order they were submitted, so a delete
+ * queued after an update always sees the update. Results are available from the returned
+ * {@link Future}, and are also delivered to the optional {@link Callback} on the main thread.
+ */
+public final class PetWriter {
+
+    /**
+     * Receives the result of a write on the main thread.
+     */
+    public interface Callback<T> {
+        void onComplete(T result);
+
+        void onError(Exception e);
+    }
+
+    private static PetWriter sInstance;
+
+    private final ContentResolver mResolver;
+    private final File mCacheDir;
+    private final Handler mWriteHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Inserts waiting to be written by one bulk insert. Guarded by {@code this}. */
+    private List<ContentValues> mPendingInserts;
+    private FutureTask<Integer> mPendingInsertTask;
+
+    public static synchronized PetWriter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetWriter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetWriter(Context context) {
+        mResolver = context.getContentResolver();
+        mCacheDir = context.getCacheDir();
+        HandlerThread thread = new HandlerThread(PetWriter.class.getSimpleName(),
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWriteHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Insert a row, see {@link ContentResolver#insert}.
+     */
+    public Future<Uri> insert(final Uri uri, final ContentValues values, Callback<Uri> callback) {
+        return submit(new Callable<Uri>() {
+            @Override
+            public Uri call() {
+                return mResolver.insert(uri, values);
+            }
+        }, callback);
+    }
+
+    /**
+     * Update rows, see {@link ContentResolver#update}.
+     */
+    public Future<Integer> update(final Uri uri, final ContentValues values,
+                                  final String selection, final String[] selectionArgs,
+                                  Callback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mResolver.update(uri, values, selection, selectionArgs);
+            }
+        }, callback);
+    }
+
+    /**
+     * Delete rows, see {@link ContentResolver#delete}.
+     */
+    public Future<Integer> delete(final Uri uri, final String selection,
+                                  final String[] selectionArgs, Callback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mResolver.delete(uri, selection, selectionArgs);
+            }
+        }, callback);
+    }
+
+    /**
+     * Apply the operations in one transaction, see {@link ContentResolver#applyBatch}.
+     */
+    public Future<ContentProviderResult[]> applyBatch(
+            final ArrayList<ContentProviderOperation> operations,
+            Callback<ContentProviderResult[]> callback) {
+        return submit(new Callable<ContentProviderResult[]>() {
+            @Override
+            public ContentProviderResult[] call() throws Exception {
+                return mResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+            }
+        }, callback);
+    }
+
+    /**
+     * Replace the photo of a pet with the image at the given URI, such as one picked from the
+     * gallery, see {@link PetContract.PetEntry#buildPhotoUri}.
+     *
+     * The provider writes photos in the background and cannot report a photo it rejects, so the
+     * image is copied to a temporary file and checked first: the write fails with an IOException,
+     * leaving the photo as it was, if it is too large or cannot be decoded.
+     */
+    public Future<Void> setPhoto(final long id, final Uri source, Callback<Void> callback) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                InputStream in = mResolver.openInputStream(source);
+                if (in == null) {
+                    throw new FileNotFoundException("Cannot read " + source);
+                }
+                File temp = File.createTempFile("photo", ".tmp", mCacheDir);
+                try {
+                    try {
+                        copy(in, new FileOutputStream(temp), PetPhotos.MAX_PHOTO_BYTES);
+                    } finally {
+                        in.close();
+                    }
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inJustDecodeBounds = true;
+                    BitmapFactory.decodeFile(temp.getPath(), options);
+                    if (options.outWidth <= 0 || options.outHeight <= 0) {
+                        throw new IOException("Not an image: " + source);
+                    }
+
+                    OutputStream out = mResolver.openOutputStream(
+                            PetContract.PetEntry.buildPhotoUri(id), "w");
+                    if (out == null) {
+                        throw new FileNotFoundException("Cannot write the photo of pet " + id);
+                    }
+                    InputStream checked = new FileInputStream(temp);
+                    try {
+                        copy(checked, out, Long.MAX_VALUE);
+                    } finally {
+                        checked.close();
+                    }
+                } finally {
+                    temp.delete();
+                }
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Copy {@code in} to {@code out} and close {@code out}, failing once more than {@code max}
+     * bytes were read.
+     */
+    private static void copy(InputStream in, OutputStream out, long max) throws IOException {
+        try {
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+                if (total > max) {
+                    throw new IOException("Larger than " + max + " bytes");
+                }
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Queue a pet to be inserted together with the other pets queued right after it, using one
+     * bulk insert. The returned future holds the number of rows written by that bulk insert.
+     * Any other write submitted in between closes the batch, so ordering is preserved.
+     */
+    public synchronized Future<Integer> insertBatched(ContentValues values) {
+        if (mPendingInserts == null) {
+            final List<ContentValues> inserts = new ArrayList<>();
+            mPendingInserts = inserts;
+            mPendingInsertTask = submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    synchronized (PetWriter.this) {
+                        if (mPendingInserts == inserts) {
+                            closeBatch();
+                        }
+                    }
+                    return mResolver.bulkInsert(PetContract.PetEntry.CONTENT_URI,
+                            inserts.toArray(new ContentValues[inserts.size()]));
+                }
+            }, null, false);
+        }
+        mPendingInserts.add(values);
+        return mPendingInsertTask;
+    }
+
+    private <T> FutureTask<T> submit(Callable<T> write, Callback<T> callback) {
+        return submit(write, callback, true);
+    }
+
+    private synchronized <T> FutureTask<T> submit(Callable<T> write, final Callback<T> callback,
+                                                  boolean closesBatch) {
+        if (closesBatch) {
+            closeBatch();
+        }
+        FutureTask<T> task = new FutureTask<T>(write) {
+            @Override
+            protected void done() {
+                if (callback != null && !isCancelled()) {
+                    deliver(this, callback);
+                }
+            }
+        };
+        mWriteHandler.post(task);
+        return task;
+    }
+
+    private void closeBatch() {
+        mPendingInserts = null;
+        mPendingInsertTask = null;
+    }
+
+    private <T> void deliver(final Future<T> task, final Callback<T> callback) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                T result;
+                try {
+                    result = task.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    callback.onError(cause instanceof Exception ? (Exception) cause : e);
+                    return;
+                } catch (InterruptedException e) {
+                    callback.onError(e);
+                    return;
+                }
+                callback.onComplete(result);
+            }
+        });
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.android.pets.sync;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * An in-process sync server keeping every pet in memory, to run {@link PetSyncEngine} against
+ * without a network.
+ *
+ * It behaves like the real registry: every accepted change gets the next version, changes based
+ * on an older version than the server's copy are rejected as conflicts, deletions are kept as
+ * tombstones, and the delta token of a pull is the last version it returned. Other devices are
+ * simulated with {@link #put}, and network failures with {@link #failNext}. The bytes moved are
+ * counted, to check that a sync costs what changed and not the size of the table.
+ */
+public final class FakeSyncServer implements SyncTransport {
+
+    private final Map<String, SyncRecord> mById = new HashMap<>();
+    private final NavigableMap<Long, SyncRecord> mByVersion = new TreeMap<>();
+    private long mVersion;
+
+    private int mFailures;
+    private int mRequests;
+    private long mBytesReceived;
+    private long mBytesSent;
+
+    @Override
+    public synchronized byte[] push(byte[] changes) throws IOException {
+        receive(changes);
+        SyncCodec.PushResult result = new SyncCodec.PushResult();
+        for (SyncRecord record : SyncCodec.decodePush(changes)) {
+            SyncRecord current = mById.get(record.globalId);
+            if (current != null && current.version != record.version) {
+                result.conflicts.add(current);
+            } else {
+                result.accepted.put(record.globalId, store(record).version);
+            }
+        }
+        return send(SyncCodec.encodePushResult(result));
+    }
+
+    @Override
+    public synchronized byte[] pull(String token, int limit) throws IOException {
+        receive(null);
+        long after;
+        try {
+            after = token == null ? 0 : Long.parseLong(token);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid delta token " + token);
+        }
+
+        SyncCodec.PullPage page = new SyncCodec.PullPage();
+        long last = after;
+        for (SyncRecord record : mByVersion.tailMap(after, false).values()) {
+            if (page.records.size() == limit) {
+                page.hasMore = true;
+                break;
+            }
+            page.records.add(record);
+            last = record.version;
+        }
+        page.token = String.valueOf(last);
+        return send(SyncCodec.encodePullPage(page));
+    }
+
+    /**
+     * Write a pet as another device would, whatever the version of the server's copy. Returns
+     * the record stored, with its new version.
+     */
+    public synchronized SyncRecord put(SyncRecord record) {
+        return store(record);
+    }
+
+    /**
+     * Returns the server's copy of a pet, a tombstone if it was deleted, or null if the server
+     * never had it.
+     */
+    public synchronized SyncRecord get(String globalId) {
+        return mById.get(globalId);
+    }
+
+    /**
+     * Returns the number of pets on the server, not counting tombstones.
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (SyncRecord record : mById.values()) {
+            if (!record.deleted) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Make the next {@code count} requests fail with an IOException.
+     */
+    public synchronized void failNext(int count) {
+        mFailures = count;
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequests;
+    }
+
+    public synchronized long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    private SyncRecord store(SyncRecord record) {
+        SyncRecord previous = mById.get(record.globalId);
+        if (previous != null) {
+            mByVersion.remove(previous.version);
+        }
+        SyncRecord stored = record.withVersion(++mVersion);
+        mById.put(stored.globalId, stored);
+        mByVersion.put(stored.version, stored);
+        return stored;
+    }
+
+    private void receive(byte[] request) throws IOException {
+        mRequests++;
+        if (mFailures > 0) {
+            mFailures--;
+            throw new IOException("Simulated network failure");
+        }
+        if (request != null) {
+            mBytesReceived += request.length;
+        }
+    }
+
+    private byte[] send(byte[] response) {
+        mBytesSent += response.length;
+        return response;
+    }
+}
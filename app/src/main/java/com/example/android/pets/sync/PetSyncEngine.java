@@ -0,0 +1,562 @@
+package com.example.android.pets.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Synchronizes the pets of {@link com.example.android.pets.data.PetProvider} with the shared
+ * registry through a {@link SyncTransport}.
+ *
+ * A sync first pushes the local changes, read page by page from the change log
+ * ({@link PetContract.ChangesEntry}) after the last change pushed, then pulls the records changed
+ * on the server after the last delta token. Only what changed is sent either way, in compressed
+ * pages, so a sync costs in proportion to the changes since the last one and not to the number
+ * of pets. Pulled records are written as a sync adapter, so they are logged as remote changes
+ * and never pushed back.
+ *
+ * Pets are identified on the server by a global id, a UUID given to a pet the first time it is
+ * pushed and kept in {@link PetSyncState} together with its local id. Local ids are never sent,
+ * as those of different devices collide, and pulled pets are inserted under a new local id.
+ *
+ * Every change is sent with the server version it was based on. The server rejects changes based
+ * on an older version than its own copy, and these conflicts, as well as pulled records for pets
+ * with local changes not pushed yet, are settled per pet by the {@link ConflictResolver}.
+ *
+ * Syncs block on the transport and the provider, so they must not run on the main thread;
+ * {@link PetSyncScheduler} runs them in the background.
+ */
+public final class PetSyncEngine {
+
+    /** Default number of records per pushed or pulled page */
+    public static final int DEFAULT_PAGE_SIZE = 200;
+
+    /** Number of times a change is pushed again after losing a conflict it should have won */
+    private static final int MAX_PUSH_ATTEMPTS = 3;
+
+    private static final String LOG_TAG = PetSyncEngine.class.getSimpleName();
+
+    /**
+     * Settles a conflict between the local and the server's copy of a pet. Either may be a
+     * tombstone. Returning {@code remote} keeps the server's copy, returning {@code local} keeps
+     * the local one, and any other record with the same ids is kept as a merge of both.
+     */
+    public interface ConflictResolver {
+        SyncRecord resolve(SyncRecord local, SyncRecord remote);
+    }
+
+    /** Keeps the server's copy: the change that reached the registry first wins */
+    public static final ConflictResolver REMOTE_WINS = new ConflictResolver() {
+        @Override
+        public SyncRecord resolve(SyncRecord local, SyncRecord remote) {
+            return remote;
+        }
+    };
+
+    /** Keeps the local copy: the change made on this device wins */
+    public static final ConflictResolver LOCAL_WINS = new ConflictResolver() {
+        @Override
+        public SyncRecord resolve(SyncRecord local, SyncRecord remote) {
+            return local;
+        }
+    };
+
+    private final ContentResolver mResolver;
+    private final SyncTransport mTransport;
+    private final PetSyncState mState;
+    private ConflictResolver mConflictResolver = REMOTE_WINS;
+    private int mPageSize = DEFAULT_PAGE_SIZE;
+
+    public PetSyncEngine(Context context, SyncTransport transport) {
+        this(context.getContentResolver(), transport,
+                new PetSyncState(context.getApplicationContext()));
+    }
+
+    PetSyncEngine(ContentResolver resolver, SyncTransport transport, PetSyncState state) {
+        mResolver = resolver;
+        mTransport = transport;
+        mState = state;
+    }
+
+    public synchronized PetSyncEngine setConflictResolver(ConflictResolver resolver) {
+        mConflictResolver = resolver;
+        return this;
+    }
+
+    /**
+     * Set how many records are sent or received per page.
+     */
+    public synchronized PetSyncEngine setPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be at least 1: " + pageSize);
+        }
+        mPageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Push every local change and pull every remote one. A failure leaves everything synced up
+     * to the last complete page, and the next sync continues from there.
+     */
+    public synchronized Result sync() throws IOException {
+        Result result = new Result();
+        push(result);
+        pull(result);
+        return result;
+    }
+
+    /**
+     * Returns true if there are local changes that were not pushed yet.
+     */
+    public synchronized boolean hasLocalChanges() throws IOException {
+        Cursor cursor = queryChanges(mState.getPushedSequence(), -1);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(2) == PetContract.ChangesEntry.OPERATION_RESET
+                        || cursor.getInt(3) == PetContract.ChangesEntry.ORIGIN_LOCAL) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void push(Result result) throws IOException {
+        long pushed = mState.getPushedSequence();
+        while (true) {
+            Set<Long> changed = new LinkedHashSet<>();
+            Set<Long> deleted = new LinkedHashSet<>();
+            long last = pushed;
+            long reset = -1;
+            int count;
+            Cursor cursor = queryChanges(pushed, mPageSize);
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    last = cursor.getLong(0);
+                    int operation = cursor.getInt(2);
+                    if (operation == PetContract.ChangesEntry.OPERATION_RESET) {
+                        reset = last;
+                    } else if (cursor.getInt(3) == PetContract.ChangesEntry.ORIGIN_LOCAL) {
+                        // Remote changes were written by this engine and are on the server
+                        if (operation == PetContract.ChangesEntry.OPERATION_DELETE) {
+                            deleted.add(cursor.getLong(1));
+                        } else {
+                            changed.add(cursor.getLong(1));
+                        }
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (reset >= 0) {
+                // Changes were compacted away before they were pushed, push every pet instead
+                pushAll(result);
+            } else {
+                Set<Long> ids = new LinkedHashSet<>(changed);
+                ids.addAll(deleted);
+                pushPage(toRecords(ids, readLocal(changed)), result);
+            }
+
+            pushed = last;
+            mState.setPushedSequence(pushed);
+            if (count < mPageSize || reset >= 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Push every local pet, and a tombstone for every synced pet that no longer exists.
+     */
+    private void pushAll(Result result) throws IOException {
+        long lastId = 0;
+        while (true) {
+            Map<Long, SyncRecord> rows = new LinkedHashMap<>();
+            Cursor cursor = mResolver.query(
+                    PetContract.PetEntry.buildPageAfterIdUri(mPageSize, lastId),
+                    SyncRecord.COLUMNS, null, null, null);
+            if (cursor == null) {
+                throw new IOException("Pets could not be queried");
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    SyncRecord row = SyncRecord.fromCursor(cursor, 0);
+                    rows.put(row.id, row);
+                    lastId = row.id;
+                }
+            } finally {
+                cursor.close();
+            }
+            pushPage(toRecords(rows.keySet(), rows), result);
+            if (rows.size() < mPageSize) {
+                break;
+            }
+        }
+
+        long after = 0;
+        long[] ids;
+        do {
+            ids = mState.getIdsAfter(after, mPageSize);
+            Set<Long> synced = new LinkedHashSet<>();
+            for (long id : ids) {
+                synced.add(id);
+                after = id;
+            }
+            synced.removeAll(readLocal(synced).keySet());
+            pushPage(toRecords(synced, new HashMap<Long, SyncRecord>()), result);
+        } while (ids.length == mPageSize);
+    }
+
+    /**
+     * Returns the records to push for the given local pets: the row of those in {@code rows}, a
+     * tombstone for the others the server has. Pets pushed for the first time are given a new
+     * global id.
+     */
+    private List<SyncRecord> toRecords(Collection<Long> ids, Map<Long, SyncRecord> rows) {
+        Map<Long, String> globalIds = mState.getGlobalIds(ids);
+        Map<Long, String> assigned = new HashMap<>();
+        for (Long id : ids) {
+            if (!globalIds.containsKey(id) && rows.containsKey(id)) {
+                assigned.put(id, UUID.randomUUID().toString());
+            }
+        }
+        // Stored before the push, so a pet whose push was accepted but not answered is pushed
+        // again under the same global id and not as another pet
+        mState.putGlobalIds(assigned);
+        globalIds.putAll(assigned);
+
+        Map<String, Long> versions = mState.getVersions(globalIds.values());
+        List<SyncRecord> records = new ArrayList<>();
+        for (Long id : ids) {
+            String globalId = globalIds.get(id);
+            if (globalId == null) {
+                // Deleted before it was ever pushed, the server never had it
+                continue;
+            }
+            long version = versions.containsKey(globalId) ? versions.get(globalId) : 0;
+            // A pet changed and then deleted before the query is pushed as deleted
+            SyncRecord row = rows.get(id);
+            records.add(row != null ? row.withGlobalId(globalId).withVersion(version)
+                    : SyncRecord.tombstone(globalId, version).withId(id));
+        }
+        return records;
+    }
+
+    /**
+     * Push one page of records. Conflicts are settled by the conflict resolver: records the
+     * server keeps are written locally, records kept locally are pushed again based on the
+     * server's version.
+     */
+    private void pushPage(List<SyncRecord> records, Result result) throws IOException {
+        for (int attempt = 1; !records.isEmpty(); attempt++) {
+            SyncCodec.PushResult pushResult = SyncCodec.decodePushResult(
+                    mTransport.push(SyncCodec.encodePush(records)));
+
+            Map<String, SyncRecord> byId = new HashMap<>();
+            for (SyncRecord record : records) {
+                byId.put(record.globalId, record);
+            }
+            Map<String, Long> versions = new HashMap<>();
+            for (Map.Entry<String, Long> accepted : pushResult.accepted.entrySet()) {
+                SyncRecord record = byId.get(accepted.getKey());
+                versions.put(accepted.getKey(),
+                        record != null && record.deleted ? 0 : accepted.getValue());
+            }
+            result.pushed += pushResult.accepted.size();
+
+            List<SyncRecord> retry = new ArrayList<>();
+            List<SyncRecord> keep = new ArrayList<>();
+            for (SyncRecord conflict : pushResult.conflicts) {
+                result.conflicts++;
+                SyncRecord local = byId.get(conflict.globalId);
+                SyncRecord remote = local == null ? conflict : conflict.withId(local.id);
+                SyncRecord winner = local == null || attempt == MAX_PUSH_ATTEMPTS
+                        ? remote : mConflictResolver.resolve(local, remote);
+                if (winner != local) {
+                    keep.add(winner);
+                }
+                if (winner == remote) {
+                    versions.put(remote.globalId, remote.deleted ? 0 : remote.version);
+                } else {
+                    retry.add(winner.withVersion(remote.version));
+                }
+            }
+            applyRemote(keep);
+            mState.putVersions(versions);
+            records = retry;
+        }
+    }
+
+    private void pull(Result result) throws IOException {
+        String token = mState.getPullToken();
+        while (true) {
+            SyncCodec.PullPage page = SyncCodec.decodePullPage(
+                    mTransport.pull(token, mPageSize));
+
+            Set<String> globalIds = new LinkedHashSet<>();
+            for (SyncRecord record : page.records) {
+                globalIds.add(record.globalId);
+            }
+            Map<String, Long> known = mState.getVersions(globalIds);
+            Map<String, Long> petIds = mState.getPetIds(globalIds);
+            Set<Long> pending = pendingLocalChanges();
+
+            List<SyncRecord> remote = new ArrayList<>();
+            List<SyncRecord> merged = new ArrayList<>();
+            Map<String, Long> versions = new HashMap<>();
+            Map<Long, SyncRecord> local = readLocal(pending);
+            for (SyncRecord pulled : page.records) {
+                Long version = known.get(pulled.globalId);
+                if (version != null && pulled.version <= version) {
+                    // Our own change coming back, or one already applied
+                    continue;
+                }
+                Long petId = petIds.get(pulled.globalId);
+                SyncRecord record = petId == null ? pulled : pulled.withId(petId);
+                versions.put(record.globalId, record.deleted ? 0 : record.version);
+                if (petId == null || !pending.contains(petId)) {
+                    remote.add(record);
+                    continue;
+                }
+
+                result.conflicts++;
+                SyncRecord localRecord = local.get(petId);
+                localRecord = localRecord == null
+                        ? SyncRecord.tombstone(record.globalId, 0).withId(petId)
+                        : localRecord.withGlobalId(record.globalId);
+                SyncRecord winner = mConflictResolver.resolve(localRecord, record);
+                if (winner == record) {
+                    remote.add(record);
+                } else {
+                    // The local change is pushed by the next sync, based on this version
+                    versions.put(record.globalId, record.version);
+                    if (winner != localRecord) {
+                        merged.add(winner);
+                    }
+                }
+            }
+
+            result.pulled += applyRemote(remote);
+            writeLocal(merged);
+            mState.putVersions(versions);
+            if (page.token != null) {
+                token = page.token;
+                mState.setPullToken(token);
+            }
+            if (!page.hasMore) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of the pets with local changes not pushed yet.
+     */
+    private Set<Long> pendingLocalChanges() throws IOException {
+        Set<Long> pending = new LinkedHashSet<>();
+        Cursor cursor = queryChanges(mState.getPushedSequence(), -1);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(2) != PetContract.ChangesEntry.OPERATION_RESET
+                        && cursor.getInt(3) == PetContract.ChangesEntry.ORIGIN_LOCAL) {
+                    pending.add(cursor.getLong(1));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return pending;
+    }
+
+    /**
+     * Write records from the server into the provider as a sync adapter, in one batch. Returns
+     * the number of records written. Records without a local row are inserted under a new local
+     * id, mapped to their global id.
+     */
+    private int applyRemote(List<SyncRecord> records) throws IOException {
+        return write(records, true);
+    }
+
+    /**
+     * Write merged records into the provider as local changes, to be pushed by the next sync.
+     */
+    private void writeLocal(List<SyncRecord> records) throws IOException {
+        write(records, false);
+    }
+
+    private int write(List<SyncRecord> records, boolean syncAdapter) throws IOException {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        Set<Long> ids = new LinkedHashSet<>();
+        for (SyncRecord record : records) {
+            if (record.id != 0) {
+                ids.add(record.id);
+            }
+        }
+        Set<Long> existing = readLocal(ids).keySet();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        // Global id of the pet each operation inserts, null for the other operations
+        List<String> inserted = new ArrayList<>();
+        for (SyncRecord record : records) {
+            Uri petUri = ContentUris.withAppendedId(PetContract.PetEntry.CONTENT_URI, record.id);
+            Uri petsUri = PetContract.PetEntry.CONTENT_URI;
+            if (syncAdapter) {
+                petUri = PetContract.PetEntry.asSyncAdapter(petUri);
+                petsUri = PetContract.PetEntry.asSyncAdapter(petsUri);
+            }
+            if (record.deleted) {
+                if (existing.contains(record.id)) {
+                    operations.add(ContentProviderOperation.newDelete(petUri).build());
+                    inserted.add(null);
+                }
+            } else if (existing.contains(record.id)) {
+                operations.add(ContentProviderOperation.newUpdate(petUri)
+                        .withValues(record.toValues()).build());
+                inserted.add(null);
+            } else {
+                // A new pet, or one deleted here since: either way it gets a new local id
+                operations.add(ContentProviderOperation.newInsert(petsUri)
+                        .withValues(record.toValues()).build());
+                inserted.add(record.globalId);
+            }
+        }
+        if (operations.isEmpty()) {
+            return 0;
+        }
+        try {
+            mapInserted(mResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations),
+                    inserted);
+            return operations.size();
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new IOException("Failed to write synced pets", e);
+        } catch (RuntimeException e) {
+            // A record rejected by the provider's validation rolled back the whole batch.
+            // Write the records one by one instead, skipping the invalid ones, so they do not
+            // hold up the rest of the sync.
+            Log.w(LOG_TAG, "Failed to write synced pets " + ids + ", writing one by one", e);
+        }
+
+        int written = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            ContentProviderOperation operation = operations.get(i);
+            ArrayList<ContentProviderOperation> single = new ArrayList<>(1);
+            single.add(operation);
+            try {
+                mapInserted(mResolver.applyBatch(PetContract.CONTENT_AUTHORITY, single),
+                        inserted.subList(i, i + 1));
+                written++;
+            } catch (RemoteException | OperationApplicationException e) {
+                throw new IOException("Failed to write synced pets", e);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Skipping invalid synced pet " + operation.getUri(), e);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Map the pets inserted by a batch to the global ids of the records they were written from.
+     */
+    private void mapInserted(ContentProviderResult[] results, List<String> globalIds) {
+        Map<Long, String> inserted = new HashMap<>();
+        for (int i = 0; i < results.length; i++) {
+            if (globalIds.get(i) != null && results[i].uri != null) {
+                inserted.put(ContentUris.parseId(results[i].uri), globalIds.get(i));
+            }
+        }
+        mState.putGlobalIds(inserted);
+    }
+
+    /**
+     * Returns the current row of each of the given pets that exists, by id.
+     */
+    private Map<Long, SyncRecord> readLocal(Collection<Long> ids) throws IOException {
+        Map<Long, SyncRecord> rows = new LinkedHashMap<>();
+        if (ids.isEmpty()) {
+            return rows;
+        }
+        Cursor cursor = mResolver.query(PetContract.PetEntry.CONTENT_URI, SyncRecord.COLUMNS,
+                PetContract.PetEntry._ID + " IN (" + PetSyncState.joinIds(ids) + ")", null,
+                null);
+        if (cursor == null) {
+            throw new IOException("Pets could not be queried");
+        }
+        try {
+            while (cursor.moveToNext()) {
+                SyncRecord row = SyncRecord.fromCursor(cursor, 0);
+                rows.put(row.id, row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private Cursor queryChanges(long since, int limit) throws IOException {
+        Uri uri = limit < 0
+                ? PetContract.ChangesEntry.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(PetContract.QUERY_PARAMETER_SINCE,
+                                String.valueOf(since)).build()
+                : PetContract.ChangesEntry.buildChangesUri(since, limit);
+        Cursor cursor = mResolver.query(uri, null, null, null, null);
+        if (cursor == null) {
+            throw new IOException("Changes could not be queried");
+        }
+        return cursor;
+    }
+
+    /**
+     * The outcome of a sync.
+     */
+    public static final class Result {
+        private int pushed;
+        private int pulled;
+        private int conflicts;
+
+        /** Returns the number of local changes accepted by the server */
+        public int getPushed() {
+            return pushed;
+        }
+
+        /** Returns the number of remote changes written locally */
+        public int getPulled() {
+            return pulled;
+        }
+
+        /** Returns the number of pets changed both locally and remotely */
+        public int getConflicts() {
+            return conflicts;
+        }
+
+        @Override
+        public String toString() {
+            return "pushed=" + pushed + " pulled=" + pulled + " conflicts=" + conflicts;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.android.pets.sync;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Runs a {@link PetSyncEngine} in the background: periodically, shortly after local changes,
+ * and on request.
+ *
+ * Local changes are debounced, so a burst of edits is pushed by one sync, and a change only
+ * starts a sync if it left something to push: the engine's own writes of pulled records do not.
+ * A failed sync is retried with exponential backoff and jitter, and no change starts a sync
+ * while backing off, so an unreachable server costs a few requests per hour instead of one per
+ * edit.
+ */
+public final class PetSyncScheduler {
+
+    /** Default time between syncs while nothing changes locally, in milliseconds */
+    public static final long DEFAULT_INTERVAL_MILLIS = 15 * 60 * 1000;
+
+    /** Default time to wait for more local changes before pushing them, in milliseconds */
+    public static final long DEFAULT_CHANGE_DELAY_MILLIS = 30 * 1000;
+
+    private static final long MIN_BACKOFF_MILLIS = 30 * 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60 * 60 * 1000;
+
+    private static final String LOG_TAG = PetSyncScheduler.class.getSimpleName();
+
+    private final PetSyncEngine mEngine;
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final Random mRandom = new Random();
+
+    private volatile long mIntervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private volatile long mChangeDelayMillis = DEFAULT_CHANGE_DELAY_MILLIS;
+
+    /** Number of syncs failed in a row. Only used on the sync thread. */
+    private int mFailures;
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            runSync(false);
+        }
+    };
+
+    private final Runnable mChangeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            runSync(true);
+        }
+    };
+
+    private final ContentObserver mObserver;
+
+    public PetSyncScheduler(ContentResolver resolver, PetSyncEngine engine) {
+        mResolver = resolver;
+        mEngine = engine;
+        HandlerThread thread = new HandlerThread(PetSyncScheduler.class.getSimpleName(),
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onLocalChange();
+            }
+        };
+    }
+
+    public void setInterval(long millis) {
+        mIntervalMillis = millis;
+    }
+
+    public void setChangeDelay(long millis) {
+        mChangeDelayMillis = millis;
+    }
+
+    /**
+     * Sync now, then periodically and after local changes until {@link #stop}.
+     */
+    public void start() {
+        mResolver.registerContentObserver(PetContract.PetEntry.CONTENT_URI, true, mObserver);
+        requestSync();
+    }
+
+    public void stop() {
+        mResolver.unregisterContentObserver(mObserver);
+        mHandler.removeCallbacks(mSyncRunnable);
+        mHandler.removeCallbacks(mChangeRunnable);
+    }
+
+    /**
+     * Sync as soon as possible, even while backing off.
+     */
+    public void requestSync() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.removeCallbacks(mChangeRunnable);
+                schedule(0);
+            }
+        });
+    }
+
+    private void onLocalChange() {
+        if (mFailures > 0) {
+            // The retry scheduled by the backoff pushes the change
+            return;
+        }
+        mHandler.removeCallbacks(mChangeRunnable);
+        mHandler.postDelayed(mChangeRunnable, mChangeDelayMillis);
+    }
+
+    private void runSync(boolean onlyLocalChanges) {
+        try {
+            if (onlyLocalChanges && !mEngine.hasLocalChanges()) {
+                return;
+            }
+            PetSyncEngine.Result result = mEngine.sync();
+            Log.d(LOG_TAG, "Synced: " + result);
+            mFailures = 0;
+            schedule(mIntervalMillis);
+        } catch (IOException | RuntimeException e) {
+            mFailures++;
+            long delay = backoff(mFailures);
+            Log.w(LOG_TAG, "Sync failed " + mFailures + " times in a row, retrying in "
+                    + delay + "ms", e);
+            schedule(delay);
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        mHandler.removeCallbacks(mSyncRunnable);
+        mHandler.postDelayed(mSyncRunnable, delayMillis);
+    }
+
+    /**
+     * Returns the delay before retrying after the given number of failures in a row: doubling
+     * from {@link #MIN_BACKOFF_MILLIS} up to {@link #MAX_BACKOFF_MILLIS}, less a random part of
+     * up to a fifth so that devices failing together do not retry together.
+     */
+    long backoff(int failures) {
+        long delay = MAX_BACKOFF_MILLIS;
+        if (failures <= 30 && MIN_BACKOFF_MILLIS << (failures - 1) < MAX_BACKOFF_MILLIS) {
+            delay = MIN_BACKOFF_MILLIS << (failures - 1);
+        }
+        return delay - (long) (mRandom.nextDouble() * delay / 5);
+    }
+}
@@ -0,0 +1,271 @@
+package com.example.android.pets.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What {@link PetSyncEngine} remembers between syncs: how far the local change log was pushed,
+ * the delta token to pull from, and the global id and server version of every synced pet.
+ *
+ * Kept in a database of its own rather than next to the pets, so the sync state can be dropped
+ * to start over without touching the pets, and the pets schema knows nothing about sync.
+ */
+class PetSyncState extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "pet_sync.db";
+    private static final int DATABASE_VERSION = 2;
+
+    /** One row per pet with a global id, mapping its local id to it */
+    private static final String TABLE_PETS = "pets";
+    private static final String COLUMN_PET_ID = "pet_id";
+    private static final String COLUMN_GLOBAL_ID = "global_id";
+    /** Version of the server's copy, 0 while the server never accepted the pet */
+    private static final String COLUMN_VERSION = "version";
+
+    private static final String TABLE_VALUES = "sync_values";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_VALUE = "value";
+
+    private static final String PUSHED_SEQUENCE = "pushed_sequence";
+    private static final String PULL_TOKEN = "pull_token";
+
+    PetSyncState(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        createPetsTable(db);
+        db.execSQL("CREATE TABLE " + TABLE_VALUES + " (" + COLUMN_NAME
+                + " TEXT PRIMARY KEY NOT NULL, " + COLUMN_VALUE + " TEXT);");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            // Pets used to be synced by their local id, which stays their global id
+            createPetsTable(db);
+            db.execSQL("INSERT INTO " + TABLE_PETS + " (" + COLUMN_PET_ID + ", "
+                    + COLUMN_GLOBAL_ID + ", " + COLUMN_VERSION + ") SELECT pet_id,"
+                    + " CAST(pet_id AS TEXT), version FROM versions;");
+            db.execSQL("DROP TABLE versions;");
+        }
+    }
+
+    private static void createPetsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_PETS + " (" + COLUMN_PET_ID
+                + " INTEGER PRIMARY KEY, " + COLUMN_GLOBAL_ID + " TEXT NOT NULL UNIQUE, "
+                + COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0);");
+    }
+
+    /**
+     * Returns the sequence number of the last local change pushed, 0 before the first push.
+     */
+    long getPushedSequence() {
+        String value = getValue(PUSHED_SEQUENCE);
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    void setPushedSequence(long sequence) {
+        putValue(PUSHED_SEQUENCE, String.valueOf(sequence));
+    }
+
+    /**
+     * Returns the delta token of the last pull, null before the first pull.
+     */
+    String getPullToken() {
+        return getValue(PULL_TOKEN);
+    }
+
+    void setPullToken(String token) {
+        putValue(PULL_TOKEN, token);
+    }
+
+    /**
+     * Returns the global id of each of the given local pets that has one, by local id.
+     */
+    Map<Long, String> getGlobalIds(Collection<Long> petIds) {
+        Map<Long, String> globalIds = new HashMap<>();
+        if (petIds.isEmpty()) {
+            return globalIds;
+        }
+        Cursor cursor = getReadableDatabase().query(TABLE_PETS,
+                new String[] { COLUMN_PET_ID, COLUMN_GLOBAL_ID },
+                COLUMN_PET_ID + " IN (" + joinIds(petIds) + ")", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                globalIds.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return globalIds;
+    }
+
+    /**
+     * Returns the local id of each of the given global ids that has a local pet, by global id.
+     */
+    Map<String, Long> getPetIds(Collection<String> globalIds) {
+        Map<String, Long> petIds = new HashMap<>();
+        if (globalIds.isEmpty()) {
+            return petIds;
+        }
+        Cursor cursor = getReadableDatabase().query(TABLE_PETS,
+                new String[] { COLUMN_GLOBAL_ID, COLUMN_PET_ID },
+                COLUMN_GLOBAL_ID + " IN (" + joinGlobalIds(globalIds) + ")", null, null, null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                petIds.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return petIds;
+    }
+
+    /**
+     * Returns the server version of each of the given global ids known here, 0 for those the
+     * server did not accept yet.
+     */
+    Map<String, Long> getVersions(Collection<String> globalIds) {
+        Map<String, Long> versions = new HashMap<>();
+        if (globalIds.isEmpty()) {
+            return versions;
+        }
+        Cursor cursor = getReadableDatabase().query(TABLE_PETS,
+                new String[] { COLUMN_GLOBAL_ID, COLUMN_VERSION },
+                COLUMN_GLOBAL_ID + " IN (" + joinGlobalIds(globalIds) + ")", null, null, null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                versions.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return versions;
+    }
+
+    /**
+     * Give local pets their global id, with no server version yet. A local pet or global id
+     * that had another mapping loses it.
+     */
+    void putGlobalIds(Map<Long, String> globalIds) {
+        if (globalIds.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues(2);
+            for (Map.Entry<Long, String> globalId : globalIds.entrySet()) {
+                values.put(COLUMN_PET_ID, globalId.getKey());
+                values.put(COLUMN_GLOBAL_ID, globalId.getValue());
+                db.insertWithOnConflict(TABLE_PETS, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Store the server version of the given pets, by global id. A version of 0 forgets the pet,
+     * as is done for tombstones. Global ids without a local pet are ignored.
+     */
+    void putVersions(Map<String, Long> versions) {
+        if (versions.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues(1);
+            for (Map.Entry<String, Long> version : versions.entrySet()) {
+                String[] args = { version.getKey() };
+                if (version.getValue() == 0) {
+                    db.delete(TABLE_PETS, COLUMN_GLOBAL_ID + "=?", args);
+                } else {
+                    values.put(COLUMN_VERSION, version.getValue());
+                    db.update(TABLE_PETS, values, COLUMN_GLOBAL_ID + "=?", args);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the local ids of at most {@code limit} pets the server has, after the given id, in
+     * id order.
+     */
+    long[] getIdsAfter(long after, int limit) {
+        Cursor cursor = getReadableDatabase().query(TABLE_PETS,
+                new String[] { COLUMN_PET_ID }, COLUMN_PET_ID + ">? AND " + COLUMN_VERSION + ">0",
+                new String[] { String.valueOf(after) }, null, null, COLUMN_PET_ID,
+                String.valueOf(limit));
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the given ids as a comma separated list, to be used in an IN clause.
+     */
+    static String joinIds(Collection<Long> ids) {
+        StringBuilder joined = new StringBuilder();
+        for (Long id : ids) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(id.longValue());
+        }
+        return joined.toString();
+    }
+
+    private static String joinGlobalIds(Collection<String> globalIds) {
+        StringBuilder joined = new StringBuilder();
+        for (String globalId : globalIds) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            DatabaseUtils.appendEscapedSQLString(joined, globalId);
+        }
+        return joined.toString();
+    }
+
+    private String getValue(String name) {
+        Cursor cursor = getReadableDatabase().query(TABLE_VALUES, new String[] { COLUMN_VALUE },
+                COLUMN_NAME + "=?", new String[] { name }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void putValue(String name, String value) {
+        ContentValues values = new ContentValues(2);
+        values.put(COLUMN_NAME, name);
+        values.put(COLUMN_VALUE, value);
+        getWritableDatabase().insertWithOnConflict(TABLE_VALUES, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+}
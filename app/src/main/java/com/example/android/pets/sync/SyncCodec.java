@@ -0,0 +1,290 @@
+package com.example.android.pets.sync;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes and decodes the pages exchanged through a {@link SyncTransport}, as UTF-8 JSON
+ * compressed with gzip. Pet names and breeds repeat a lot, so pages shrink to a fraction of their
+ * JSON size.
+ *
+ * A push sends {"records": [record, ...]} and gets back {"accepted": [{"_id", "version"}, ...],
+ * "conflicts": [record, ...]}. A pull gets back {"records": [record, ...], "token": ...,
+ * "has_more": ...}. A record is {"_id", "version", "name", "breed", "gender", "weight"}, or
+ * {"_id", "version", "deleted": true} for a tombstone, where "_id" is the global id of the pet
+ * and never its local id.
+ */
+final class SyncCodec {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String ID = "_id";
+    private static final String VERSION = "version";
+    private static final String DELETED = "deleted";
+    private static final String NAME = "name";
+    private static final String BREED = "breed";
+    private static final String GENDER = "gender";
+    private static final String WEIGHT = "weight";
+    private static final String RECORDS = "records";
+    private static final String ACCEPTED = "accepted";
+    private static final String CONFLICTS = "conflicts";
+    private static final String TOKEN = "token";
+    private static final String HAS_MORE = "has_more";
+
+    private SyncCodec() {
+    }
+
+    /**
+     * The server's answer to a push.
+     */
+    static final class PushResult {
+        /** New server version of every accepted record, by global id */
+        final Map<String, Long> accepted = new LinkedHashMap<>();
+        /** Server copy of every record whose change was based on an older version */
+        final List<SyncRecord> conflicts = new ArrayList<>();
+    }
+
+    /**
+     * A page of records changed on the server.
+     */
+    static final class PullPage {
+        final List<SyncRecord> records = new ArrayList<>();
+        /** Delta token to pass to the next pull */
+        String token;
+        boolean hasMore;
+    }
+
+    static byte[] encodePush(List<SyncRecord> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = newWriter(bytes);
+        writer.beginObject();
+        writer.name(RECORDS);
+        writeRecords(writer, records);
+        writer.endObject();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    static List<SyncRecord> decodePush(byte[] page) throws IOException {
+        JsonReader reader = newReader(page);
+        List<SyncRecord> records = new ArrayList<>();
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (RECORDS.equals(reader.nextName())) {
+                    readRecords(reader, records);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            throw malformed(e);
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    static byte[] encodePushResult(PushResult result) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = newWriter(bytes);
+        writer.beginObject();
+        writer.name(ACCEPTED).beginArray();
+        for (Map.Entry<String, Long> accepted : result.accepted.entrySet()) {
+            writer.beginObject();
+            writer.name(ID).value(accepted.getKey());
+            writer.name(VERSION).value(accepted.getValue());
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.name(CONFLICTS);
+        writeRecords(writer, result.conflicts);
+        writer.endObject();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    static PushResult decodePushResult(byte[] page) throws IOException {
+        JsonReader reader = newReader(page);
+        PushResult result = new PushResult();
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (ACCEPTED.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        SyncRecord accepted = readRecord(reader);
+                        result.accepted.put(accepted.globalId, accepted.version);
+                    }
+                    reader.endArray();
+                } else if (CONFLICTS.equals(name)) {
+                    readRecords(reader, result.conflicts);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            throw malformed(e);
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    static byte[] encodePullPage(PullPage page) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = newWriter(bytes);
+        writer.beginObject();
+        writer.name(RECORDS);
+        writeRecords(writer, page.records);
+        writer.name(TOKEN).value(page.token);
+        writer.name(HAS_MORE).value(page.hasMore);
+        writer.endObject();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    static PullPage decodePullPage(byte[] bytes) throws IOException {
+        JsonReader reader = newReader(bytes);
+        PullPage page = new PullPage();
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (RECORDS.equals(name)) {
+                    readRecords(reader, page.records);
+                } else if (TOKEN.equals(name)) {
+                    page.token = readNullableString(reader);
+                } else if (HAS_MORE.equals(name)) {
+                    page.hasMore = reader.nextBoolean();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            throw malformed(e);
+        } finally {
+            reader.close();
+        }
+        return page;
+    }
+
+    private static JsonWriter newWriter(ByteArrayOutputStream bytes) throws IOException {
+        return new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(bytes), UTF_8));
+    }
+
+    private static JsonReader newReader(byte[] page) throws IOException {
+        return new JsonReader(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(page)), UTF_8));
+    }
+
+    private static void writeRecords(JsonWriter writer, List<SyncRecord> records)
+            throws IOException {
+        writer.beginArray();
+        for (SyncRecord record : records) {
+            writer.beginObject();
+            writer.name(ID).value(record.globalId);
+            writer.name(VERSION).value(record.version);
+            if (record.deleted) {
+                writer.name(DELETED).value(true);
+            } else {
+                writer.name(NAME).value(record.name);
+                writer.name(BREED);
+                if (record.breed == null) {
+                    writer.nullValue();
+                } else {
+                    writer.value(record.breed);
+                }
+                writer.name(GENDER).value(record.gender);
+                writer.name(WEIGHT).value(record.weight);
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    private static void readRecords(JsonReader reader, List<SyncRecord> records)
+            throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            records.add(readRecord(reader));
+        }
+        reader.endArray();
+    }
+
+    private static SyncRecord readRecord(JsonReader reader) throws IOException {
+        String id = null;
+        long version = 0;
+        boolean deleted = false;
+        String name = null;
+        String breed = null;
+        int gender = 0;
+        int weight = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case ID:
+                    id = reader.nextString();
+                    break;
+                case VERSION:
+                    version = reader.nextLong();
+                    break;
+                case DELETED:
+                    deleted = reader.nextBoolean();
+                    break;
+                case NAME:
+                    name = readNullableString(reader);
+                    break;
+                case BREED:
+                    breed = readNullableString(reader);
+                    break;
+                case GENDER:
+                    gender = reader.nextInt();
+                    break;
+                case WEIGHT:
+                    weight = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (id == null) {
+            throw new IOException("Sync record without an id");
+        }
+        return deleted ? SyncRecord.tombstone(id, version)
+                : new SyncRecord(id, version, name, breed, gender, weight);
+    }
+
+    private static String readNullableString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private static IOException malformed(IllegalStateException e) {
+        return new IOException("Malformed sync page", e);
+    }
+}
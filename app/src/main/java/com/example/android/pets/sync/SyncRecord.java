@@ -0,0 +1,112 @@
+package com.example.android.pets.sync;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract;
+
+/**
+ * The state of one pet as exchanged with the sync server: its columns, or a tombstone if it was
+ * deleted, together with a version assigned by the server.
+ *
+ * A pet is known to the server by its global id, a UUID given to it by the device that first
+ * pushed it, since the local ids of different devices collide. The local id is only used on this
+ * device and never sent.
+ *
+ * Sent to the server, the version is the one the change was based on, 0 if the server never had
+ * the pet. Received from the server, it is the version of the server's copy.
+ */
+public final class SyncRecord {
+
+    /** Columns of the pets table read for a record, in the order of {@link #fromCursor} */
+    static final String[] COLUMNS = {
+            PetContract.PetEntry._ID,
+            PetContract.PetEntry.COLUMN_NAME,
+            PetContract.PetEntry.COLUMN_BREED,
+            PetContract.PetEntry.COLUMN_GENDER,
+            PetContract.PetEntry.COLUMN_WEIGHT
+    };
+
+    /** Id of the pet on the server, null for a local row not matched to one yet */
+    public final String globalId;
+    /** Id of the pet on this device, 0 for a record from the server not matched to a row yet */
+    public final long id;
+    public final long version;
+    public final boolean deleted;
+    public final String name;
+    public final String breed;
+    public final int gender;
+    public final int weight;
+
+    public SyncRecord(String globalId, long version, String name, String breed, int gender,
+                      int weight) {
+        this(globalId, 0, version, false, name, breed, gender, weight);
+    }
+
+    private SyncRecord(String globalId, long id, long version, boolean deleted, String name,
+                       String breed, int gender, int weight) {
+        this.globalId = globalId;
+        this.id = id;
+        this.version = version;
+        this.deleted = deleted;
+        this.name = name;
+        this.breed = breed;
+        this.gender = gender;
+        this.weight = weight;
+    }
+
+    /**
+     * Returns a tombstone for the pet with the given global id.
+     */
+    public static SyncRecord tombstone(String globalId, long version) {
+        return new SyncRecord(globalId, 0, version, true, null, null, 0, 0);
+    }
+
+    /**
+     * Read the current row of a cursor over {@link #COLUMNS}, without a global id.
+     */
+    static SyncRecord fromCursor(Cursor cursor, long version) {
+        return new SyncRecord(null, cursor.getLong(0), version, false, cursor.getString(1),
+                cursor.getString(2), cursor.getInt(3), cursor.getInt(4));
+    }
+
+    /**
+     * Returns this record with another version.
+     */
+    public SyncRecord withVersion(long version) {
+        return new SyncRecord(globalId, id, version, deleted, name, breed, gender, weight);
+    }
+
+    /**
+     * Returns this record with another global id.
+     */
+    SyncRecord withGlobalId(String globalId) {
+        return new SyncRecord(globalId, id, version, deleted, name, breed, gender, weight);
+    }
+
+    /**
+     * Returns this record matched to the local row with the given id.
+     */
+    SyncRecord withId(long id) {
+        return new SyncRecord(globalId, id, version, deleted, name, breed, gender, weight);
+    }
+
+    /**
+     * Returns the columns of this record to write to the pets table, without the id.
+     */
+    ContentValues toValues() {
+        ContentValues values = new ContentValues(4);
+        values.put(PetContract.PetEntry.COLUMN_NAME, name);
+        values.put(PetContract.PetEntry.COLUMN_BREED, breed);
+        values.put(PetContract.PetEntry.COLUMN_GENDER, gender);
+        values.put(PetContract.PetEntry.COLUMN_WEIGHT, weight);
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return "SyncRecord{globalId=" + globalId + ", id=" + id + ", version=" + version
+                + (deleted ? ", deleted" : ", name=" + name + ", breed=" + breed
+                + ", gender=" + gender + ", weight=" + weight) + "}";
+    }
+}
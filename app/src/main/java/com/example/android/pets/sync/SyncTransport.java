@@ -0,0 +1,27 @@
+package com.example.android.pets.sync;
+
+import java.io.IOException;
+
+/**
+ * Carries sync pages to and from the server. Pages are gzip compressed JSON, encoded and decoded
+ * by {@link SyncCodec}, so a transport only moves bytes: over HTTP, or straight into an
+ * in-process {@link FakeSyncServer}.
+ *
+ * Both calls block and are made on the sync thread. Any failure is reported as an IOException,
+ * after which the engine retries the whole page later.
+ */
+public interface SyncTransport {
+
+    /**
+     * Send a page of local changes and return the server's answer: the new version of every
+     * change accepted, and the server's copy of every pet whose change was based on an older
+     * version.
+     */
+    byte[] push(byte[] changes) throws IOException;
+
+    /**
+     * Return a page of at most {@code limit} records changed on the server after the given
+     * delta token, null for every record, together with the token to continue from.
+     */
+    byte[] pull(String token, int limit) throws IOException;
+}
@@ -0,0 +1,82 @@
+package com.example.android.pets.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per inserted pet of the two insert paths of PetProvider: insert(), one transaction per
+ * row, and bulkInsert(), one transaction and one compiled statement for the whole batch.
+ * Both include the full-text index trigger, like the app.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InsertBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    /** Rows already in the table, as inserts into a large table pay more for its indices */
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private Connection mConnection;
+    private PreparedStatement mInsert;
+    private final Random mRandom = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mConnection = PetSchema.create();
+        PetSchema.populate(mConnection, rows, 1);
+        mInsert = mConnection.prepareStatement(PetSchema.SQL_INSERT_PET);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mInsert.close();
+        mConnection.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void singleRowInserts() throws Exception {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            PetSchema.bindPet(mInsert, mRandom);
+            mInsert.executeUpdate();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void batchedInserts() throws Exception {
+        mConnection.setAutoCommit(false);
+        try {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                PetSchema.bindPet(mInsert, mRandom);
+                mInsert.executeUpdate();
+            }
+            mConnection.commit();
+        } finally {
+            mConnection.setAutoCommit(true);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.android.pets.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+/**
+ * Creates benchmark databases with the schema of the app's PetDbHelper at its current version,
+ * and fills them with generated pets.
+ *
+ * Keep this in step with PetDbHelper: a migration added there should be added here, or the
+ * numbers no longer describe the app.
+ */
+final class PetSchema {
+
+    static final String TABLE_NAME = "pets";
+    static final String VIEW_NAME = "pets_view";
+    static final String FTS_TABLE_NAME = "pets_fts";
+
+    /** Breeds of the generated pets. The breed id of BREEDS[i] is i + 1. */
+    static final String[] BREEDS = {
+            "Tabby", "Siamese", "Persian", "Labrador", "Beagle", "Poodle", "Terrier", "Collie"
+    };
+
+    private static final String[] NAME_SYLLABLES = {
+            "ba", "ro", "mi", "ta", "ko", "lu", "ne", "si", "da", "fe", "gi", "po"
+    };
+
+    /** Origin of the changes being logged, see PetDbHelper.createChangeTriggers() */
+    private static final String ORIGIN = "(SELECT origin FROM pet_changes_origin)";
+
+    /** Breed name of the pet being inserted or updated, see PetDbHelper migration 9 */
+    private static final String BREED_OF_NEW = "(SELECT name FROM breeds WHERE _id = NEW.breed_id)";
+
+    /** Whether the OLD pet was not deleted, see PetDbHelper.isLive() */
+    private static final String OLD_IS_LIVE = "OLD.deleted_at IS NULL AND OLD._id > "
+            + "(SELECT deleted_through FROM pet_deletions)";
+
+    /** Whether an update deletes the pet, see PetDbHelper migration 10 */
+    private static final String IS_TOMBSTONED = "OLD.deleted_at IS NULL"
+            + " AND NEW.deleted_at IS NOT NULL";
+
+    /** Insert statement used by PetProvider for single and bulk inserts */
+    static final String SQL_INSERT_PET = "INSERT INTO " + TABLE_NAME
+            + " (name, breed_id, gender, weight) VALUES (?, ?, ?, ?)";
+
+    private PetSchema() {
+    }
+
+    /**
+     * Open a new database in a temporary file, configured like PetDbHelper configures the app's
+     * database, and create the current schema in it.
+     */
+    static Connection create() throws IOException, SQLException {
+        File file = File.createTempFile("pets-benchmark", ".db");
+        file.deleteOnExit();
+        new File(file.getPath() + "-wal").deleteOnExit();
+        new File(file.getPath() + "-shm").deleteOnExit();
+
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("PRAGMA auto_vacuum = INCREMENTAL");
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.execute("PRAGMA wal_autocheckpoint = 1000");
+            statement.execute("PRAGMA journal_size_limit = " + 4 * 1024 * 1024);
+
+            // Version 9: the breed dictionary. The pets table and what versions 1 to 8 built on
+            // it are created as version 9 rebuilt them, with the breed id instead of its name.
+            // The triggers and view are created as versions 10 and 11 changed them for soft
+            // deletes.
+            statement.execute("CREATE TABLE breeds (_id INTEGER PRIMARY KEY, "
+                    + "name TEXT NOT NULL UNIQUE)");
+            // Version 1
+            statement.execute("CREATE TABLE " + TABLE_NAME
+                    + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, "
+                    + "breed_id INTEGER REFERENCES breeds (_id), gender INTEGER NOT NULL, "
+                    + "weight INTEGER NOT NULL DEFAULT 0)");
+            // Version 10
+            statement.execute("ALTER TABLE " + TABLE_NAME + " ADD COLUMN deleted_at INTEGER");
+            statement.execute("CREATE INDEX pets_deleted_index ON " + TABLE_NAME + " (deleted_at)");
+            statement.execute("CREATE TABLE pet_deletions (_id INTEGER PRIMARY KEY "
+                    + "CHECK (_id = 0), deleted_through INTEGER NOT NULL)");
+            statement.execute("INSERT INTO pet_deletions (_id, deleted_through) VALUES (0, 0)");
+            // Version 2
+            statement.execute("CREATE INDEX pets_name_index ON " + TABLE_NAME + " (name)");
+            // Version 3
+            statement.execute("CREATE INDEX pets_gender_breed_index ON " + TABLE_NAME
+                    + " (gender, breed_id)");
+            // Version 4
+            statement.execute("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4(name, breed)");
+            statement.execute("CREATE TRIGGER pets_fts_insert AFTER INSERT ON " + TABLE_NAME
+                    + " BEGIN INSERT INTO " + FTS_TABLE_NAME + " (docid, name, breed)"
+                    + " VALUES (NEW._id, NEW.name, " + BREED_OF_NEW + "); END");
+            statement.execute("CREATE TRIGGER pets_fts_update AFTER UPDATE OF name, breed_id ON "
+                    + TABLE_NAME + " BEGIN UPDATE " + FTS_TABLE_NAME
+                    + " SET name = NEW.name, breed = " + BREED_OF_NEW
+                    + " WHERE docid = OLD._id; END");
+            statement.execute("CREATE TRIGGER pets_fts_delete AFTER DELETE ON " + TABLE_NAME
+                    + " BEGIN DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = OLD._id; END");
+            // Version 5
+            statement.execute("CREATE TABLE pet_stats_totals (_id INTEGER PRIMARY KEY "
+                    + "CHECK (_id = 0), count INTEGER NOT NULL, weight_sum INTEGER NOT NULL)");
+            statement.execute("CREATE TABLE pet_stats_gender (gender INTEGER PRIMARY KEY, "
+                    + "count INTEGER NOT NULL)");
+            statement.execute("CREATE TABLE pet_stats_breed (breed_id INTEGER PRIMARY KEY, "
+                    + "count INTEGER NOT NULL)");
+            statement.execute("CREATE TABLE pet_stats_weight (weight INTEGER PRIMARY KEY, "
+                    + "count INTEGER NOT NULL)");
+            statement.execute("INSERT INTO pet_stats_totals (_id, count, weight_sum) "
+                    + "VALUES (0, 0, 0)");
+            statement.execute("CREATE TRIGGER pet_stats_insert AFTER INSERT ON " + TABLE_NAME
+                    + " BEGIN " + countStats("NEW", "+") + "END");
+            statement.execute("CREATE TRIGGER pet_stats_update AFTER UPDATE OF gender, breed_id, "
+                    + "weight ON " + TABLE_NAME
+                    + " BEGIN " + countStats("OLD", "-") + countStats("NEW", "+") + "END");
+            statement.execute("CREATE TRIGGER pet_stats_delete AFTER DELETE ON " + TABLE_NAME
+                    + " WHEN " + OLD_IS_LIVE + " BEGIN " + countStats("OLD", "-") + "END");
+            statement.execute("CREATE TRIGGER pet_stats_tombstone AFTER UPDATE OF deleted_at ON "
+                    + TABLE_NAME + " WHEN " + OLD_IS_LIVE + " AND NEW.deleted_at IS NOT NULL"
+                    + " BEGIN " + countStats("OLD", "-") + "END");
+            // Version 6
+            statement.execute("CREATE INDEX pets_weight_index ON " + TABLE_NAME + " (weight)");
+            // Version 7
+            statement.execute("CREATE TABLE pet_changes (seq INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "pet_id INTEGER NOT NULL, operation INTEGER NOT NULL)");
+            statement.execute("CREATE INDEX pet_changes_pet_index ON pet_changes (pet_id)");
+            statement.execute("CREATE TABLE pet_changes_horizon (_id INTEGER PRIMARY KEY "
+                    + "CHECK (_id = 0), horizon INTEGER NOT NULL)");
+            statement.execute("INSERT INTO pet_changes_horizon (_id, horizon) VALUES (0, 0)");
+            // Version 8: the change triggers of version 7 are created with their origin
+            statement.execute("ALTER TABLE pet_changes ADD COLUMN origin INTEGER NOT NULL "
+                    + "DEFAULT 0");
+            statement.execute("CREATE TABLE pet_changes_origin (_id INTEGER PRIMARY KEY "
+                    + "CHECK (_id = 0), origin INTEGER NOT NULL)");
+            statement.execute("INSERT INTO pet_changes_origin (_id, origin) VALUES (0, 0)");
+            statement.execute("CREATE TRIGGER pet_changes_insert AFTER INSERT ON " + TABLE_NAME
+                    + " BEGIN " + logChange("NEW._id", 1) + "END");
+            statement.execute("CREATE TRIGGER pet_changes_update AFTER UPDATE ON " + TABLE_NAME
+                    + " WHEN NEW.deleted_at IS NULL"
+                    + " BEGIN DELETE FROM pet_changes WHERE pet_id = OLD._id"
+                    + " AND OLD._id != NEW._id; INSERT INTO pet_changes (pet_id, operation, origin)"
+                    + " SELECT OLD._id, 3, " + ORIGIN + " WHERE OLD._id != NEW._id; "
+                    + logChange("NEW._id", 2) + "END");
+            statement.execute("CREATE TRIGGER pet_changes_delete AFTER DELETE ON " + TABLE_NAME
+                    + " WHEN " + OLD_IS_LIVE + " BEGIN " + logChange("OLD._id", 3) + "END");
+            statement.execute("CREATE TRIGGER pet_changes_tombstone AFTER UPDATE OF deleted_at ON "
+                    + TABLE_NAME + " WHEN " + IS_TOMBSTONED
+                    + " BEGIN " + logChange("OLD._id", 3) + "END");
+            // Version 9
+            statement.execute("CREATE VIEW " + VIEW_NAME + " AS SELECT pets._id AS _id, "
+                    + "pets.name AS name, breeds.name AS breed, pets.gender AS gender, "
+                    + "pets.weight AS weight, pets.breed_id AS breed_id FROM " + TABLE_NAME
+                    + " LEFT JOIN breeds ON breeds._id = pets.breed_id"
+                    + " WHERE pets.deleted_at IS NULL"
+                    + " AND pets._id > (SELECT deleted_through FROM pet_deletions)");
+            // The breeds as PetBreeds adds them, on the first insert of a pet of each
+            for (int i = 0; i < BREEDS.length; i++) {
+                statement.execute("INSERT INTO breeds (_id, name) VALUES (" + (i + 1) + ", '"
+                        + BREEDS[i] + "')");
+            }
+        } finally {
+            statement.close();
+        }
+        return connection;
+    }
+
+    /**
+     * Trigger statements adding ("+") or removing ("-") the NEW or OLD pet to or from the
+     * summary tables, see PetDbHelper.countStats().
+     */
+    private static String countStats(String row, String sign) {
+        String breed = "ifnull(" + row + ".breed_id, 0)";
+        return "UPDATE pet_stats_totals SET count = count " + sign + " 1, "
+                + "weight_sum = weight_sum " + sign + " " + row + ".weight; "
+                + countGroup("pet_stats_gender", "gender", row + ".gender", sign)
+                + countGroup("pet_stats_breed", "breed_id", breed, sign)
+                + countGroup("pet_stats_weight", "weight", row + ".weight", sign);
+    }
+
+    private static String countGroup(String table, String column, String value, String sign) {
+        String sql = "";
+        if (sign.equals("+")) {
+            sql += "INSERT OR IGNORE INTO " + table + " (" + column + ", count) VALUES ("
+                    + value + ", 0); ";
+        }
+        sql += "UPDATE " + table + " SET count = count " + sign + " 1 WHERE " + column + " = "
+                + value + "; ";
+        if (sign.equals("-")) {
+            sql += "DELETE FROM " + table + " WHERE " + column + " = " + value + " AND count = 0; ";
+        }
+        return sql;
+    }
+
+    /**
+     * Trigger statements replacing the logged change of a pet, see PetDbHelper.logChange().
+     */
+    private static String logChange(String petId, int operation) {
+        return "DELETE FROM pet_changes WHERE pet_id = " + petId + "; "
+                + "INSERT INTO pet_changes (pet_id, operation, origin) VALUES (" + petId + ", "
+                + operation + ", " + ORIGIN + "); ";
+    }
+
+    /**
+     * Insert {@code count} generated pets in one transaction. The same seed gives the same pets.
+     */
+    static void populate(Connection connection, int count, long seed) throws SQLException {
+        Random random = new Random(seed);
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        PreparedStatement insert = connection.prepareStatement(SQL_INSERT_PET);
+        try {
+            for (int i = 0; i < count; i++) {
+                bindPet(insert, random);
+                insert.executeUpdate();
+            }
+            connection.commit();
+        } finally {
+            insert.close();
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Bind a generated pet to a statement compiled from {@link #SQL_INSERT_PET}.
+     */
+    static void bindPet(PreparedStatement insert, Random random) throws SQLException {
+        insert.setString(1, name(random));
+        insert.setInt(2, 1 + random.nextInt(BREEDS.length));
+        insert.setInt(3, random.nextInt(3));
+        insert.setInt(4, random.nextInt(60));
+    }
+
+    static String name(Random random) {
+        StringBuilder name = new StringBuilder();
+        int syllables = 2 + random.nextInt(3);
+        for (int i = 0; i < syllables; i++) {
+            name.append(NAME_SYLLABLES[random.nextInt(NAME_SYLLABLES.length)]);
+        }
+        name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+        return name.toString();
+    }
+}
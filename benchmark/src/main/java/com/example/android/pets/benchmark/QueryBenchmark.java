@@ -0,0 +1,205 @@
+package com.example.android.pets.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queries PetProvider runs for the catalog, the editor and search, at different table sizes.
+ * Every benchmark reads all returned rows, as the catalog adapter copies every row it is given.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueryBenchmark {
+
+    /** Catalog page size, see CatalogActivity */
+    private static final int PAGE_SIZE = 50;
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    private Connection mConnection;
+    private PreparedStatement mFullTable;
+    private PreparedStatement mById;
+    private PreparedStatement mUnindexedFilter;
+    private PreparedStatement mIndexedFilter;
+    private PreparedStatement mGenderBreedByWeight;
+    private PreparedStatement mWeightRange;
+    private PreparedStatement mNamePrefix;
+    private PreparedStatement mFirstPage;
+    private PreparedStatement mNextPageById;
+    private PreparedStatement mNextPageByName;
+    private PreparedStatement mSearch;
+    private final Random mRandom = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mConnection = PetSchema.create();
+        PetSchema.populate(mConnection, rows, 1);
+
+        // Reads go through the view naming the breeds, and filter on breed ids. Pages read the
+        // breed id, as PetProvider names the breeds of a page from memory.
+        mFullTable = mConnection.prepareStatement("SELECT _id, breed, name FROM pets_view");
+        mById = mConnection.prepareStatement(
+                "SELECT _id, name, breed, gender, weight FROM pets_view WHERE _id=?");
+        mUnindexedFilter = mConnection.prepareStatement(
+                "SELECT _id, breed, name FROM pets_view WHERE weight=?");
+        mIndexedFilter = mConnection.prepareStatement(
+                "SELECT _id, breed, name FROM pets_view WHERE gender=? AND breed_id=?");
+        mGenderBreedByWeight = mConnection.prepareStatement(
+                "SELECT _id, breed_id, name FROM pets_view WHERE gender=? AND breed_id=?"
+                + " ORDER BY weight DESC, _id DESC LIMIT " + PAGE_SIZE);
+        mWeightRange = mConnection.prepareStatement(
+                "SELECT _id, breed_id, name FROM pets_view WHERE weight>=? AND weight<=?"
+                + " ORDER BY _id ASC LIMIT " + PAGE_SIZE);
+        mNamePrefix = mConnection.prepareStatement(
+                "SELECT _id, breed_id, name FROM pets_view WHERE name>=? AND name<?"
+                + " ORDER BY name ASC, _id ASC LIMIT " + PAGE_SIZE);
+        mFirstPage = mConnection.prepareStatement(
+                "SELECT _id, breed_id, name FROM pets_view ORDER BY _id ASC LIMIT " + PAGE_SIZE);
+        mNextPageById = mConnection.prepareStatement(
+                "SELECT _id, breed_id, name FROM pets_view WHERE _id>?"
+                + " ORDER BY _id ASC LIMIT " + PAGE_SIZE);
+        mNextPageByName = mConnection.prepareStatement(
+                "SELECT _id, breed_id, name FROM pets_view WHERE (name>? OR (name=? AND _id>?))"
+                + " ORDER BY name ASC, _id ASC LIMIT " + PAGE_SIZE);
+        mSearch = mConnection.prepareStatement("SELECT pets_view._id, pets_view.breed,"
+                + " pets_view.name FROM pets_view"
+                + " JOIN pets_fts ON pets_view._id = pets_fts.docid WHERE pets_fts MATCH ?"
+                + " ORDER BY CASE WHEN pets_view.name LIKE ? ESCAPE '\\' THEN 0 ELSE 1 END,"
+                + " ((length(offsets(pets_fts))"
+                + " - length(replace(offsets(pets_fts), ' ', '')) + 1) / 4) DESC,"
+                + " pets_view.name LIMIT " + PAGE_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        mConnection.close();
+    }
+
+    /** The catalog before paging: every pet */
+    @Benchmark
+    public int fullTableIteration(Blackhole blackhole) throws SQLException {
+        return consume(mFullTable, blackhole);
+    }
+
+    /** The editor: one pet by its PET_ID URI */
+    @Benchmark
+    public int petIdLookup(Blackhole blackhole) throws SQLException {
+        mById.setLong(1, 1 + mRandom.nextInt(rows));
+        return consume(mById, blackhole);
+    }
+
+    /** A filter without an index to use, scanning the table */
+    @Benchmark
+    public int unindexedFilter(Blackhole blackhole) throws SQLException {
+        mUnindexedFilter.setInt(1, mRandom.nextInt(60));
+        return consume(mUnindexedFilter, blackhole);
+    }
+
+    /** A filter answered by pets_gender_breed_index */
+    @Benchmark
+    public int indexedFilter(Blackhole blackhole) throws SQLException {
+        mIndexedFilter.setInt(1, mRandom.nextInt(3));
+        mIndexedFilter.setInt(2, 1 + mRandom.nextInt(PetSchema.BREEDS.length));
+        return consume(mIndexedFilter, blackhole);
+    }
+
+    /** The gender and breed filters of the pets URI, sorted by weight */
+    @Benchmark
+    public int genderBreedSortedByWeight(Blackhole blackhole) throws SQLException {
+        mGenderBreedByWeight.setInt(1, mRandom.nextInt(3));
+        mGenderBreedByWeight.setInt(2, 1 + mRandom.nextInt(PetSchema.BREEDS.length));
+        return consume(mGenderBreedByWeight, blackhole);
+    }
+
+    /** The weight range filter of the pets URI, answered by pets_weight_index */
+    @Benchmark
+    public int weightRange(Blackhole blackhole) throws SQLException {
+        int min = mRandom.nextInt(55);
+        mWeightRange.setInt(1, min);
+        mWeightRange.setInt(2, min + 5);
+        return consume(mWeightRange, blackhole);
+    }
+
+    /** The name prefix filter of the pets URI, a range on pets_name_index */
+    @Benchmark
+    public int namePrefixRange(Blackhole blackhole) throws SQLException {
+        String prefix = PetSchema.name(mRandom).substring(0, 3);
+        mNamePrefix.setString(1, prefix);
+        mNamePrefix.setString(2, prefix.substring(0, 2) + (char) (prefix.charAt(2) + 1));
+        return consume(mNamePrefix, blackhole);
+    }
+
+    /** The first catalog page */
+    @Benchmark
+    public int firstPage(Blackhole blackhole) throws SQLException {
+        return consume(mFirstPage, blackhole);
+    }
+
+    /** A catalog page after the last pet loaded, however deep the list was scrolled */
+    @Benchmark
+    public int keysetPageById(Blackhole blackhole) throws SQLException {
+        mNextPageById.setLong(1, mRandom.nextInt(rows));
+        return consume(mNextPageById, blackhole);
+    }
+
+    /** A keyset page in name order, answered by pets_name_index */
+    @Benchmark
+    public int keysetPageByName(Blackhole blackhole) throws SQLException {
+        String name = PetSchema.name(mRandom);
+        mNextPageByName.setString(1, name);
+        mNextPageByName.setString(2, name);
+        mNextPageByName.setLong(3, 0);
+        return consume(mNextPageByName, blackhole);
+    }
+
+    /** Search by a name prefix through the full-text index */
+    @Benchmark
+    public int prefixSearch(Blackhole blackhole) throws SQLException {
+        String prefix = PetSchema.name(mRandom).substring(0, 3);
+        mSearch.setString(1, prefix + "*");
+        mSearch.setString(2, prefix + "%");
+        return consume(mSearch, blackhole);
+    }
+
+    private static int consume(PreparedStatement statement, Blackhole blackhole)
+            throws SQLException {
+        ResultSet results = statement.executeQuery();
+        try {
+            int columns = results.getMetaData().getColumnCount();
+            int count = 0;
+            while (results.next()) {
+                for (int i = 1; i <= columns; i++) {
+                    blackhole.consume(results.getObject(i));
+                }
+                count++;
+            }
+            return count;
+        } finally {
+            results.close();
+        }
+    }
+}